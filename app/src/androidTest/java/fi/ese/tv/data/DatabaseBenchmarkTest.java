@@ -0,0 +1,1096 @@
+/*
+ * Copyright (c) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.ese.tv.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Bundle;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+import androidx.leanback.database.CursorMapper;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.LargeTest;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import fi.ese.tv.data.ChannelContract.VideoEntry;
+import fi.ese.tv.data.EpgContract.EpgEntry;
+import fi.ese.tv.model.Epg;
+import fi.ese.tv.model.EpgCursorMapper;
+import fi.ese.tv.model.Video;
+import fi.ese.tv.model.VideoCursorMapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * DatabaseBenchmarkTest measures the hot queries of the app against scratch databases of
+ * {@link #CHANNEL_COUNT} channels and {@link #EPG_COUNT} epg rows in the cache directory of
+ * the app, and checks that the indexes, write-ahead logging, compiled statements, paging, the
+ * catalog snapshot, the normalized schema and the string pool each beat the path they
+ * replaced. The measurements are logged under {@link #TAG}. Run it on a device with
+ * <pre>./gradlew connectedAndroidTest</pre>
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class DatabaseBenchmarkTest {
+    private static final String TAG = "DatabaseBenchmark";
+
+    private static final int CHANNEL_COUNT = 5000;
+    private static final int EPG_COUNT = 200000;
+    private static final int CONCURRENT_EPG_COUNT = 100000;
+    private static final int INGEST_EPG_COUNT = 50000;
+    private static final int PAGING_COUNT = 10000;
+
+    private static final int CATEGORY_COUNT = 50;
+    private static final int PROFILE_COUNT = 2;
+    // Favourite bouquets listing the live services once more.
+    private static final int FAVOURITE_COUNT = 5;
+    // Every tenth row is a recording.
+    private static final int RECORDING_INTERVAL = 10;
+    private static final int ITERATIONS = 20;
+    // Rows per page of the grid, as loaded by PagedVideoAdapter.
+    private static final int PAGE_SIZE = 50;
+
+    private static final String[][] QUERIES =
+            queries(VideoEntry.VIEW_NAME, EpgEntry.VIEW_NAME);
+
+    // The channel and epg tables of database version 6, where every row repeated the names,
+    // references, urls and auth of its box, bouquet and service, with their keys and indexes.
+    private static final String[] LEGACY_SCHEMA = {
+            "CREATE TABLE channel (_id INTEGER PRIMARY KEY, category TEXT, stream_url TEXT,"
+                    + " suggest_text_1 TEXT NOT NULL, suggest_text_2 TEXT, auth TEXT,"
+                    + " bg_image_url TEXT, suggest_result_card_image TEXT,"
+                    + " suggest_is_live INTEGER DEFAULT 0, is_recording INTEGER DEFAULT 0,"
+                    + " filename TEXT, length TEXT, profile TEXT, service_ref TEXT,"
+                    + " position INTEGER DEFAULT 0)",
+            "CREATE UNIQUE INDEX channel_service_key ON channel (profile, category, service_ref)",
+            "CREATE UNIQUE INDEX channel_recording_key ON channel (profile, filename)",
+            "CREATE INDEX channel_category ON channel (category, position)",
+            "CREATE INDEX channel_recording ON channel (is_recording, profile, position)",
+            "CREATE TABLE epg (_id INTEGER PRIMARY KEY, sname TEXT, title TEXT,"
+                    + " begin_timestamp INTEGER NOT NULL, now_timestamp INTEGER, sref TEXT,"
+                    + " bref TEXT, genre TEXT, duration_sec INTEGER, shortdesc TEXT,"
+                    + " genreid INTEGER, longdesc TEXT)",
+            "CREATE INDEX epg_bref ON epg (bref, begin_timestamp)",
+            "CREATE INDEX epg_sref ON epg (sref, begin_timestamp)",
+    };
+
+    private Context mContext;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+    }
+
+    @Test
+    public void indexesSpeedUpHotQueries() {
+        Bundle result = run(mContext);
+        assertTrue(result.getLong("after.category") < result.getLong("before.category"));
+        assertTrue(result.getLong("after.bref") < result.getLong("before.bref"));
+    }
+
+    @Test
+    public void walKeepsQueriesResponsiveDuringEpgInsert() {
+        Bundle result = runConcurrent(mContext);
+        assertTrue(result.getLong("wal.count") > 0);
+        assertTrue(result.getLong("wal.max") < result.getLong("rollback.max"));
+    }
+
+    @Test
+    public void compiledStatementsAllocateLess() {
+        Bundle result = runIngest(mContext);
+        assertTrue(result.getLong("compiled.epg.bytes_allocated")
+                < result.getLong("values.epg.bytes_allocated"));
+        assertTrue(result.getLong("compiled.channel.bytes_allocated")
+                < result.getLong("values.channel.bytes_allocated"));
+    }
+
+    @Test
+    public void pagedGridShowsFirstRowSooner() {
+        Bundle result = runPaging(mContext);
+        assertTrue(result.getLong("paged.first_row") < result.getLong("full.first_row"));
+    }
+
+    @Test
+    public void browseReadsLineupInOneCursor() {
+        Bundle result = runBrowse(mContext);
+        assertEquals(1, result.getInt("grouped.cursors"));
+        assertTrue(result.getInt("per_category.cursors") > CATEGORY_COUNT);
+    }
+
+    @Test
+    public void snapshotRestoresCatalogSooner() throws IOException {
+        Bundle result = runColdStart(mContext);
+        assertTrue(result.getLong("snapshot.first_row") < result.getLong("database.first_row"));
+    }
+
+    @Test
+    public void normalizedSchemaIsSmaller() {
+        Bundle result = runSchema(mContext);
+        assertTrue(result.getLong("normalized.bytes") < result.getLong("legacy.bytes"));
+    }
+
+    @Test
+    public void stringPoolSharesStrings() {
+        Bundle result = runStringPool(mContext);
+        assertTrue(result.getLong("pooled.videos.string_bytes")
+                < result.getLong("plain.videos.string_bytes"));
+        assertTrue(result.getLong("pooled.events.string_bytes")
+                < result.getLong("plain.events.string_bytes"));
+    }
+
+    // The hot queries over the given channel and epg tables or views.
+    private static String[][] queries(String channels, String epg) {
+        return new String[][]{
+                {"category", "SELECT * FROM " + channels + " WHERE "
+                        + VideoEntry.COLUMN_CATEGORY + " = ? ORDER BY "
+                        + VideoEntry.COLUMN_POSITION, "category 7"},
+                {"distinct_category", "SELECT DISTINCT " + VideoEntry.COLUMN_CATEGORY + " FROM "
+                        + channels, null},
+                {"is_recording", "SELECT * FROM " + channels + " WHERE "
+                        + VideoEntry.COLUMN_IS_RECORDING + " = ? ORDER BY "
+                        + VideoEntry.COLUMN_PROFILE + ", " + VideoEntry.COLUMN_POSITION, "1"},
+                {"id", "SELECT * FROM " + channels + " WHERE " + VideoEntry._ID + " = ?", "2500"},
+                {"bref", "SELECT * FROM " + epg + " WHERE " + EpgEntry.COLUMN_BREF + " = ?",
+                        "bouquet 7"},
+        };
+    }
+
+    /**
+     * Runs the benchmark and returns the average latency of every query in microseconds,
+     * keyed by "before." or "after." followed by the query name.
+     */
+    private static Bundle run(Context context) {
+        File file = new File(context.getCacheDir(), "benchmark.db");
+        SQLiteDatabase.deleteDatabase(file);
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(file, null);
+        try {
+            DatabaseHelper helper = new DatabaseHelper(context);
+            helper.createVideo(db);
+            helper.createEpg(db);
+            insertChannels(db, CHANNEL_COUNT);
+            insertEpg(db, EPG_COUNT, EPG_COUNT);
+
+            Bundle result = new Bundle();
+            measure(db, "before", QUERIES, result);
+            helper.createIndexes(db);
+            db.execSQL("ANALYZE");
+            measure(db, "after", QUERIES, result);
+
+            SearchIndex.create(db);
+            measureSearch(db, result);
+            return result;
+        } finally {
+            db.close();
+            SQLiteDatabase.deleteDatabase(file);
+        }
+    }
+
+    /**
+     * Measures the latency of the browse and epg queries while {@link #CONCURRENT_EPG_COUNT}
+     * epg rows are inserted on another thread, once the way the provider used to work, with a
+     * rollback journal and one transaction, and once with write-ahead logging and transactions
+     * of {@link DatabaseProvider#ROWS_PER_TRANSACTION} rows. Results are in microseconds, keyed
+     * by "rollback." or "wal." followed by "avg", "max" and "count".
+     */
+    private static Bundle runConcurrent(Context context) {
+        Bundle result = new Bundle();
+        measureConcurrent(context, false, CONCURRENT_EPG_COUNT, "rollback", result);
+        measureConcurrent(context, true, DatabaseProvider.ROWS_PER_TRANSACTION, "wal", result);
+        return result;
+    }
+
+    private static void measureConcurrent(Context context, boolean wal,
+            final int rowsPerTransaction, String phase, Bundle result) {
+        File file = new File(context.getCacheDir(), "benchmark.db");
+        SQLiteDatabase.deleteDatabase(file);
+        int flags = SQLiteDatabase.CREATE_IF_NECESSARY
+                | (wal ? SQLiteDatabase.ENABLE_WRITE_AHEAD_LOGGING : 0);
+        final SQLiteDatabase db = SQLiteDatabase.openDatabase(file.getPath(), null, flags);
+        try {
+            DatabaseHelper helper = new DatabaseHelper(context);
+            helper.createVideo(db);
+            helper.createEpg(db);
+            helper.createIndexes(db);
+            insertChannels(db, CHANNEL_COUNT);
+
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    insertEpg(db, CONCURRENT_EPG_COUNT, rowsPerTransaction);
+                }
+            }, TAG + "-writer");
+            writer.start();
+
+            long total = 0;
+            long max = 0;
+            int count = 0;
+            while (writer.isAlive()) {
+                for (String[] query : QUERIES) {
+                    if (!"category".equals(query[0]) && !"bref".equals(query[0])) {
+                        continue;
+                    }
+                    long start = SystemClock.elapsedRealtimeNanos();
+                    readAll(db, query[1], new String[]{query[2]});
+                    long micros = (SystemClock.elapsedRealtimeNanos() - start) / 1000;
+                    total += micros;
+                    max = Math.max(max, micros);
+                    count++;
+                }
+            }
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            long avg = count == 0 ? 0 : total / count;
+            result.putLong(phase + ".avg", avg);
+            result.putLong(phase + ".max", max);
+            result.putLong(phase + ".count", count);
+            Log.d(TAG, phase + " queries during insert: avg " + avg + " us, max " + max
+                    + " us, " + count + " queries");
+        } finally {
+            db.close();
+            SQLiteDatabase.deleteDatabase(file);
+        }
+    }
+
+    /**
+     * Inserts {@link #INGEST_EPG_COUNT} epg events and {@link #CHANNEL_COUNT} channels, once
+     * through one ContentValues and insertWithOnConflict per row and once through compiled
+     * statements. Results are keyed by "values." or "compiled." followed by "epg" or "channel"
+     * and ".rows_per_sec", ".bytes_allocated" and ".gc_count".
+     */
+    private static Bundle runIngest(Context context) {
+        File file = new File(context.getCacheDir(), "benchmark.db");
+        SQLiteDatabase.deleteDatabase(file);
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(file, null);
+        try {
+            DatabaseHelper helper = new DatabaseHelper(context);
+            helper.createVideo(db);
+            helper.createEpgStaging(db);
+
+            Bundle result = new Bundle();
+            Allocations allocations = new Allocations();
+            ingestEpgValues(db);
+            allocations.report("values.epg", INGEST_EPG_COUNT, result);
+
+            allocations = new Allocations();
+            ingestEpgCompiled(db);
+            allocations.report("compiled.epg", INGEST_EPG_COUNT, result);
+
+            allocations = new Allocations();
+            insertValues(db, VideoEntry.TABLE_NAME,
+                    new LineupStore(db).toChannelRows(channelValues("values")));
+            allocations.report("values.channel", CHANNEL_COUNT, result);
+
+            allocations = new Allocations();
+            DatabaseProvider.insertInChunks(db, VideoEntry.TABLE_NAME,
+                    new LineupStore(db).toChannelRows(channelValues("compiled")),
+                    SQLiteDatabase.CONFLICT_REPLACE);
+            allocations.report("compiled.channel", CHANNEL_COUNT, result);
+            return result;
+        } finally {
+            db.close();
+            SQLiteDatabase.deleteDatabase(file);
+        }
+    }
+
+    /**
+     * Measures the channel grid over {@link #PAGING_COUNT} rows. The "full" path reads the whole
+     * grid into one cursor, the way the grid used to. The "paged" path counts the rows and reads
+     * the first page with the card columns. "paged.deep_page" reads a page near the end from
+     * its key. Results are average microseconds, keyed by "full.first_row", "full.all_rows",
+     * "paged.first_row" and "paged.deep_page".
+     */
+    private static Bundle runPaging(Context context) {
+        File file = new File(context.getCacheDir(), "benchmark.db");
+        SQLiteDatabase.deleteDatabase(file);
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(file, null);
+        try {
+            DatabaseHelper helper = new DatabaseHelper(context);
+            helper.createVideo(db);
+            helper.createIndexes(db);
+            insertChannels(db, PAGING_COUNT);
+            db.execSQL("ANALYZE");
+
+            String selection = VideoEntry.COLUMN_IS_RECORDING + " = ?";
+            String[] selectionArgs = {"0"};
+            String sortOrder = VideoEntry.COLUMN_PROFILE + ", " + VideoEntry.COLUMN_POSITION;
+
+            long firstRow = 0;
+            long allRows = 0;
+            for (int i = 0; i <= ITERATIONS; i++) {
+                long start = SystemClock.elapsedRealtimeNanos();
+                Cursor cursor = db.query(VideoEntry.VIEW_NAME, null, selection, selectionArgs,
+                        null, null, sortOrder);
+                try {
+                    // The adapter asks for the count before it shows anything.
+                    cursor.getCount();
+                    cursor.moveToFirst();
+                    long first = SystemClock.elapsedRealtimeNanos() - start;
+                    while (cursor.moveToNext()) {
+                        // Read every row, as the grid does while it is scrolled.
+                    }
+                    // The first run warms up the caches.
+                    if (i > 0) {
+                        firstRow += first;
+                        allRows += SystemClock.elapsedRealtimeNanos() - start;
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+
+            long pagedFirstRow = 0;
+            for (int i = 0; i <= ITERATIONS; i++) {
+                long start = SystemClock.elapsedRealtimeNanos();
+                DatabaseUtils.queryNumEntries(db, VideoEntry.VIEW_NAME, selection, selectionArgs);
+                readPage(db, selection, selectionArgs);
+                if (i > 0) {
+                    pagedFirstRow += SystemClock.elapsedRealtimeNanos() - start;
+                }
+            }
+
+            // The key of the row before the last full page.
+            String[] after = new String[VideoEntry.PAGE_KEY.length];
+            Cursor cursor = db.query(VideoEntry.VIEW_NAME, VideoEntry.PAGE_KEY, selection,
+                    selectionArgs, null, null, TextUtils.join(", ", VideoEntry.PAGE_KEY),
+                    (PAGING_COUNT * (RECORDING_INTERVAL - 1) / RECORDING_INTERVAL - PAGE_SIZE - 1)
+                            + ", 1");
+            try {
+                cursor.moveToFirst();
+                for (int i = 0; i < after.length; i++) {
+                    after[i] = cursor.getString(i);
+                }
+            } finally {
+                cursor.close();
+            }
+            long deepPage = 0;
+            for (int i = 0; i <= ITERATIONS; i++) {
+                long start = SystemClock.elapsedRealtimeNanos();
+                readPage(db, selection, selectionArgs, after);
+                if (i > 0) {
+                    deepPage += SystemClock.elapsedRealtimeNanos() - start;
+                }
+            }
+
+            Bundle result = new Bundle();
+            result.putLong("full.first_row", firstRow / ITERATIONS / 1000);
+            result.putLong("full.all_rows", allRows / ITERATIONS / 1000);
+            result.putLong("paged.first_row", pagedFirstRow / ITERATIONS / 1000);
+            result.putLong("paged.deep_page", deepPage / ITERATIONS / 1000);
+            Log.d(TAG, "Grid of " + PAGING_COUNT + " rows: " + result);
+            return result;
+        } finally {
+            db.close();
+            SQLiteDatabase.deleteDatabase(file);
+        }
+    }
+
+    /**
+     * Measures loading the browse screen over {@link #CHANNEL_COUNT} channels in
+     * {@link #CATEGORY_COUNT} categories. The "per_category" path reads the categories and then
+     * every category with its own query, the way the screen used to with one loader per
+     * category. The "grouped" path reads all rows in one pass ordered by category. Results are
+     * keyed by the path followed by ".first_row" and ".all_rows" in average microseconds and
+     * ".cursors" for the number of cursors opened.
+     */
+    private static Bundle runBrowse(Context context) {
+        File file = new File(context.getCacheDir(), "benchmark.db");
+        SQLiteDatabase.deleteDatabase(file);
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(file, null);
+        try {
+            DatabaseHelper helper = new DatabaseHelper(context);
+            helper.createVideo(db);
+            helper.createIndexes(db);
+            insertChannels(db, CHANNEL_COUNT);
+            db.execSQL("ANALYZE");
+
+            long perCategoryFirst = 0;
+            long perCategoryAll = 0;
+            int perCategoryCursors = 0;
+            for (int i = 0; i <= ITERATIONS; i++) {
+                long start = SystemClock.elapsedRealtimeNanos();
+                long first = 0;
+                int cursors = 1;
+                Cursor categories = db.query(true, VideoEntry.VIEW_NAME,
+                        new String[]{VideoEntry.COLUMN_CATEGORY}, null, null, null, null, null,
+                        null);
+                try {
+                    while (categories.moveToNext()) {
+                        Cursor rows = db.query(VideoEntry.VIEW_NAME, null,
+                                VideoEntry.COLUMN_CATEGORY + " = ?",
+                                new String[]{categories.getString(0)}, null, null,
+                                VideoEntry.COLUMN_POSITION);
+                        cursors++;
+                        try {
+                            if (rows.moveToFirst() && first == 0) {
+                                first = SystemClock.elapsedRealtimeNanos() - start;
+                            }
+                            while (rows.moveToNext()) {
+                                // Read every row of the category.
+                            }
+                        } finally {
+                            rows.close();
+                        }
+                    }
+                } finally {
+                    categories.close();
+                }
+                // The first run warms up the caches.
+                if (i > 0) {
+                    perCategoryFirst += first;
+                    perCategoryAll += SystemClock.elapsedRealtimeNanos() - start;
+                    perCategoryCursors = cursors;
+                }
+            }
+
+            long groupedFirst = 0;
+            long groupedAll = 0;
+            for (int i = 0; i <= ITERATIONS; i++) {
+                long start = SystemClock.elapsedRealtimeNanos();
+                Cursor rows = db.query(VideoEntry.VIEW_NAME, null, null, null, null, null,
+                        VideoEntry.COLUMN_CATEGORY + ", " + VideoEntry.COLUMN_POSITION);
+                try {
+                    rows.moveToFirst();
+                    long first = SystemClock.elapsedRealtimeNanos() - start;
+                    while (rows.moveToNext()) {
+                        // Read every row of the lineup.
+                    }
+                    if (i > 0) {
+                        groupedFirst += first;
+                        groupedAll += SystemClock.elapsedRealtimeNanos() - start;
+                    }
+                } finally {
+                    rows.close();
+                }
+            }
+
+            Bundle result = new Bundle();
+            result.putLong("per_category.first_row", perCategoryFirst / ITERATIONS / 1000);
+            result.putLong("per_category.all_rows", perCategoryAll / ITERATIONS / 1000);
+            result.putInt("per_category.cursors", perCategoryCursors);
+            result.putLong("grouped.first_row", groupedFirst / ITERATIONS / 1000);
+            result.putLong("grouped.all_rows", groupedAll / ITERATIONS / 1000);
+            result.putInt("grouped.cursors", 1);
+            Log.d(TAG, "Browse of " + CHANNEL_COUNT + " rows: " + result);
+            return result;
+        } finally {
+            db.close();
+            SQLiteDatabase.deleteDatabase(file);
+        }
+    }
+
+    /**
+     * Measures the time to the catalog the browse rows are shown from on cold start, over
+     * {@link #CHANNEL_COUNT} channels. The "database" path opens the database and builds the
+     * catalog from the lineup, the "snapshot" path maps and reads the snapshot file. Results are
+     * keyed by the path followed by ".first_row" in average microseconds, with the size of the
+     * snapshot file in "snapshot.bytes" and the estimated catalog heap in "catalog.bytes".
+     */
+    private static Bundle runColdStart(Context context) throws IOException {
+        File file = new File(context.getCacheDir(), "benchmark.db");
+        File snapshot = new File(context.getCacheDir(), "benchmark.snapshot");
+        SQLiteDatabase.deleteDatabase(file);
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(file, null);
+        try {
+            DatabaseHelper helper = new DatabaseHelper(context);
+            helper.createVideo(db);
+            helper.createIndexes(db);
+            insertChannels(db, CHANNEL_COUNT);
+            db.execSQL("ANALYZE");
+        } finally {
+            db.close();
+        }
+
+        try {
+            ChannelCatalog catalog = null;
+            long database = 0;
+            for (int i = 0; i <= ITERATIONS; i++) {
+                long start = SystemClock.elapsedRealtimeNanos();
+                db = SQLiteDatabase.openDatabase(file.getPath(), null,
+                        SQLiteDatabase.OPEN_READONLY);
+                try {
+                    Cursor rows = db.query(VideoEntry.VIEW_NAME, null, null, null, null, null,
+                            VideoEntry.COLUMN_CATEGORY + ", " + VideoEntry.COLUMN_POSITION);
+                    try {
+                        catalog = ChannelCatalog.fromCursor(rows, 0, SystemClock.elapsedRealtime());
+                    } finally {
+                        rows.close();
+                    }
+                } finally {
+                    db.close();
+                }
+                // The first run warms up the caches.
+                if (i > 0) {
+                    database += SystemClock.elapsedRealtimeNanos() - start;
+                }
+            }
+
+            CatalogSnapshot.write(snapshot, catalog);
+            long restored = 0;
+            for (int i = 0; i <= ITERATIONS; i++) {
+                long start = SystemClock.elapsedRealtimeNanos();
+                CatalogSnapshot.read(snapshot, 0);
+                if (i > 0) {
+                    restored += SystemClock.elapsedRealtimeNanos() - start;
+                }
+            }
+
+            Bundle result = new Bundle();
+            result.putLong("database.first_row", database / ITERATIONS / 1000);
+            result.putLong("snapshot.first_row", restored / ITERATIONS / 1000);
+            result.putLong("snapshot.bytes", snapshot.length());
+            result.putLong("catalog.bytes", catalog.getFootprintBytes());
+            Log.d(TAG, "Cold start of " + CHANNEL_COUNT + " rows: " + result);
+            return result;
+        } finally {
+            snapshot.delete();
+            SQLiteDatabase.deleteDatabase(file);
+        }
+    }
+
+    /**
+     * Compares the schema of database version 6, where every channel and epg row repeated the
+     * names, references, urls and auth of its box, bouquet and service, with the normalized
+     * tables read through the channel and epg views, over {@link #CHANNEL_COUNT} channels and
+     * {@link #EPG_COUNT} epg rows. Results are keyed by "legacy." or "normalized." followed by
+     * "bytes" for the size of the database and by the name of every query for its average
+     * latency in microseconds.
+     */
+    private static Bundle runSchema(Context context) {
+        Bundle result = new Bundle();
+        File file = new File(context.getCacheDir(), "benchmark.db");
+        SQLiteDatabase.deleteDatabase(file);
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(file, null);
+        try {
+            for (String sql : LEGACY_SCHEMA) {
+                db.execSQL(sql);
+            }
+            insertLegacy(db, CHANNEL_COUNT, EPG_COUNT);
+            db.execSQL("ANALYZE");
+            result.putLong("legacy.bytes", databaseBytes(db));
+            measure(db, "legacy", queries(VideoEntry.TABLE_NAME, EpgEntry.TABLE_NAME), result);
+        } finally {
+            db.close();
+            SQLiteDatabase.deleteDatabase(file);
+        }
+
+        db = SQLiteDatabase.openOrCreateDatabase(file, null);
+        try {
+            DatabaseHelper helper = new DatabaseHelper(context);
+            helper.createVideo(db);
+            helper.createEpg(db);
+            helper.createIndexes(db);
+            insertChannels(db, CHANNEL_COUNT);
+            insertEpg(db, EPG_COUNT, EPG_COUNT);
+            db.execSQL("ANALYZE");
+            result.putLong("normalized.bytes", databaseBytes(db));
+            measure(db, "normalized", QUERIES, result);
+        } finally {
+            db.close();
+            SQLiteDatabase.deleteDatabase(file);
+        }
+        Log.d(TAG, "Schema of " + CHANNEL_COUNT + " channels and " + EPG_COUNT + " events: "
+                + result);
+        return result;
+    }
+
+    /**
+     * Compares the heap held by the channels and events mapped from a lineup of several
+     * bouquets with and without a {@link StringPool}. Every live service of
+     * {@link #CHANNEL_COUNT} channels is also listed in one of {@link #FAVOURITE_COUNT} favourite
+     * bouquets, and {@link #INGEST_EPG_COUNT} events are mapped as the epg screen maps them.
+     * Results are keyed by "plain." or "pooled." followed by "videos." or "events." and
+     * "heap_bytes" for the growth of the heap after a collection, with the mapper still held,
+     * and "string_bytes" for the estimated size of the distinct strings held.
+     */
+    private static Bundle runStringPool(Context context) {
+        Bundle result = new Bundle();
+        File file = new File(context.getCacheDir(), "benchmark.db");
+        SQLiteDatabase.deleteDatabase(file);
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(file, null);
+        try {
+            DatabaseHelper helper = new DatabaseHelper(context);
+            helper.createVideo(db);
+            helper.createEpg(db);
+            helper.createIndexes(db);
+            insertChannels(db, CHANNEL_COUNT);
+            insertFavourites(db, CHANNEL_COUNT);
+            insertEpg(db, INGEST_EPG_COUNT, INGEST_EPG_COUNT);
+
+            for (boolean pooled : new boolean[]{false, true}) {
+                String phase = pooled ? "pooled" : "plain";
+                mapRows(db, VideoEntry.VIEW_NAME,
+                        new VideoCursorMapper(pooled ? new StringPool() : null),
+                        phase + ".videos", result);
+                mapRows(db, EpgEntry.VIEW_NAME,
+                        new EpgCursorMapper(pooled ? new StringPool() : null),
+                        phase + ".events", result);
+            }
+        } finally {
+            db.close();
+            SQLiteDatabase.deleteDatabase(file);
+        }
+        Log.d(TAG, "String pool over " + CHANNEL_COUNT + " channels and " + INGEST_EPG_COUNT
+                + " events: " + result);
+        return result;
+    }
+
+    // Maps every row of a table or view and reports the heap and the strings the rows hold.
+    private static void mapRows(SQLiteDatabase db, String table, CursorMapper mapper,
+            String name, Bundle result) {
+        long before = usedHeap();
+        List<Object> rows = new ArrayList<>();
+        Cursor cursor = db.query(table, null, null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                rows.add(mapper.convert(cursor));
+            }
+        } finally {
+            cursor.close();
+        }
+        long heap = usedHeap() - before;
+
+        Set<String> counted = Collections.newSetFromMap(new IdentityHashMap<String, Boolean>());
+        long strings = 0;
+        for (Object row : rows) {
+            for (String text : stringsOf(row)) {
+                if (text != null && counted.add(text)) {
+                    // Object header, hash and length, and the characters.
+                    strings += 24 + 2L * text.length();
+                }
+            }
+        }
+        result.putInt(name + ".rows", rows.size());
+        result.putLong(name + ".heap_bytes", heap);
+        result.putLong(name + ".string_bytes", strings);
+        Log.d(TAG, name + ": " + rows.size() + " rows hold " + heap + " bytes, " + strings
+                + " in strings, " + mapper);
+    }
+
+    private static String[] stringsOf(Object row) {
+        if (row instanceof Video) {
+            Video video = (Video) row;
+            return new String[]{video.category, video.title, video.description,
+                    video.bgImageUrl, video.cardImageUrl, video.videoUrl, video.authorization,
+                    video.filename, video.length};
+        }
+        Epg epg = (Epg) row;
+        return new String[]{epg.sname, epg.title, epg.sref, epg.genre, epg.shortdesc,
+                epg.longdesc};
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            runtime.gc();
+            System.runFinalization();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // Reads a page of the grid the way the provider answers a paged query.
+    private static int readPage(SQLiteDatabase db, String selection, String[] selectionArgs,
+            String... after) {
+        PageQuery page = PageQuery.parse(
+                PageQuery.buildPageUri(VideoEntry.CONTENT_URI, PAGE_SIZE, after),
+                VideoEntry.PAGE_KEY);
+        Cursor cursor = db.query(VideoEntry.VIEW_NAME,
+                page.getProjection(VideoEntry.CARD_PROJECTION),
+                DatabaseUtils.concatenateWhere(selection, page.getSelection()),
+                DatabaseUtils.appendSelectionArgs(selectionArgs, page.getSelectionArgs()),
+                null, null, page.getSortOrder(), page.getLimit());
+        try {
+            int rows = 0;
+            while (cursor.moveToNext()) {
+                rows++;
+            }
+            return rows;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void ingestEpgValues(SQLiteDatabase db) {
+        for (int chunk = 0; chunk < INGEST_EPG_COUNT;
+                chunk += DatabaseProvider.ROWS_PER_TRANSACTION) {
+            db.beginTransactionNonExclusive();
+            try {
+                int end = Math.min(chunk + DatabaseProvider.ROWS_PER_TRANSACTION,
+                        INGEST_EPG_COUNT);
+                for (int i = chunk; i < end; i++) {
+                    ContentValues values = new ContentValues();
+                    values.put(EpgEntry.COLUMN_SNAME, "channel " + (i % CHANNEL_COUNT));
+                    values.put(EpgEntry.COLUMN_TITLE, "event " + i);
+                    values.put(EpgEntry.COLUMN_BEGIN_TIMESTAMP, 1500000000L + i);
+                    values.put(EpgEntry.COLUMN_NOW_TIMESTAMP, 1500000000L);
+                    values.put(EpgEntry.COLUMN_SERVICE_REF, "1:0:1:" + Integer.toHexString(i));
+                    values.put(EpgEntry.COLUMN_BREF, "bouquet");
+                    values.put(EpgEntry.COLUMN_DURATION_SEC, 1800L);
+                    values.put(EpgEntry.COLUMN_SHORTDESC, "Short description of event " + i);
+                    values.put(EpgEntry.COLUMN_SESSION, "values");
+                    db.insertWithOnConflict(EpgEntry.STAGING_TABLE_NAME, null, values,
+                            SQLiteDatabase.CONFLICT_NONE);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+    }
+
+    private static void ingestEpgCompiled(SQLiteDatabase db) {
+        EpgStagingWriter writer = new EpgStagingWriter(db, "compiled");
+        try {
+            for (int i = 0; i < INGEST_EPG_COUNT; i++) {
+                writer.bindString(EpgRowSink.SNAME, "channel " + (i % CHANNEL_COUNT));
+                writer.bindString(EpgRowSink.TITLE, "event " + i);
+                writer.bindLong(EpgRowSink.BEGIN_TIMESTAMP, 1500000000L + i);
+                writer.bindLong(EpgRowSink.NOW_TIMESTAMP, 1500000000L);
+                writer.bindString(EpgRowSink.SERVICE_REF, "1:0:1:" + Integer.toHexString(i));
+                writer.bindString(EpgRowSink.BREF, "bouquet");
+                writer.bindLong(EpgRowSink.DURATION_SEC, 1800L);
+                writer.bindString(EpgRowSink.SHORTDESC, "Short description of event " + i);
+                writer.endRow();
+            }
+            writer.finish();
+        } finally {
+            writer.close();
+        }
+    }
+
+    // The insert path of the provider before statements were compiled.
+    private static void insertValues(SQLiteDatabase db, String table, ContentValues[] values) {
+        for (int chunk = 0; chunk < values.length; chunk += DatabaseProvider.ROWS_PER_TRANSACTION) {
+            db.beginTransactionNonExclusive();
+            try {
+                int end = Math.min(chunk + DatabaseProvider.ROWS_PER_TRANSACTION, values.length);
+                for (int i = chunk; i < end; i++) {
+                    db.insertWithOnConflict(table, null, values[i],
+                            SQLiteDatabase.CONFLICT_REPLACE);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+    }
+
+    private static ContentValues[] channelValues(String profile) {
+        ContentValues[] values = new ContentValues[CHANNEL_COUNT];
+        for (int i = 0; i < CHANNEL_COUNT; i++) {
+            values[i] = new ContentValues();
+            values[i].put(VideoEntry.COLUMN_NAME, "channel " + i);
+            values[i].put(VideoEntry.COLUMN_CATEGORY, "category " + (i % CATEGORY_COUNT));
+            values[i].put(VideoEntry.COLUMN_STREAM_URL, "http://box:8001/1:0:1:" + i);
+            values[i].put(VideoEntry.COLUMN_IS_LIVE, true);
+            values[i].put(VideoEntry.COLUMN_PROFILE, profile);
+            values[i].put(VideoEntry.COLUMN_SERVICE_REF, "1:0:1:" + Integer.toHexString(i));
+            values[i].put(VideoEntry.COLUMN_POSITION, i);
+        }
+        return values;
+    }
+
+    /**
+     * Allocation and time counters from the moment it is created.
+     */
+    private static final class Allocations {
+        private final long mStart = SystemClock.elapsedRealtimeNanos();
+        private final long mBytes = runtimeStat("art.gc.bytes-allocated");
+        private final long mGcCount = runtimeStat("art.gc.gc-count");
+
+        void report(String name, int rows, Bundle result) {
+            long nanos = Math.max(1, SystemClock.elapsedRealtimeNanos() - mStart);
+            long rowsPerSecond = rows * 1000000000L / nanos;
+            long bytes = runtimeStat("art.gc.bytes-allocated") - mBytes;
+            long gcCount = runtimeStat("art.gc.gc-count") - mGcCount;
+            result.putLong(name + ".rows_per_sec", rowsPerSecond);
+            result.putLong(name + ".bytes_allocated", bytes);
+            result.putLong(name + ".gc_count", gcCount);
+            Log.d(TAG, name + ": " + rowsPerSecond + " rows/s, " + bytes + " bytes allocated ("
+                    + bytes / rows + " per row), " + gcCount + " collections");
+        }
+
+        private static long runtimeStat(String name) {
+            String value = Debug.getRuntimeStat(name);
+            try {
+                return value == null ? 0 : Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+    }
+
+    // Base urls of the box of a profile, the way BoxProfile builds them.
+    private static String webUrl(int box) {
+        return "http://box" + box + ":80/";
+    }
+
+    private static String streamUrl(int box) {
+        return "http://box" + box + ":8001/";
+    }
+
+    private static String serviceRef(int service) {
+        return "1:0:1:" + Integer.toHexString(service) + ":";
+    }
+
+    // A row of the lineup with the columns ChannelDbBuilder and RecordingDbBuilder set.
+    private static ContentValues channelRow(int i) {
+        boolean recording = i % RECORDING_INTERVAL == 0;
+        int box = i % PROFILE_COUNT;
+        ContentValues values = new ContentValues();
+        values.put(VideoEntry.COLUMN_NAME, "channel " + i);
+        values.put(VideoEntry.COLUMN_DESC, "channel " + i);
+        values.put(VideoEntry.COLUMN_CATEGORY, "category " + (i % CATEGORY_COUNT));
+        values.put(VideoEntry.COLUMN_AUTH, "Basic cm9vdDpkcmVhbWJveA==");
+        values.put(VideoEntry.COLUMN_PROFILE, "profile " + box);
+        values.put(VideoEntry.COLUMN_POSITION, i);
+        if (recording) {
+            String path = "/hdd/movie/" + i + ".ts";
+            values.put(VideoEntry.COLUMN_STREAM_URL, webUrl(box) + "file?file=" + path);
+            values.put(VideoEntry.COLUMN_FILENAME, path);
+            values.put(VideoEntry.COLUMN_IS_RECORDING, true);
+        } else {
+            String picon = LineupStore.piconUrl(webUrl(box), serviceRef(i));
+            values.put(VideoEntry.COLUMN_STREAM_URL, streamUrl(box) + serviceRef(i));
+            values.put(VideoEntry.COLUMN_CARD_IMG, picon);
+            values.put(VideoEntry.COLUMN_BG_IMAGE_URL, picon);
+            values.put(VideoEntry.COLUMN_IS_LIVE, true);
+            values.put(VideoEntry.COLUMN_IS_RECORDING, false);
+            values.put(VideoEntry.COLUMN_SERVICE_REF, serviceRef(i));
+        }
+        return values;
+    }
+
+    // The boxes of the profiles, as the triggers of the profile table fill them.
+    private static void insertBoxes(SQLiteDatabase db) {
+        for (int box = 0; box < PROFILE_COUNT; box++) {
+            ContentValues values = new ContentValues();
+            values.put(LineupContract.BoxEntry.COLUMN_NAME, "profile " + box);
+            values.put(LineupContract.BoxEntry.COLUMN_AUTH, "Basic cm9vdDpkcmVhbWJveA==");
+            values.put(LineupContract.BoxEntry.COLUMN_WEB_URL, webUrl(box));
+            values.put(LineupContract.BoxEntry.COLUMN_STREAM_URL, streamUrl(box));
+            db.insertWithOnConflict(LineupContract.BoxEntry.TABLE_NAME, null, values,
+                    SQLiteDatabase.CONFLICT_IGNORE);
+        }
+    }
+
+    private static void insertChannels(SQLiteDatabase db, int count) {
+        long start = SystemClock.elapsedRealtime();
+        db.beginTransactionNonExclusive();
+        try {
+            insertBoxes(db);
+            LineupStore store = new LineupStore(db);
+            for (int i = 0; i < count; i++) {
+                db.insertOrThrow(VideoEntry.TABLE_NAME, null, store.toChannelRow(channelRow(i)));
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        Log.d(TAG, "Inserted " + count + " channels in "
+                + (SystemClock.elapsedRealtime() - start) + " ms");
+    }
+
+    // The live services of channelRow listed once more in the favourite bouquets.
+    private static void insertFavourites(SQLiteDatabase db, int count) {
+        db.beginTransactionNonExclusive();
+        try {
+            LineupStore store = new LineupStore(db);
+            for (int i = 0; i < count; i++) {
+                if (i % RECORDING_INTERVAL == 0) {
+                    continue;
+                }
+                ContentValues values = channelRow(i);
+                values.put(VideoEntry.COLUMN_CATEGORY, "favourites " + (i % FAVOURITE_COUNT));
+                db.insertOrThrow(VideoEntry.TABLE_NAME, null, store.toChannelRow(values));
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static void insertEpg(SQLiteDatabase db, int count, int rowsPerTransaction) {
+        long start = SystemClock.elapsedRealtime();
+
+        // The service and bouquet ids of the events, the bouquets of the channels get their
+        // references.
+        long[] serviceIds = new long[CHANNEL_COUNT];
+        long[] bouquetIds = new long[PROFILE_COUNT * CATEGORY_COUNT];
+        db.beginTransactionNonExclusive();
+        try {
+            insertBoxes(db);
+            LineupStore store = new LineupStore(db);
+            for (int service = 0; service < CHANNEL_COUNT; service++) {
+                long boxId = store.boxId("profile " + (service % PROFILE_COUNT));
+                serviceIds[service] = store.serviceId(boxId, serviceRef(service),
+                        "channel " + service);
+            }
+            for (int i = 0; i < bouquetIds.length; i++) {
+                long boxId = store.boxId("profile " + (i % PROFILE_COUNT));
+                int category = i / PROFILE_COUNT;
+                bouquetIds[i] = store.bouquetId(boxId, "category " + category,
+                        "bouquet " + category);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        SQLiteStatement epg = db.compileStatement("INSERT INTO " + EpgEntry.TABLE_NAME
+                + " (" + EpgEntry.COLUMN_SERVICE_ID + ", " + EpgEntry.COLUMN_BOUQUET_ID + ", "
+                + EpgEntry.COLUMN_TITLE + ", " + EpgEntry.COLUMN_BEGIN_TIMESTAMP + ", "
+                + EpgEntry.COLUMN_DURATION_SEC + ", " + EpgEntry.COLUMN_SHORTDESC
+                + ") VALUES (?, ?, ?, ?, ?, ?)");
+        for (int chunk = 0; chunk < count; chunk += rowsPerTransaction) {
+            db.beginTransactionNonExclusive();
+            try {
+                for (int i = chunk; i < Math.min(chunk + rowsPerTransaction, count); i++) {
+                    int service = i % CHANNEL_COUNT;
+                    epg.bindLong(1, serviceIds[service]);
+                    epg.bindLong(2, bouquetIds[(service % CATEGORY_COUNT) * PROFILE_COUNT
+                            + service % PROFILE_COUNT]);
+                    epg.bindString(3, "event " + i);
+                    epg.bindLong(4, 1500000000L + (i / CHANNEL_COUNT) * 1800L);
+                    epg.bindLong(5, 1800);
+                    epg.bindString(6, "Short description of event " + i);
+                    epg.executeInsert();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+        epg.close();
+        Log.d(TAG, "Inserted " + count + " epg rows in "
+                + (SystemClock.elapsedRealtime() - start) + " ms");
+    }
+
+    // The lineup and epg of insertChannels and insertEpg in the tables of LEGACY_SCHEMA.
+    private static void insertLegacy(SQLiteDatabase db, int channels, int events) {
+        db.beginTransactionNonExclusive();
+        try {
+            for (int i = 0; i < channels; i++) {
+                db.insertOrThrow(VideoEntry.TABLE_NAME, null, channelRow(i));
+            }
+            SQLiteStatement epg = db.compileStatement("INSERT INTO " + EpgEntry.TABLE_NAME
+                    + " (" + EpgEntry.COLUMN_SNAME + ", " + EpgEntry.COLUMN_TITLE + ", "
+                    + EpgEntry.COLUMN_BEGIN_TIMESTAMP + ", " + EpgEntry.COLUMN_SREF + ", "
+                    + EpgEntry.COLUMN_BREF + ", " + EpgEntry.COLUMN_DURATION_SEC + ", "
+                    + EpgEntry.COLUMN_SHORTDESC + ") VALUES (?, ?, ?, ?, ?, ?, ?)");
+            try {
+                for (int i = 0; i < events; i++) {
+                    int service = i % CHANNEL_COUNT;
+                    epg.bindString(1, "channel " + service);
+                    epg.bindString(2, "event " + i);
+                    epg.bindLong(3, 1500000000L + (i / CHANNEL_COUNT) * 1800L);
+                    epg.bindString(4, streamUrl(service % PROFILE_COUNT) + serviceRef(service));
+                    epg.bindString(5, "bouquet " + (service % CATEGORY_COUNT));
+                    epg.bindLong(6, 1800);
+                    epg.bindString(7, "Short description of event " + i);
+                    epg.executeInsert();
+                }
+            } finally {
+                epg.close();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    // The size of the database without free pages, in bytes.
+    private static long databaseBytes(SQLiteDatabase db) {
+        db.execSQL("VACUUM");
+        return DatabaseUtils.longForQuery(db, "PRAGMA page_count", null)
+                * DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
+    }
+
+    private static void measure(SQLiteDatabase db, String phase, String[][] queries,
+            Bundle result) {
+        for (String[] query : queries) {
+            String[] args = query[2] == null ? null : new String[]{query[2]};
+            // The first run warms up the page cache and the statement cache.
+            readAll(db, query[1], args);
+
+            long start = SystemClock.elapsedRealtimeNanos();
+            int rows = 0;
+            for (int i = 0; i < ITERATIONS; i++) {
+                rows = readAll(db, query[1], args);
+            }
+            long micros = (SystemClock.elapsedRealtimeNanos() - start) / ITERATIONS / 1000;
+
+            result.putLong(phase + "." + query[0], micros);
+            Log.d(TAG, phase + " " + query[0] + ": " + micros + " us, " + rows + " rows");
+        }
+    }
+
+    /**
+     * Measures search latency per keystroke of a few typed words.
+     */
+    private static void measureSearch(SQLiteDatabase db, Bundle result) {
+        for (String typed : new String[]{"channel 12", "event 4711", "short desc"}) {
+            long total = 0;
+            for (int length = 1; length <= typed.length(); length++) {
+                long start = SystemClock.elapsedRealtimeNanos();
+                Cursor cursor = SearchIndex.query(db, typed.substring(0, length),
+                        SearchIndex.DEFAULT_LIMIT);
+                cursor.close();
+                total += SystemClock.elapsedRealtimeNanos() - start;
+            }
+            long micros = total / typed.length() / 1000;
+            result.putLong("search." + typed, micros);
+            Log.d(TAG, "search '" + typed + "': " + micros + " us per keystroke");
+        }
+    }
+
+    private static int readAll(SQLiteDatabase db, String sql, String[] args) {
+        Cursor cursor = db.rawQuery(sql, args);
+        try {
+            int rows = 0;
+            while (cursor.moveToNext()) {
+                rows++;
+            }
+            return rows;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.ese.tv.data;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * BoxHttpClient is the single HTTP layer used for all OpenWebif api calls. Connections are
+ * never disconnected explicitly, so the platform keeps them alive and reuses them for the next
+ * request to the same box. Responses are requested gzip encoded and decoded transparently.
+ * A hash of every decoded body is computed while it is read, so callers can tell whether the
+ * content changed even when the box sends no validators.
+ */
+public class BoxHttpClient {
+    private static final String TAG = "BoxHttpClient";
+
+    public static final int DEFAULT_CONNECT_TIMEOUT_MS = 5000;
+    public static final int DEFAULT_READ_TIMEOUT_MS = 20000;
+
+    // Bytes read from an abandoned body to let its connection be reused.
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+    private static BoxHttpClient sInstance;
+
+    private volatile int mConnectTimeoutMs = DEFAULT_CONNECT_TIMEOUT_MS;
+    private volatile int mReadTimeoutMs = DEFAULT_READ_TIMEOUT_MS;
+
+    private final AtomicLong mRequestCount = new AtomicLong();
+    private final AtomicLong mByteCount = new AtomicLong();
+    private final AtomicLong mLatencyMillis = new AtomicLong();
+
+    private BoxHttpClient() {
+    }
+
+    public static synchronized BoxHttpClient getInstance() {
+        if (sInstance == null) {
+            sInstance = new BoxHttpClient();
+        }
+        return sInstance;
+    }
+
+    public void setTimeouts(int connectTimeoutMs, int readTimeoutMs) {
+        mConnectTimeoutMs = connectTimeoutMs;
+        mReadTimeoutMs = readTimeoutMs;
+    }
+
+    /**
+     * Sends a GET request to a box.
+     * @param auth The value of the Authorization header
+     * @param url The complete url of the api call
+     * @return the response, which must be closed after the body has been read
+     * @throws IOException if the request fails or the box answers with an error status
+     */
+    public Response get(String auth, String url) throws IOException {
+        return get(auth, url, null);
+    }
+
+    /**
+     * Sends a GET request to a box, conditional on the validators of the last committed
+     * response of the same url.
+     * @param validators The cache of validators, or null for an unconditional request
+     * @return the response, which is {@link Response#isNotModified() not modified} if the box
+     * confirmed the content is unchanged
+     */
+    public Response get(String auth, String url, ResponseValidatorCache validators)
+            throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        HttpURLConnection urlConnection = (HttpURLConnection) new URL(url).openConnection();
+        urlConnection.setConnectTimeout(mConnectTimeoutMs);
+        urlConnection.setReadTimeout(mReadTimeoutMs);
+        urlConnection.setRequestProperty("Authorization", auth);
+        urlConnection.setRequestProperty("Accept-Encoding", "gzip");
+        if (validators != null) {
+            validators.addConditionalHeaders(urlConnection, url);
+        }
+
+        int code = urlConnection.getResponseCode();
+        if (code >= HttpURLConnection.HTTP_BAD_REQUEST) {
+            InputStream error = urlConnection.getErrorStream();
+            if (error != null) {
+                error.close();
+            }
+            throw new IOException("HTTP " + code + " from " + url);
+        }
+        return new Response(urlConnection, url, start);
+    }
+
+    public long getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    // Number of bytes received over the network, before decompression.
+    public long getByteCount() {
+        return mByteCount.get();
+    }
+
+    public long getTotalLatencyMillis() {
+        return mLatencyMillis.get();
+    }
+
+    private void record(String url, int code, long headerMillis, long totalMillis, long bytes) {
+        mRequestCount.incrementAndGet();
+        mByteCount.addAndGet(bytes);
+        mLatencyMillis.addAndGet(totalMillis);
+        Log.d(TAG, "GET " + url + " " + code + " in " + totalMillis + " ms (headers "
+                + headerMillis + " ms), " + bytes + " bytes");
+    }
+
+    /**
+     * A response whose body is being read. Closing it records the request statistics and
+     * releases the connection for reuse.
+     */
+    public final class Response implements Closeable {
+        public final int code;
+        public final InputStream body;
+
+        private final HttpURLConnection mConnection;
+        private final MessageDigest mDigest;
+        private String mContentHash;
+        private final CountingInputStream mRawBody;
+        private final String mUrl;
+        private final long mStart;
+        private final long mHeaderMillis;
+        private boolean mClosed;
+
+        private Response(HttpURLConnection connection, String url, long start) throws IOException {
+            mConnection = connection;
+            mUrl = url;
+            mStart = start;
+            mHeaderMillis = SystemClock.elapsedRealtime() - start;
+            code = connection.getResponseCode();
+            mRawBody = new CountingInputStream(connection.getInputStream());
+            mDigest = newDigest();
+            InputStream decoded;
+            try {
+                // Reads the gzip header, which fails on a truncated or corrupt body.
+                decoded = code != HttpURLConnection.HTTP_NOT_MODIFIED
+                        && "gzip".equalsIgnoreCase(connection.getContentEncoding())
+                        ? new GZIPInputStream(mRawBody) : mRawBody;
+            } catch (IOException | RuntimeException e) {
+                mRawBody.close();
+                throw e;
+            }
+            body = new DigestInputStream(decoded, mDigest);
+        }
+
+        public String getHeader(String name) {
+            return mConnection.getHeaderField(name);
+        }
+
+        public boolean isNotModified() {
+            return code == HttpURLConnection.HTTP_NOT_MODIFIED;
+        }
+
+        /**
+         * Returns true if the box sent an ETag or Last-Modified header.
+         */
+        public boolean hasValidators() {
+            return getHeader("ETag") != null || getHeader("Last-Modified") != null;
+        }
+
+        /**
+         * Returns the number of bytes of the body received over the network, before
+         * decompression, complete once the response has been closed.
+         */
+        public long getByteCount() {
+            return mRawBody.count;
+        }
+
+        /**
+         * Returns the hex encoded SHA-1 of the decoded body, available once the response has
+         * been closed.
+         */
+        public String getContentHash() {
+            return mContentHash;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            try {
+                // A body read to the end lets the connection go back to the pool, and
+                // completes the content hash.
+                drain(body, MAX_DRAIN_BYTES);
+                mContentHash = toHex(mDigest.digest());
+            } finally {
+                // Closes the whole chain, including the native inflater of a gzip body.
+                body.close();
+                record(mUrl, code, mHeaderMillis, SystemClock.elapsedRealtime() - mStart,
+                        mRawBody.count);
+            }
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private static void drain(InputStream in, int limit) throws IOException {
+        byte[] buffer = new byte[4096];
+        int drained = 0;
+        int n;
+        while (drained < limit && (n = in.read(buffer, 0, buffer.length)) != -1) {
+            drained += n;
+        }
+    }
+
+    private static final class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = super.read(buffer, offset, length);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.ese.tv.data;
+
+import android.content.Intent;
+import android.database.Cursor;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * BoxProfile is an immutable description of how to reach one Enigma2 box.
+ */
+public final class BoxProfile {
+    public final String name;
+    public final String auth;
+    // Base url of the OpenWebif api, ending with a slash.
+    public final String webUrl;
+    // Base url of the stream port, ending with a slash.
+    public final String streamUrl;
+    // Host name of the box, used to limit the concurrent requests to one box.
+    public final String host;
+
+    public BoxProfile(String name, String auth, String webUrl, String streamUrl) {
+        this.name = name;
+        this.auth = auth;
+        this.webUrl = webUrl;
+        this.streamUrl = streamUrl;
+        this.host = hostOf(webUrl);
+    }
+
+    /**
+     * Reads every profile of a cursor over the profile table.
+     */
+    public static List<BoxProfile> readAll(Cursor cursor) {
+        int nameIndex = cursor.getColumnIndexOrThrow(ProfileContract.ProfileEntry.COLUMN_NAME);
+        int authIndex = cursor.getColumnIndexOrThrow(ProfileContract.ProfileEntry.COLUMN_AUTH);
+        int webAddressIndex =
+                cursor.getColumnIndexOrThrow(ProfileContract.ProfileEntry.COLUMN_WEB_ADDRESS);
+        int webPortIndex =
+                cursor.getColumnIndexOrThrow(ProfileContract.ProfileEntry.COLUMN_WEB_PORT);
+        int streamPortIndex =
+                cursor.getColumnIndexOrThrow(ProfileContract.ProfileEntry.COLUMN_STREAM_PORT);
+
+        List<BoxProfile> profiles = new ArrayList<>(cursor.getCount());
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            String webAddress = cursor.getString(webAddressIndex);
+            profiles.add(new BoxProfile(cursor.getString(nameIndex), cursor.getString(authIndex),
+                    webAddress + ":" + cursor.getInt(webPortIndex) + "/",
+                    webAddress + ":" + cursor.getInt(streamPortIndex) + "/"));
+        }
+        return profiles;
+    }
+
+    /**
+     * Reads the profile from the extras the fetch services are started with.
+     */
+    public static BoxProfile fromIntent(Intent intent) {
+        return new BoxProfile(
+                intent.getStringExtra("profile"),
+                intent.getStringExtra("auth"),
+                intent.getStringExtra("download_url"),
+                intent.getStringExtra("base"));
+    }
+
+    private static String hostOf(String url) {
+        try {
+            return new URL(url).getHost();
+        } catch (MalformedURLException e) {
+            return url;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "BoxProfile{name='" + name + "', webUrl='" + webUrl + "'}";
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.ese.tv.data;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import fi.ese.tv.model.Video;
+
+/**
+ * CatalogSnapshot saves a channel catalog to a compact binary file and reads it back through a
+ * memory map, so the browse rows can be shown on cold start before the database is opened.
+ *
+ * The file holds a header, a table of the distinct strings, the videos as string table indexes,
+ * and then the channel, recording and bouquet orders and the service references as video
+ * indexes. Integers are big endian, strings are UTF-8 prefixed with their length in bytes.
+ */
+final class CatalogSnapshot {
+    private static final String TAG = "CatalogSnapshot";
+
+    private static final int MAGIC = 0x45534354;
+    // Bumped whenever the layout below changes, older files are ignored.
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int NULL_INDEX = -1;
+    private static final int FLAG_LIVE = 1;
+    private static final int FLAG_RECORDING = 2;
+
+    private CatalogSnapshot() {
+    }
+
+    /**
+     * Writes the catalog to a temporary file that then replaces the file, so a reader never
+     * sees a partly written snapshot.
+     */
+    static void write(File file, ChannelCatalog catalog) throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        List<Video> channels = catalog.getChannels();
+        List<Video> recordings = catalog.getRecordings();
+
+        Map<String, Integer> strings = new LinkedHashMap<>();
+        Map<Long, Integer> videoIndexes = new HashMap<>();
+        Video[] videos = new Video[channels.size() + recordings.size()];
+        for (Video video : channels) {
+            videoIndexes.put(video.id, videoIndexes.size());
+            videos[videoIndexes.size() - 1] = video;
+        }
+        for (Video video : recordings) {
+            videoIndexes.put(video.id, videoIndexes.size());
+            videos[videoIndexes.size() - 1] = video;
+        }
+        for (Video video : videos) {
+            intern(strings, video.category);
+            intern(strings, video.title);
+            intern(strings, video.description);
+            intern(strings, video.bgImageUrl);
+            intern(strings, video.cardImageUrl);
+            intern(strings, video.videoUrl);
+            intern(strings, video.authorization);
+            intern(strings, video.filename);
+            intern(strings, video.length);
+        }
+        for (String bouquet : catalog.getBouquets()) {
+            intern(strings, bouquet);
+        }
+        for (String serviceRef : catalog.getServiceRefs().keySet()) {
+            intern(strings, serviceRef);
+        }
+
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(strings.size());
+            for (String string : strings.keySet()) {
+                byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+
+            out.writeInt(videos.length);
+            for (Video video : videos) {
+                out.writeLong(video.id);
+                out.writeInt(indexOf(strings, video.category));
+                out.writeInt(indexOf(strings, video.title));
+                out.writeInt(indexOf(strings, video.description));
+                out.writeInt(indexOf(strings, video.bgImageUrl));
+                out.writeInt(indexOf(strings, video.cardImageUrl));
+                out.writeInt(indexOf(strings, video.videoUrl));
+                out.writeInt(indexOf(strings, video.authorization));
+                out.writeInt(indexOf(strings, video.filename));
+                out.writeInt(indexOf(strings, video.length));
+                out.writeByte((video.isLive ? FLAG_LIVE : 0)
+                        | (video.isRecording ? FLAG_RECORDING : 0));
+            }
+
+            // Channels and recordings are the first and second part of the videos.
+            out.writeInt(channels.size());
+            out.writeInt(recordings.size());
+
+            List<String> bouquets = catalog.getBouquets();
+            out.writeInt(bouquets.size());
+            for (String bouquet : bouquets) {
+                List<Video> bouquetVideos = catalog.getBouquet(bouquet);
+                out.writeInt(indexOf(strings, bouquet));
+                out.writeInt(bouquetVideos.size());
+                for (Video video : bouquetVideos) {
+                    out.writeInt(videoIndexes.get(video.id));
+                }
+            }
+
+            Map<String, Video> serviceRefs = catalog.getServiceRefs();
+            out.writeInt(serviceRefs.size());
+            for (Map.Entry<String, Video> entry : serviceRefs.entrySet()) {
+                out.writeInt(indexOf(strings, entry.getKey()));
+                out.writeInt(videoIndexes.get(entry.getValue().id));
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not replace " + file);
+        }
+        Log.d(TAG, "Wrote " + videos.length + " videos and " + strings.size() + " strings in "
+                + file.length() + " bytes in " + (SystemClock.elapsedRealtime() - start) + " ms");
+    }
+
+    /**
+     * Reads a catalog saved by {@link #write}. Returns null if there is no file or it can not
+     * be read, a broken file is deleted.
+     */
+    static ChannelCatalog read(File file, int version) {
+        if (!file.exists()) {
+            return null;
+        }
+        long start = SystemClock.elapsedRealtime();
+        try {
+            RandomAccessFile input = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = input.getChannel();
+                ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                ChannelCatalog catalog = read(buffer, version, start);
+                if (catalog != null) {
+                    Log.d(TAG, "Read " + catalog + " from " + channel.size() + " bytes");
+                }
+                return catalog;
+            } finally {
+                input.close();
+            }
+        } catch (IOException | BufferUnderflowException | IndexOutOfBoundsException
+                | NegativeArraySizeException e) {
+            Log.e(TAG, "Could not read catalog snapshot: " + e);
+            file.delete();
+            return null;
+        }
+    }
+
+    private static ChannelCatalog read(ByteBuffer buffer, int version, long start) {
+        if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+            return null;
+        }
+
+        String[] strings = new String[buffer.getInt()];
+        byte[] bytes = new byte[0];
+        for (int i = 0; i < strings.length; i++) {
+            int length = buffer.getInt();
+            if (bytes.length < length) {
+                bytes = new byte[length];
+            }
+            buffer.get(bytes, 0, length);
+            strings[i] = new String(bytes, 0, length, StandardCharsets.UTF_8);
+        }
+
+        Video[] videos = new Video[buffer.getInt()];
+        for (int i = 0; i < videos.length; i++) {
+            Video.VideoBuilder builder = new Video.VideoBuilder()
+                    .id(buffer.getLong())
+                    .category(stringAt(strings, buffer.getInt()))
+                    .title(stringAt(strings, buffer.getInt()))
+                    .description(stringAt(strings, buffer.getInt()))
+                    .bgImageUrl(stringAt(strings, buffer.getInt()))
+                    .cardImageUrl(stringAt(strings, buffer.getInt()))
+                    .videoUrl(stringAt(strings, buffer.getInt()))
+                    .authorization(stringAt(strings, buffer.getInt()))
+                    .filename(stringAt(strings, buffer.getInt()))
+                    .length(stringAt(strings, buffer.getInt()));
+            int flags = buffer.get();
+            videos[i] = builder.isLive((flags & FLAG_LIVE) != 0)
+                    .isRecording((flags & FLAG_RECORDING) != 0)
+                    .build();
+        }
+
+        Video[] channels = new Video[buffer.getInt()];
+        Video[] recordings = new Video[buffer.getInt()];
+        System.arraycopy(videos, 0, channels, 0, channels.length);
+        System.arraycopy(videos, channels.length, recordings, 0, recordings.length);
+
+        int bouquetCount = buffer.getInt();
+        Map<String, Video[]> bouquets = new LinkedHashMap<>();
+        for (int i = 0; i < bouquetCount; i++) {
+            String bouquet = strings[buffer.getInt()];
+            Video[] bouquetVideos = new Video[buffer.getInt()];
+            for (int j = 0; j < bouquetVideos.length; j++) {
+                bouquetVideos[j] = videos[buffer.getInt()];
+            }
+            bouquets.put(bouquet, bouquetVideos);
+        }
+
+        int serviceRefCount = buffer.getInt();
+        Map<String, Video> serviceRefs = new HashMap<>();
+        for (int i = 0; i < serviceRefCount; i++) {
+            String serviceRef = strings[buffer.getInt()];
+            serviceRefs.put(serviceRef, videos[buffer.getInt()]);
+        }
+
+        return new ChannelCatalog(version, channels, recordings, bouquets, serviceRefs,
+                SystemClock.elapsedRealtime() - start);
+    }
+
+    private static void intern(Map<String, Integer> strings, String string) {
+        if (string != null && !strings.containsKey(string)) {
+            strings.put(string, strings.size());
+        }
+    }
+
+    private static int indexOf(Map<String, Integer> strings, String string) {
+        return string == null ? NULL_INDEX : strings.get(string);
+    }
+
+    private static String stringAt(String[] strings, int index) {
+        return index == NULL_INDEX ? null : strings[index];
+    }
+}
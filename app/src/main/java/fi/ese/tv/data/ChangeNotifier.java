@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.ese.tv.data;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * ChangeNotifier collects the uris changed by the provider and notifies them once per window,
+ * so a sync writing in several transactions wakes each observer once instead of once per write.
+ *
+ * Notifying a uri wakes the observers of every uri below it, so a pending uri makes any pending
+ * uri below it redundant. Those are dropped and counted as suppressed.
+ */
+public class ChangeNotifier {
+    private static final String TAG = "ChangeNotifier";
+
+    // Provider method returning the counters, and the keys of the returned bundle.
+    public static final String METHOD_GET_STATS = "get_notification_stats";
+    public static final String EXTRA_SENT = "sent";
+    public static final String EXTRA_SUPPRESSED = "suppressed";
+
+    public static final long DEFAULT_WINDOW_MS = 100;
+
+    // A burst touching more uris than this notifies the tables they are in instead.
+    private static final int MAX_URIS_PER_DISPATCH = 64;
+
+    private final ContentResolver mContentResolver;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Set<Uri> mPending = new LinkedHashSet<>();
+    private long mWindowMillis;
+    private boolean mScheduled;
+
+    private long mSent;
+    private long mSuppressed;
+
+    private final Runnable mDispatch = new Runnable() {
+        @Override
+        public void run() {
+            dispatch();
+        }
+    };
+
+    /**
+     * @param windowMillis How long changes are collected before observers are notified
+     */
+    public ChangeNotifier(ContentResolver contentResolver, long windowMillis) {
+        mContentResolver = contentResolver;
+        mWindowMillis = windowMillis;
+    }
+
+    public synchronized void setWindowMillis(long windowMillis) {
+        mWindowMillis = windowMillis;
+    }
+
+    /**
+     * Queues a change of the uri, observers are notified when the current window ends.
+     */
+    public void notifyChange(Uri uri) {
+        // Observers are registered by path, the query does not select any of them.
+        uri = uri.buildUpon().clearQuery().fragment(null).build();
+
+        long delay;
+        synchronized (this) {
+            for (Uri pending : mPending) {
+                if (isSameOrBelow(uri, pending)) {
+                    mSuppressed++;
+                    return;
+                }
+            }
+            for (Iterator<Uri> it = mPending.iterator(); it.hasNext(); ) {
+                if (isSameOrBelow(it.next(), uri)) {
+                    it.remove();
+                    mSuppressed++;
+                }
+            }
+            mPending.add(uri);
+
+            if (mScheduled) {
+                return;
+            }
+            mScheduled = true;
+            delay = mWindowMillis;
+        }
+        mHandler.postDelayed(mDispatch, delay);
+    }
+
+    private void dispatch() {
+        List<Uri> uris;
+        synchronized (this) {
+            mScheduled = false;
+            Set<Uri> pending = mPending;
+            if (pending.size() > MAX_URIS_PER_DISPATCH) {
+                pending = new LinkedHashSet<>();
+                for (Uri uri : mPending) {
+                    pending.add(tableOf(uri));
+                }
+                mSuppressed += mPending.size() - pending.size();
+            }
+            uris = new ArrayList<>(pending);
+            mPending.clear();
+            mSent += uris.size();
+        }
+
+        for (Uri uri : uris) {
+            mContentResolver.notifyChange(uri, null);
+        }
+        Log.d(TAG, "Notified " + uris.size() + " uris, " + this);
+    }
+
+    public synchronized long getSentCount() {
+        return mSent;
+    }
+
+    public synchronized long getSuppressedCount() {
+        return mSuppressed;
+    }
+
+    public synchronized Bundle getStats() {
+        Bundle stats = new Bundle();
+        stats.putLong(EXTRA_SENT, mSent);
+        stats.putLong(EXTRA_SUPPRESSED, mSuppressed);
+        return stats;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "sent=" + mSent + ", suppressed=" + mSuppressed;
+    }
+
+    // Whether notifying the parent wakes the observers of the uri.
+    private static boolean isSameOrBelow(Uri uri, Uri parent) {
+        if (!String.valueOf(uri.getAuthority()).equals(parent.getAuthority())) {
+            return false;
+        }
+        List<String> segments = uri.getPathSegments();
+        List<String> parentSegments = parent.getPathSegments();
+        return segments.size() >= parentSegments.size()
+                && segments.subList(0, parentSegments.size()).equals(parentSegments);
+    }
+
+    private static Uri tableOf(Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        Uri.Builder builder = new Uri.Builder().scheme(uri.getScheme())
+                .authority(uri.getAuthority());
+        if (!segments.isEmpty()) {
+            builder.appendPath(segments.get(0));
+        }
+        return builder.build();
+    }
+}
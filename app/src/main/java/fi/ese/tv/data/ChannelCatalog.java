@@ -0,0 +1,412 @@
+/*
+ * Copyright (c) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.ese.tv.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fi.ese.tv.data.ChannelContract.VideoEntry;
+import fi.ese.tv.model.Video;
+import fi.ese.tv.model.VideoCursorMapper;
+
+/**
+ * ChannelCatalog is an immutable snapshot of the channels, bouquets and recordings shared by
+ * the screens of the process. The provider invalidates it when a write to the channel table
+ * commits, and a new snapshot is built in the background and replaces the current one in one
+ * step, so a reader always sees the rows of whole syncs.
+ *
+ * {@link #get(Context)} returns an up to date snapshot and may build it, so it is called off
+ * the main thread. The main thread uses {@link #peek()}, which may be a sync behind. Every
+ * snapshot built with changes is saved to a file, which {@link #restore(Context)} reads on cold
+ * start without opening the database.
+ */
+public final class ChannelCatalog {
+    private static final String TAG = "ChannelCatalog";
+
+    private static final String SNAPSHOT_FILE = "channel_catalog.snapshot";
+
+    // The version of a snapshot read from the file, never current.
+    private static final int RESTORED_VERSION = -1;
+
+    // Rough sizes of the objects held, for the footprint estimate.
+    private static final int OBJECT_BYTES = 16;
+    private static final int REFERENCE_BYTES = 4;
+    private static final int VIDEO_BYTES = OBJECT_BYTES + 12 * REFERENCE_BYTES;
+    private static final int MAP_ENTRY_BYTES = 32;
+
+    private static final AtomicInteger sVersion = new AtomicInteger();
+    private static final AtomicBoolean sRebuildScheduled = new AtomicBoolean();
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor();
+    private static final Object sBuildLock = new Object();
+    private static volatile ChannelCatalog sCurrent;
+    // The snapshot read from the file, kept apart so its ids are never looked up.
+    private static ChannelCatalog sRestored;
+
+    private final int mVersion;
+    private final Video[] mChannels;
+    private final Video[] mRecordings;
+    private final String[] mBouquets;
+    private final Map<String, Video[]> mBouquetVideos;
+    private final Map<Long, Video> mById;
+    private final Map<String, Video> mByServiceRef;
+    private final long mBuildMillis;
+    private final long mFootprintBytes;
+
+    ChannelCatalog(int version, Video[] channels, Video[] recordings,
+            Map<String, Video[]> bouquetVideos, Map<String, Video> byServiceRef,
+            long buildMillis) {
+        mVersion = version;
+        mChannels = channels;
+        mRecordings = recordings;
+        mBouquets = bouquetVideos.keySet().toArray(new String[bouquetVideos.size()]);
+        mBouquetVideos = Collections.unmodifiableMap(bouquetVideos);
+        mByServiceRef = Collections.unmodifiableMap(byServiceRef);
+        mBuildMillis = buildMillis;
+
+        Map<Long, Video> byId = new HashMap<>();
+        // Values shared through the pool of the mapper are counted once.
+        Set<String> counted = Collections.newSetFromMap(new IdentityHashMap<String, Boolean>());
+        long footprint = (channels.length + recordings.length) * REFERENCE_BYTES
+                + byServiceRef.size() * MAP_ENTRY_BYTES;
+        for (Video video : channels) {
+            byId.put(video.id, video);
+            footprint += footprintOf(video, counted);
+        }
+        for (Video video : recordings) {
+            byId.put(video.id, video);
+            footprint += footprintOf(video, counted);
+        }
+        for (Video[] videos : bouquetVideos.values()) {
+            footprint += MAP_ENTRY_BYTES + OBJECT_BYTES + videos.length * REFERENCE_BYTES;
+        }
+        mById = Collections.unmodifiableMap(byId);
+        mFootprintBytes = footprint + byId.size() * (MAP_ENTRY_BYTES + OBJECT_BYTES);
+    }
+
+    /**
+     * Returns a snapshot with every committed change, building it if needed.
+     */
+    public static ChannelCatalog get(Context context) {
+        ChannelCatalog current = sCurrent;
+        if (current != null && current.isCurrent()) {
+            return current;
+        }
+        synchronized (sBuildLock) {
+            // Another thread may have built it while this one waited.
+            int version = sVersion.get();
+            ChannelCatalog previous = sCurrent;
+            if (previous != null && previous.mVersion == version) {
+                return previous;
+            }
+            current = build(context.getApplicationContext(), version);
+            sCurrent = current;
+            ChannelCatalog saved = previous != null ? previous : sRestored;
+            sRestored = null;
+            if (saved == null || !saved.hasSameContent(current)) {
+                save(context, current);
+            }
+            return current;
+        }
+    }
+
+    /**
+     * Returns the last snapshot built if it has every committed change, or null. Ids looked up
+     * in it are the ids of the database.
+     */
+    public static ChannelCatalog peek() {
+        ChannelCatalog current = sCurrent;
+        return current != null && current.isCurrent() ? current : null;
+    }
+
+    /**
+     * Returns the last snapshot built, or else the one saved by the last sync, without opening
+     * the database. The snapshot may be out of date, see {@link #isCurrent()}, and is only fit
+     * for showing rows until the current one is built. Returns null if there is neither.
+     */
+    public static ChannelCatalog restore(Context context) {
+        ChannelCatalog current = sCurrent;
+        if (current != null) {
+            return current;
+        }
+        synchronized (sBuildLock) {
+            if (sCurrent != null) {
+                return sCurrent;
+            }
+            if (sRestored == null) {
+                sRestored = CatalogSnapshot.read(snapshotFile(context), RESTORED_VERSION);
+            }
+            return sRestored;
+        }
+    }
+
+    /**
+     * Marks the current snapshot out of date after a write to the channel table committed, and
+     * builds the next one in the background if the catalog is in use.
+     */
+    public static void invalidate(final Context context) {
+        sVersion.incrementAndGet();
+        if (sCurrent == null || !sRebuildScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Changes made from here on schedule another build.
+                sRebuildScheduled.set(false);
+                get(context);
+            }
+        });
+    }
+
+    private static ChannelCatalog build(Context context, int version) {
+        long start = SystemClock.elapsedRealtime();
+        Cursor cursor = context.getContentResolver().query(VideoEntry.CONTENT_URI, null, null,
+                null, VideoEntry.COLUMN_CATEGORY + ", " + VideoEntry.COLUMN_POSITION);
+        ChannelCatalog catalog;
+        if (cursor == null) {
+            catalog = new ChannelCatalog(version, new Video[0], new Video[0],
+                    new LinkedHashMap<String, Video[]>(), new HashMap<String, Video>(), 0);
+        } else {
+            try {
+                catalog = fromCursor(cursor, version, start);
+            } finally {
+                cursor.close();
+            }
+        }
+        Log.d(TAG, "Built " + catalog);
+        return catalog;
+    }
+
+    /**
+     * Builds a snapshot from all rows of the channel table ordered by category and position,
+     * recordings form a bouquet of their own.
+     * @param start The time the query was started at, for the build time
+     */
+    static ChannelCatalog fromCursor(Cursor cursor, int version, long start) {
+        int profileIndex = cursor.getColumnIndexOrThrow(VideoEntry.COLUMN_PROFILE);
+        int positionIndex = cursor.getColumnIndexOrThrow(VideoEntry.COLUMN_POSITION);
+        int serviceRefIndex = cursor.getColumnIndexOrThrow(VideoEntry.COLUMN_SERVICE_REF);
+        VideoCursorMapper mapper = new VideoCursorMapper();
+        List<Video> channels = new ArrayList<>();
+        final List<Object[]> recordings = new ArrayList<>();
+        Map<String, List<Video>> bouquets = new LinkedHashMap<>();
+        Map<String, Video> byServiceRef = new HashMap<>();
+
+        List<Video> bouquet = null;
+        String current = null;
+        while (cursor.moveToNext()) {
+            Video video = (Video) mapper.convert(cursor);
+            if (video.isRecording) {
+                // Recordings are listed by profile and position like in the grid.
+                recordings.add(new Object[]{cursor.getString(profileIndex),
+                        cursor.getInt(positionIndex), video});
+            } else {
+                channels.add(video);
+                String serviceRef = cursor.getString(serviceRefIndex);
+                if (serviceRef != null && !byServiceRef.containsKey(serviceRef)) {
+                    byServiceRef.put(serviceRef, video);
+                }
+            }
+            if (video.category == null) {
+                continue;
+            }
+            if (!video.category.equals(current)) {
+                current = video.category;
+                bouquet = new ArrayList<>();
+                bouquets.put(current, bouquet);
+            }
+            bouquet.add(video);
+        }
+
+        Collections.sort(recordings, new Comparator<Object[]>() {
+            @Override
+            public int compare(Object[] a, Object[] b) {
+                int byProfile = String.valueOf(a[0]).compareTo(String.valueOf(b[0]));
+                return byProfile != 0 ? byProfile : Integer.compare((Integer) a[1], (Integer) b[1]);
+            }
+        });
+        Video[] recordingVideos = new Video[recordings.size()];
+        for (int i = 0; i < recordingVideos.length; i++) {
+            recordingVideos[i] = (Video) recordings.get(i)[2];
+        }
+
+        Map<String, Video[]> bouquetVideos = new LinkedHashMap<>();
+        for (Map.Entry<String, List<Video>> entry : bouquets.entrySet()) {
+            List<Video> videos = entry.getValue();
+            bouquetVideos.put(entry.getKey(), videos.toArray(new Video[videos.size()]));
+        }
+        return new ChannelCatalog(version, channels.toArray(new Video[channels.size()]),
+                recordingVideos, bouquetVideos, byServiceRef,
+                SystemClock.elapsedRealtime() - start);
+    }
+
+    // Saves the lineup for the next cold start, an empty one is not worth restoring.
+    private static void save(Context context, ChannelCatalog catalog) {
+        File file = snapshotFile(context);
+        if (catalog.mById.isEmpty()) {
+            file.delete();
+            return;
+        }
+        try {
+            CatalogSnapshot.write(file, catalog);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not save catalog snapshot: " + e.getLocalizedMessage());
+        }
+    }
+
+    private static File snapshotFile(Context context) {
+        return new File(context.getFilesDir(), SNAPSHOT_FILE);
+    }
+
+    private static long footprintOf(Video video, Set<String> counted) {
+        return VIDEO_BYTES + footprintOf(video.category, counted)
+                + footprintOf(video.title, counted) + footprintOf(video.description, counted)
+                + footprintOf(video.bgImageUrl, counted) + footprintOf(video.cardImageUrl, counted)
+                + footprintOf(video.videoUrl, counted) + footprintOf(video.authorization, counted)
+                + footprintOf(video.filename, counted) + footprintOf(video.length, counted);
+    }
+
+    private static long footprintOf(String text, Set<String> counted) {
+        return text == null || !counted.add(text) ? 0 : OBJECT_BYTES + 8 + 2L * text.length();
+    }
+
+    /**
+     * Returns whether the snapshot has every committed change. A snapshot restored from the
+     * file never has.
+     */
+    public boolean isCurrent() {
+        return mVersion == sVersion.get();
+    }
+
+    // Whether the snapshot came from the file rather than the database.
+    public boolean isRestored() {
+        return mVersion == RESTORED_VERSION;
+    }
+
+    /**
+     * Returns whether the other snapshot lists the same rows in the same order.
+     */
+    public boolean hasSameContent(ChannelCatalog other) {
+        if (!Arrays.equals(mBouquets, other.mBouquets)
+                || !sameContent(mChannels, other.mChannels)
+                || !sameContent(mRecordings, other.mRecordings)
+                || !mByServiceRef.equals(other.mByServiceRef)) {
+            return false;
+        }
+        for (String bouquet : mBouquets) {
+            if (!sameContent(mBouquetVideos.get(bouquet), other.mBouquetVideos.get(bouquet))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean sameContent(Video[] videos, Video[] others) {
+        if (videos.length != others.length) {
+            return false;
+        }
+        for (int i = 0; i < videos.length; i++) {
+            if (!videos[i].hasSameContent(others[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the channels in lineup order, by bouquet and position.
+     */
+    public List<Video> getChannels() {
+        return Collections.unmodifiableList(Arrays.asList(mChannels));
+    }
+
+    /**
+     * Returns the recordings in the order of the recordings grid, by profile and position.
+     */
+    public List<Video> getRecordings() {
+        return Collections.unmodifiableList(Arrays.asList(mRecordings));
+    }
+
+    /**
+     * Returns the names of the bouquets in the order they are browsed.
+     */
+    public List<String> getBouquets() {
+        return Collections.unmodifiableList(Arrays.asList(mBouquets));
+    }
+
+    /**
+     * Returns the channels of a bouquet by position, or an empty list.
+     */
+    public List<Video> getBouquet(String bouquet) {
+        Video[] videos = mBouquetVideos.get(bouquet);
+        return videos == null ? Collections.<Video>emptyList()
+                : Collections.unmodifiableList(Arrays.asList(videos));
+    }
+
+    // The channel of every service reference, for the snapshot file.
+    Map<String, Video> getServiceRefs() {
+        return mByServiceRef;
+    }
+
+    public Video findById(long id) {
+        return mById.get(id);
+    }
+
+    /**
+     * Returns the channel of a service, from the first bouquet listing it.
+     */
+    public Video findByServiceRef(String serviceRef) {
+        return mByServiceRef.get(serviceRef);
+    }
+
+    // How long building the snapshot took.
+    public long getBuildMillis() {
+        return mBuildMillis;
+    }
+
+    // An estimate of the heap the snapshot holds.
+    public long getFootprintBytes() {
+        return mFootprintBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "ChannelCatalog{version=" + (isRestored() ? "restored" : mVersion)
+                + ", channels=" + mChannels.length + ", recordings=" + mRecordings.length
+                + ", bouquets=" + mBouquets.length + ", buildMillis=" + mBuildMillis
+                + ", footprintBytes=" + mFootprintBytes + "}";
+    }
+}
@@ -36,6 +36,7 @@ public final class ChannelContract {
     // The content paths.
     public static final String PATH_VIDEO = "channel";
     public static final String PATH_RECORDING = "recording";
+    public static final String PATH_CATEGORY = "category";
 
     public static final class VideoEntry implements BaseColumns {
 
@@ -50,9 +51,16 @@ public final class ChannelContract {
         public static final String CONTENT_TYPE_REC =
                 ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "." + PATH_RECORDING;
 
-        // Name of the video table.
+        // Name of the video table, one row per channel of a bouquet or recording of a box.
         public static final String TABLE_NAME = "channel";
 
+        // Name of the view queries read, with the urls and auth of the box resolved.
+        public static final String VIEW_NAME = "channel_view";
+
+        // Columns of the table only, with the keys into the bouquet and service tables.
+        public static final String COLUMN_BOUQUET_ID = "bouquet_id";
+        public static final String COLUMN_SERVICE_ID = "service_id";
+
         // Column with the foreign key into the category table.
         public static final String COLUMN_CATEGORY = "category";
 
@@ -81,9 +89,74 @@ public final class ChannelContract {
         public static final String COLUMN_FILENAME = "filename";
         public static final String COLUMN_LENGTH = "length";
 
+        // Name of the profile (box) the row was synced from.
+        public static final String COLUMN_PROFILE = "profile";
+
+        // The service reference of a channel, or the bouquet reference of a bouquet row.
+        public static final String COLUMN_SERVICE_REF = "service_ref";
+
+        // Position of the row in the lineup the box returned.
+        public static final String COLUMN_POSITION = "position";
+
+        // The columns a card of a grid or a browse row shows and is opened with, without the
+        // background image and the sync bookkeeping.
+        public static final String[] CARD_PROJECTION = {
+                _ID,
+                COLUMN_NAME,
+                COLUMN_DESC,
+                COLUMN_CATEGORY,
+                COLUMN_STREAM_URL,
+                COLUMN_AUTH,
+                COLUMN_CARD_IMG,
+                COLUMN_IS_LIVE,
+                COLUMN_IS_RECORDING,
+                COLUMN_FILENAME,
+                COLUMN_LENGTH
+        };
+
+        // The key columns pages of the channel and recording uris are ordered by, see PageQuery.
+        public static final String[] PAGE_KEY = {COLUMN_PROFILE, COLUMN_POSITION, _ID};
+
+        // The key columns pages of a category uri are ordered by.
+        public static final String[] CATEGORY_PAGE_KEY = {COLUMN_POSITION, _ID};
+
+        // Query parameter that turns a bulk insert into a sync of the profile's rows.
+        public static final String PARAM_SYNC_PROFILE = "sync_profile";
+
+        // Uri searched by the global search suggestions and the in-app search.
+        public static final Uri CONTENT_URI_SEARCH = BASE_CONTENT_URI.buildUpon()
+                .appendPath("search")
+                .appendPath(SearchManager.SUGGEST_URI_PATH_QUERY)
+                .build();
+
+        // Returns the Uri searching for the given text.
+        public static Uri buildSearchUri(String query, int limit) {
+            return CONTENT_URI_SEARCH.buildUpon()
+                    .appendPath(query)
+                    .appendQueryParameter(SearchManager.SUGGEST_PARAMETER_LIMIT,
+                            String.valueOf(limit))
+                    .build();
+        }
+
         // Returns the Uri referencing a video with the specified id.
         public static Uri buildVideoUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
+
+        // Returns the Uri of the rows of one category, its cursors are notified only when rows
+        // of that category change.
+        public static Uri buildCategoryUri(Uri contentUri, String category) {
+            return contentUri.buildUpon()
+                    .appendPath(PATH_CATEGORY)
+                    .appendPath(category)
+                    .build();
+        }
+
+        // Returns the Uri to bulk insert into when replacing all rows of a profile.
+        public static Uri buildSyncUri(Uri contentUri, String profile) {
+            return contentUri.buildUpon()
+                    .appendQueryParameter(PARAM_SYNC_PROFILE, profile)
+                    .build();
+        }
     }
 }
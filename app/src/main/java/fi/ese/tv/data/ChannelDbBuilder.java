@@ -28,7 +28,6 @@ import org.json.JSONObject;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -48,6 +47,9 @@ public class ChannelDbBuilder {
 
     private Context mContext;
 
+    // Validators of the last response returned by fetchIfChanged.
+    private ResponseValidatorCache.Entry mPendingResponse;
+
     /**
      * Default constructor that can be used for tests
      */
@@ -66,10 +68,33 @@ public class ChannelDbBuilder {
     public @NonNull List<ContentValues> fetch(String auth, String url, String base)
             throws IOException, JSONException {
 
-        JSONObject videoData = fetchJSON(auth, url);
+        JSONObject videoData = fetchJSON(auth, url, null);
         return buildMedia(videoData, auth, url, base);
     }
 
+    /**
+     * Like {@link #fetch}, but returns null without parsing anything if the box returns the
+     * same response as at the last committed fetch. Call {@link #commitResponse()} once the
+     * returned rows have been stored.
+     */
+    public List<ContentValues> fetchIfChanged(String auth, String url, String base)
+            throws IOException, JSONException {
+
+        ResponseValidatorCache validators = ResponseValidatorCache.getInstance(mContext);
+        JSONObject videoData = fetchJSON(auth, url, validators);
+        return videoData == null ? null : buildMedia(videoData, auth, url, base);
+    }
+
+    /**
+     * Remembers the response of the last {@link #fetchIfChanged} as stored.
+     */
+    public void commitResponse() {
+        if (mPendingResponse != null) {
+            mPendingResponse.commit();
+            mPendingResponse = null;
+        }
+    }
+
     /**
      * Takes the contents of a JSON object and populates the database
      * @param jsonObj The JSON object of videos
@@ -79,13 +104,16 @@ public class ChannelDbBuilder {
 
         JSONArray categoryArray = jsonObj.getJSONArray(TAG_GOOGLE_VIDEOS);
         List<ContentValues> contentValues = new ArrayList<>();
+        // Services listed in several bouquets share their name and reference.
+        StringPool pool = new StringPool();
+        int position = 0;
 
         for (int i = 0; i < categoryArray.length(); i++) {
             JSONArray videoArray;
 
             JSONObject category = categoryArray.getJSONObject(i);
-            String categoryName = category.getString(TAG_TITLE);
-            String servicereferenceName = category.getString(TAG_CATEGORY);
+            String categoryName = pool.intern(category.getString(TAG_TITLE));
+            String servicereferenceName = pool.intern(category.getString(TAG_CATEGORY));
             videoArray = category.getJSONArray(TAG_MEDIA);
 
             ContentValues contentValue = new ContentValues();
@@ -93,17 +121,20 @@ public class ChannelDbBuilder {
             contentValue.put(ChannelContract.VideoEntry.COLUMN_NAME, "EPG");
             contentValue.put(ChannelContract.VideoEntry.COLUMN_DESC, "Program info for " + categoryName);
             contentValue.put(ChannelContract.VideoEntry.COLUMN_STREAM_URL, servicereferenceName);
+            contentValue.put(ChannelContract.VideoEntry.COLUMN_SERVICE_REF, servicereferenceName);
+            contentValue.put(ChannelContract.VideoEntry.COLUMN_POSITION, position++);
             contentValues.add(contentValue);
 
             for (int j = 0; j < videoArray.length(); j++) {
                 JSONObject video = videoArray.getJSONObject(j);
 
-                String temp = video.optString(TAG_SOURCES).replaceAll(".$", "");
+                String serviceRef = pool.intern(video.optString(TAG_SOURCES));
+                String temp = serviceRef.replaceAll(".$", "");
                 String imageRef = temp.replaceAll(":", "_");
                 String imageUrl = url + "picon/" + imageRef + ".png";
-                String title = video.optString(TAG_TITLE);
+                String title = pool.intern(video.optString(TAG_TITLE));
                 String description = title;
-                String videoUrl = base + video.optString(TAG_SOURCES);
+                String videoUrl = base + serviceRef;
                 String bgImageUrl = imageUrl;
                 String cardImageUrl = imageUrl;
 
@@ -117,6 +148,8 @@ public class ChannelDbBuilder {
                 contentValue.put(ChannelContract.VideoEntry.COLUMN_AUTH, auth);
                 contentValue.put(ChannelContract.VideoEntry.COLUMN_IS_LIVE, true);
                 contentValue.put(ChannelContract.VideoEntry.COLUMN_IS_RECORDING, false);
+                contentValue.put(ChannelContract.VideoEntry.COLUMN_SERVICE_REF, serviceRef);
+                contentValue.put(ChannelContract.VideoEntry.COLUMN_POSITION, position++);
 
                 // Fixed defaults.
                 contentValue.put(ChannelContract.VideoEntry.COLUMN_IS_LIVE, true);
@@ -130,36 +163,45 @@ public class ChannelDbBuilder {
     /**
      * Fetch JSON object from a given URL.
      *
-     * @return the JSONObject representation of the response
+     * @param validators The cache to make the request conditional on, or null
+     * @return the JSONObject representation of the response, or null if it is unchanged
      * @throws JSONException
      * @throws IOException
      */
-    private JSONObject fetchJSON(String auth, String urlString) throws JSONException, IOException {
+    private JSONObject fetchJSON(String auth, String urlString,
+            ResponseValidatorCache validators) throws JSONException, IOException {
         BufferedReader reader = null;
-        java.net.URL url = new java.net.URL(urlString + "api/getallservices");
-        HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
+        String url = urlString + "api/getallservices";
         Log.d("ESETV", "fetch services: " + urlString);
+        BoxHttpClient.Response response =
+                BoxHttpClient.getInstance().get(auth, url, validators);
+        String json;
         try {
-            urlConnection.setRequestProperty("Authorization", auth);
-
-            reader = new BufferedReader(new InputStreamReader(urlConnection.getInputStream(),
-                    "utf-8"));
+            if (response.isNotModified()) {
+                Log.d(TAG, "Not modified: " + url);
+                return null;
+            }
+            reader = new BufferedReader(new InputStreamReader(response.body, "utf-8"));
             StringBuilder sb = new StringBuilder();
             String line;
             while ((line = reader.readLine()) != null) {
                 sb.append(line);
             }
-            String json = sb.toString();
-            return new JSONObject(json);
+            json = sb.toString();
         } finally {
-            urlConnection.disconnect();
-            if (null != reader) {
-                try {
-                    reader.close();
-                } catch (IOException e) {
-                    Log.e(TAG, "JSON feed closed", e);
-                }
+            try {
+                response.close();
+            } catch (IOException e) {
+                Log.e(TAG, "JSON feed closed", e);
+            }
+        }
+
+        if (validators != null) {
+            if (validators.hasSameContent(url, response.getContentHash())) {
+                return null;
             }
+            mPendingResponse = validators.pending(url, response);
         }
+        return new JSONObject(json);
     }
 }
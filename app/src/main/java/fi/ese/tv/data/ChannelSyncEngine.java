@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.ese.tv.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import fi.ese.tv.data.ChannelContract.VideoEntry;
+
+/**
+ * ChannelSyncEngine replaces the channels or recordings of one profile with a freshly downloaded
+ * lineup. Rows are matched on their natural key, (profile, category, service reference) for
+ * channels and (profile, filename) for recordings, and only the difference is written. Rows
+ * are compared as the channel view returns them and written through {@link LineupStore}.
+ */
+public class ChannelSyncEngine {
+
+    /**
+     * Counts of the rows touched by a sync.
+     */
+    public static final class Result {
+        public int inserted;
+        public int updated;
+        public int deleted;
+        public int unchanged;
+        // Bouquets of the box no row lists anymore, removed with their epg.
+        public int removedBouquets;
+
+        // Categories with inserted, updated or deleted rows.
+        public final Set<String> categories = new HashSet<>();
+
+        // Ids of the rows updated or deleted.
+        public final List<Long> changedIds = new ArrayList<>();
+
+        public boolean isChanged() {
+            return inserted + updated + deleted > 0;
+        }
+
+        @Override
+        public String toString() {
+            return "inserted=" + inserted + ", updated=" + updated + ", deleted=" + deleted
+                    + ", unchanged=" + unchanged + ", removedBouquets=" + removedBouquets;
+        }
+    }
+
+    private ChannelSyncEngine() {
+    }
+
+    /**
+     * Computes the delta between the stored rows of a profile and the given rows and applies it
+     * in one transaction.
+     * @param db The writable database
+     * @param profile The name of the profile the rows belong to
+     * @param recordings Whether the rows are recordings or channels
+     * @param values The complete new set of rows of the profile
+     */
+    public static Result sync(SQLiteDatabase db, String profile, boolean recordings,
+            ContentValues[] values) {
+        Result result = new Result();
+
+        db.beginTransactionNonExclusive();
+        try {
+            LineupStore store = new LineupStore(db);
+            Map<String, ContentValues> existing = loadExisting(db, profile, recordings);
+            Set<String> seen = new HashSet<>();
+
+            for (ContentValues value : values) {
+                value.put(VideoEntry.COLUMN_PROFILE, profile);
+                value.put(VideoEntry.COLUMN_IS_RECORDING, recordings);
+
+                String key = keyOf(value, recordings);
+                if (!seen.add(key)) {
+                    // The box listed the same entry twice, the first one wins.
+                    continue;
+                }
+
+                ContentValues stored = existing.remove(key);
+                if (stored == null) {
+                    db.insert(VideoEntry.TABLE_NAME, null, store.toChannelRow(value));
+                    result.inserted++;
+                    result.categories.add(value.getAsString(VideoEntry.COLUMN_CATEGORY));
+                } else if (isDifferent(stored, value)) {
+                    db.update(VideoEntry.TABLE_NAME, store.toChannelRow(value),
+                            VideoEntry._ID + " = ?",
+                            new String[]{stored.getAsString(VideoEntry._ID)});
+                    result.updated++;
+                    result.categories.add(stored.getAsString(VideoEntry.COLUMN_CATEGORY));
+                    result.categories.add(value.getAsString(VideoEntry.COLUMN_CATEGORY));
+                    result.changedIds.add(stored.getAsLong(VideoEntry._ID));
+                } else {
+                    result.unchanged++;
+                }
+            }
+
+            for (ContentValues stale : existing.values()) {
+                db.delete(VideoEntry.TABLE_NAME, VideoEntry._ID + " = ?",
+                        new String[]{stale.getAsString(VideoEntry._ID)});
+                result.deleted++;
+                result.categories.add(stale.getAsString(VideoEntry.COLUMN_CATEGORY));
+                result.changedIds.add(stale.getAsLong(VideoEntry._ID));
+            }
+            result.removedBouquets = store.removeUnlisted(store.boxId(profile));
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return result;
+    }
+
+    private static Map<String, ContentValues> loadExisting(SQLiteDatabase db, String profile,
+            boolean recordings) {
+        Map<String, ContentValues> existing = new HashMap<>();
+        Cursor cursor = db.query(VideoEntry.VIEW_NAME, null,
+                VideoEntry.COLUMN_PROFILE + " = ? AND " + VideoEntry.COLUMN_IS_RECORDING + " = ?",
+                new String[]{profile, recordings ? "1" : "0"}, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                ContentValues stored = new ContentValues();
+                DatabaseUtils.cursorRowToContentValues(cursor, stored);
+                existing.put(keyOf(stored, recordings), stored);
+            }
+        } finally {
+            cursor.close();
+        }
+        return existing;
+    }
+
+    private static String keyOf(ContentValues value, boolean recordings) {
+        if (recordings) {
+            return String.valueOf(value.getAsString(VideoEntry.COLUMN_FILENAME));
+        }
+        return value.getAsString(VideoEntry.COLUMN_CATEGORY) + '\u0000'
+                + value.getAsString(VideoEntry.COLUMN_SERVICE_REF);
+    }
+
+    /**
+     * Compares the columns of the new row against the stored row. Columns the new row does not
+     * set are left as they are.
+     */
+    private static boolean isDifferent(ContentValues stored, ContentValues value) {
+        for (String column : value.keySet()) {
+            String newValue = asText(value.get(column));
+            String oldValue = stored.getAsString(column);
+            if (newValue == null ? oldValue != null : !newValue.equals(oldValue)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Booleans are stored as integers, so compare them the way SQLite returns them.
+    private static String asText(Object value) {
+        if (value instanceof Boolean) {
+            return ((Boolean) value) ? "1" : "0";
+        }
+        return value == null ? null : value.toString();
+    }
+}
@@ -19,102 +19,529 @@ package fi.ese.tv.data;
 import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.text.TextUtils;
+import android.util.Log;
 
 import fi.ese.tv.data.ChannelContract.VideoEntry;
+import fi.ese.tv.data.EpgContract.EpgEntry;
+import fi.ese.tv.data.EpgContract.WindowEntry;
+import fi.ese.tv.data.LineupContract.BouquetEntry;
+import fi.ese.tv.data.LineupContract.BoxEntry;
+import fi.ese.tv.data.LineupContract.ServiceEntry;
+import fi.ese.tv.data.ProfileContract.ProfileEntry;
 
 /**
  * DatabaseHelper manages the creation and upgrade of the database used in this sample.
+ *
+ * Channels and epg events refer to the box, bouquet and service tables instead of repeating
+ * their names, references, urls and auth on every row. Queries read the channel and epg views,
+ * which resolve those back into the columns of the contracts.
  */
 public class DatabaseHelper extends SQLiteOpenHelper {
+    private static final String TAG = "DatabaseHelper";
 
     // Change this when you change the database schema.
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 12;
 
     // The name of our database.
     private static final String DATABASE_NAME = "leanback.db";
 
+    private final Context mContext;
+
+    // Whether the file was upgraded from before version 12 and still has to be vacuumed once.
+    private boolean mVacuumPending;
+
     public DatabaseHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        mContext = context;
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+        // Freed pages are kept for EpgRetention to give back in small steps. The mode has to
+        // be set before write-ahead logging writes the header of a new file, on an older file
+        // it takes effect with the vacuum after the upgrade to version 12.
+        db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+        // Loaders read from pooled connections against the last committed snapshot while a
+        // sync is writing, instead of waiting for its transaction to finish.
+        db.enableWriteAheadLogging();
+    }
+
+    /**
+     * Creates the box, bouquet and service tables the channel and epg rows refer to.
+     */
+    public void createLineup(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + BoxEntry.TABLE_NAME + " (" +
+                BoxEntry._ID + " INTEGER PRIMARY KEY, " +
+                BoxEntry.COLUMN_NAME + " TEXT NOT NULL UNIQUE, " +
+                BoxEntry.COLUMN_AUTH + " TEXT, " +
+                BoxEntry.COLUMN_WEB_URL + " TEXT, " +
+                BoxEntry.COLUMN_STREAM_URL + " TEXT" +
+                " );");
+
+        // The key leads with the name, so it also serves the rows of a browse category.
+        db.execSQL("CREATE TABLE " + BouquetEntry.TABLE_NAME + " (" +
+                BouquetEntry._ID + " INTEGER PRIMARY KEY, " +
+                BouquetEntry.COLUMN_BOX_ID + " INTEGER NOT NULL, " +
+                BouquetEntry.COLUMN_NAME + " TEXT NOT NULL, " +
+                BouquetEntry.COLUMN_BREF + " TEXT, " +
+                "UNIQUE (" + BouquetEntry.COLUMN_NAME + ", " + BouquetEntry.COLUMN_BOX_ID + ")" +
+                " );");
+        db.execSQL("CREATE INDEX bouquet_bref ON " + BouquetEntry.TABLE_NAME + " (" +
+                BouquetEntry.COLUMN_BREF + ");");
+
+        // The key leads with the reference, so it also serves the epg of a service.
+        db.execSQL("CREATE TABLE " + ServiceEntry.TABLE_NAME + " (" +
+                ServiceEntry._ID + " INTEGER PRIMARY KEY, " +
+                ServiceEntry.COLUMN_BOX_ID + " INTEGER NOT NULL, " +
+                ServiceEntry.COLUMN_SREF + " TEXT NOT NULL, " +
+                ServiceEntry.COLUMN_NAME + " TEXT, " +
+                "UNIQUE (" + ServiceEntry.COLUMN_SREF + ", " + ServiceEntry.COLUMN_BOX_ID + ")" +
+                " );");
     }
 
     public void createVideo(SQLiteDatabase db) {
-        // Create a table to hold videos.
+        createLineup(db);
+
+        // Create a table to hold videos. The urls and auth are only stored when they differ
+        // from the ones the view derives from the box.
         final String createTable = "CREATE TABLE " + VideoEntry.TABLE_NAME + " (" +
                 VideoEntry._ID + " INTEGER PRIMARY KEY," +
-                VideoEntry.COLUMN_CATEGORY + " TEXT, " +
-                VideoEntry.COLUMN_STREAM_URL + " TEXT, " + // Make the URL unique.
+                VideoEntry.COLUMN_BOUQUET_ID + " INTEGER NOT NULL, " +
+                VideoEntry.COLUMN_SERVICE_ID + " INTEGER, " +
                 VideoEntry.COLUMN_NAME + " TEXT NOT NULL, " +
                 VideoEntry.COLUMN_DESC + " TEXT, " +
+                VideoEntry.COLUMN_STREAM_URL + " TEXT, " +
                 VideoEntry.COLUMN_AUTH + " TEXT, " +
                 VideoEntry.COLUMN_BG_IMAGE_URL + " TEXT, " +
                 VideoEntry.COLUMN_CARD_IMG + " TEXT, " +
                 VideoEntry.COLUMN_IS_LIVE + " INTEGER DEFAULT 0, " +
                 VideoEntry.COLUMN_IS_RECORDING + " INTEGER DEFAULT 0, " +
                 VideoEntry.COLUMN_FILENAME + " TEXT, " +
-                VideoEntry.COLUMN_LENGTH + " TEXT " +
+                VideoEntry.COLUMN_LENGTH + " TEXT, " +
+                VideoEntry.COLUMN_PROFILE + " TEXT, " +
+                VideoEntry.COLUMN_POSITION + " INTEGER DEFAULT 0 " +
                 " );";
 
         // Do the creating of the databases.
         db.execSQL(createTable);
+        createChannelKeys(db);
+
+        db.execSQL("CREATE VIEW " + VideoEntry.VIEW_NAME + " AS SELECT " +
+                "c." + VideoEntry._ID + " AS " + VideoEntry._ID + ", " +
+                "b." + BouquetEntry.COLUMN_NAME + " AS " + VideoEntry.COLUMN_CATEGORY + ", " +
+                // Live channels stream from the box, a bouquet row links to its bouquet.
+                "COALESCE(c." + VideoEntry.COLUMN_STREAM_URL + ", CASE WHEN c."
+                + VideoEntry.COLUMN_IS_LIVE + " THEN x." + BoxEntry.COLUMN_STREAM_URL + " || s."
+                + ServiceEntry.COLUMN_SREF + " ELSE b." + BouquetEntry.COLUMN_BREF + " END) AS "
+                + VideoEntry.COLUMN_STREAM_URL + ", " +
+                "c." + VideoEntry.COLUMN_NAME + " AS " + VideoEntry.COLUMN_NAME + ", " +
+                "c." + VideoEntry.COLUMN_DESC + " AS " + VideoEntry.COLUMN_DESC + ", " +
+                "COALESCE(c." + VideoEntry.COLUMN_AUTH + ", x." + BoxEntry.COLUMN_AUTH + ") AS "
+                + VideoEntry.COLUMN_AUTH + ", " +
+                "COALESCE(c." + VideoEntry.COLUMN_BG_IMAGE_URL + ", " + LineupStore.PICON_SQL
+                + ") AS " + VideoEntry.COLUMN_BG_IMAGE_URL + ", " +
+                "COALESCE(c." + VideoEntry.COLUMN_CARD_IMG + ", " + LineupStore.PICON_SQL
+                + ") AS " + VideoEntry.COLUMN_CARD_IMG + ", " +
+                "c." + VideoEntry.COLUMN_IS_LIVE + " AS " + VideoEntry.COLUMN_IS_LIVE + ", " +
+                "c." + VideoEntry.COLUMN_IS_RECORDING + " AS " + VideoEntry.COLUMN_IS_RECORDING
+                + ", " +
+                "c." + VideoEntry.COLUMN_FILENAME + " AS " + VideoEntry.COLUMN_FILENAME + ", " +
+                "c." + VideoEntry.COLUMN_LENGTH + " AS " + VideoEntry.COLUMN_LENGTH + ", " +
+                "c." + VideoEntry.COLUMN_PROFILE + " AS " + VideoEntry.COLUMN_PROFILE + ", " +
+                "COALESCE(s." + ServiceEntry.COLUMN_SREF + ", b." + BouquetEntry.COLUMN_BREF
+                + ") AS " + VideoEntry.COLUMN_SERVICE_REF + ", " +
+                "c." + VideoEntry.COLUMN_POSITION + " AS " + VideoEntry.COLUMN_POSITION + ", " +
+                "c." + VideoEntry.COLUMN_BOUQUET_ID + " AS " + VideoEntry.COLUMN_BOUQUET_ID
+                + ", " +
+                "c." + VideoEntry.COLUMN_SERVICE_ID + " AS " + VideoEntry.COLUMN_SERVICE_ID +
+                " FROM " + VideoEntry.TABLE_NAME + " c" +
+                " JOIN " + BouquetEntry.TABLE_NAME + " b ON b." + BouquetEntry._ID + " = c."
+                + VideoEntry.COLUMN_BOUQUET_ID +
+                " JOIN " + BoxEntry.TABLE_NAME + " x ON x." + BoxEntry._ID + " = b."
+                + BouquetEntry.COLUMN_BOX_ID +
+                " LEFT JOIN " + ServiceEntry.TABLE_NAME + " s ON s." + ServiceEntry._ID + " = c."
+                + VideoEntry.COLUMN_SERVICE_ID + ";");
+    }
+
+    private void createChannelKeys(SQLiteDatabase db) {
+        // A service is listed once per bouquet. The key leads with the service, so it also
+        // serves the channels an epg search hit is joined to.
+        final String createServiceKey = "CREATE UNIQUE INDEX channel_service_key ON " +
+                VideoEntry.TABLE_NAME + " (" +
+                VideoEntry.COLUMN_SERVICE_ID + ", " +
+                VideoEntry.COLUMN_BOUQUET_ID + ");";
+
+        // A recording is identified by its file on the profile.
+        final String createRecordingKey = "CREATE UNIQUE INDEX channel_recording_key ON " +
+                VideoEntry.TABLE_NAME + " (" +
+                VideoEntry.COLUMN_PROFILE + ", " +
+                VideoEntry.COLUMN_FILENAME + ");";
+
+        db.execSQL(createServiceKey);
+        db.execSQL(createRecordingKey);
+    }
+
+    /**
+     * Creates the indexes of the browse, grid and epg queries. The detail and global search
+     * lookups go by _id, which is the rowid and needs no index.
+     */
+    public void createIndexes(SQLiteDatabase db) {
+        // Rows of the browse screen, in lineup order.
+        db.execSQL("CREATE INDEX IF NOT EXISTS channel_category ON " + VideoEntry.TABLE_NAME
+                + " (" + VideoEntry.COLUMN_BOUQUET_ID + ", " + VideoEntry.COLUMN_POSITION + ");");
+
+        // The channel and recording grids, and the rows a sync compares against.
+        db.execSQL("CREATE INDEX IF NOT EXISTS channel_recording ON " + VideoEntry.TABLE_NAME
+                + " (" + VideoEntry.COLUMN_IS_RECORDING + ", " + VideoEntry.COLUMN_PROFILE + ", "
+                + VideoEntry.COLUMN_POSITION + ");");
+
+        // The epg of a bouquet, also used when a staged download replaces it.
+        db.execSQL("CREATE INDEX IF NOT EXISTS epg_bref ON " + EpgEntry.TABLE_NAME
+                + " (" + EpgEntry.COLUMN_BOUQUET_ID + ", " + EpgEntry.COLUMN_BEGIN_TIMESTAMP
+                + ");");
+
+        // The epg of a service, in order of begin time.
+        db.execSQL("CREATE INDEX IF NOT EXISTS epg_sref ON " + EpgEntry.TABLE_NAME
+                + " (" + EpgEntry.COLUMN_SERVICE_ID + ", " + EpgEntry.COLUMN_BEGIN_TIMESTAMP
+                + ");");
+
+        // The finished events EpgRetention deletes.
+        db.execSQL("CREATE INDEX IF NOT EXISTS epg_begin ON " + EpgEntry.TABLE_NAME
+                + " (" + EpgEntry.COLUMN_BEGIN_TIMESTAMP + ");");
+    }
+
+    public void dropIndexes(SQLiteDatabase db) {
+        db.execSQL("DROP INDEX IF EXISTS channel_category;");
+        db.execSQL("DROP INDEX IF EXISTS channel_recording;");
+        db.execSQL("DROP INDEX IF EXISTS epg_bref;");
+        db.execSQL("DROP INDEX IF EXISTS epg_sref;");
+        db.execSQL("DROP INDEX IF EXISTS epg_begin;");
     }
 
     public void createEpg(SQLiteDatabase db) {
         // Create a table to hold videos.
-        final String createTable = "CREATE TABLE " + EpgContract.EpgEntry.TABLE_NAME + " (" +
-                EpgContract.EpgEntry._ID + " INTEGER PRIMARY KEY," +
-                EpgContract.EpgEntry.COLUMN_SNAME + " TEXT, " +
-                EpgContract.EpgEntry.COLUMN_TITLE + " TEXT, " +
-                EpgContract.EpgEntry.COLUMN_BEGIN_TIMESTAMP + " INTEGER NOT NULL, " +
-                EpgContract.EpgEntry.COLUMN_NOW_TIMESTAMP + " INTEGER, " +
-                EpgContract.EpgEntry.COLUMN_SREF + " TEXT, " +
-                EpgContract.EpgEntry.COLUMN_BREF + " TEXT, " +
-                EpgContract.EpgEntry.COLUMN_GENRE + " TEXT, " +
-                EpgContract.EpgEntry.COLUMN_DURATION_SEC + " INTEGER, " +
-                EpgContract.EpgEntry.COLUMN_SHORTDESC + " TEXT, " +
-                EpgContract.EpgEntry.COLUMN_GENREID + " INTEGER, " +
-                EpgContract.EpgEntry.COLUMN_LONGDESC + " TEXT " +
+        final String createTable = "CREATE TABLE " + EpgEntry.TABLE_NAME + " (" +
+                EpgEntry._ID + " INTEGER PRIMARY KEY," +
+                EpgEntry.COLUMN_SERVICE_ID + " INTEGER NOT NULL, " +
+                EpgEntry.COLUMN_BOUQUET_ID + " INTEGER NOT NULL, " +
+                EpgEntry.COLUMN_TITLE + " TEXT, " +
+                EpgEntry.COLUMN_BEGIN_TIMESTAMP + " INTEGER NOT NULL, " +
+                EpgEntry.COLUMN_NOW_TIMESTAMP + " INTEGER, " +
+                EpgEntry.COLUMN_GENRE + " TEXT, " +
+                EpgEntry.COLUMN_DURATION_SEC + " INTEGER, " +
+                EpgEntry.COLUMN_SHORTDESC + " TEXT, " +
+                EpgEntry.COLUMN_GENREID + " INTEGER, " +
+                EpgEntry.COLUMN_LONGDESC + " TEXT, " +
+                EpgEntry.COLUMN_EVENT_ID + " INTEGER" +
                 " );";
 
         // Do the creating of the databases.
         db.execSQL(createTable);
+        createEpgKeys(db);
+        createEpgView(db);
+        createEpgWindows(db);
+    }
+
+    private void createEpgKeys(SQLiteDatabase db) {
+        // An event is stored once per bouquet, a window downloaded again replaces its events
+        // by their ids. Events without an id are not keyed.
+        db.execSQL("CREATE UNIQUE INDEX epg_event_key ON " + EpgEntry.TABLE_NAME + " ("
+                + EpgEntry.COLUMN_BOUQUET_ID + ", " + EpgEntry.COLUMN_SERVICE_ID + ", "
+                + EpgEntry.COLUMN_EVENT_ID + ");");
+    }
+
+    private void createEpgView(SQLiteDatabase db) {
+        db.execSQL("CREATE VIEW " + EpgEntry.VIEW_NAME + " AS SELECT " +
+                "e." + EpgEntry._ID + " AS " + EpgEntry._ID + ", " +
+                "s." + ServiceEntry.COLUMN_NAME + " AS " + EpgEntry.COLUMN_SNAME + ", " +
+                "e." + EpgEntry.COLUMN_TITLE + " AS " + EpgEntry.COLUMN_TITLE + ", " +
+                "e." + EpgEntry.COLUMN_BEGIN_TIMESTAMP + " AS " + EpgEntry.COLUMN_BEGIN_TIMESTAMP
+                + ", " +
+                "e." + EpgEntry.COLUMN_NOW_TIMESTAMP + " AS " + EpgEntry.COLUMN_NOW_TIMESTAMP
+                + ", " +
+                "IFNULL(x." + BoxEntry.COLUMN_STREAM_URL + ", '') || s." + ServiceEntry.COLUMN_SREF
+                + " AS " + EpgEntry.COLUMN_SREF + ", " +
+                "b." + BouquetEntry.COLUMN_BREF + " AS " + EpgEntry.COLUMN_BREF + ", " +
+                "e." + EpgEntry.COLUMN_GENRE + " AS " + EpgEntry.COLUMN_GENRE + ", " +
+                "e." + EpgEntry.COLUMN_DURATION_SEC + " AS " + EpgEntry.COLUMN_DURATION_SEC + ", " +
+                "e." + EpgEntry.COLUMN_SHORTDESC + " AS " + EpgEntry.COLUMN_SHORTDESC + ", " +
+                "e." + EpgEntry.COLUMN_GENREID + " AS " + EpgEntry.COLUMN_GENREID + ", " +
+                "e." + EpgEntry.COLUMN_LONGDESC + " AS " + EpgEntry.COLUMN_LONGDESC + ", " +
+                "e." + EpgEntry.COLUMN_EVENT_ID + " AS " + EpgEntry.COLUMN_EVENT_ID + ", " +
+                "s." + ServiceEntry.COLUMN_SREF + " AS " + EpgEntry.COLUMN_SERVICE_REF + ", " +
+                "x." + BoxEntry.COLUMN_NAME + " AS " + EpgEntry.COLUMN_PROFILE + ", " +
+                "e." + EpgEntry.COLUMN_SERVICE_ID + " AS " + EpgEntry.COLUMN_SERVICE_ID + ", " +
+                "e." + EpgEntry.COLUMN_BOUQUET_ID + " AS " + EpgEntry.COLUMN_BOUQUET_ID +
+                " FROM " + EpgEntry.TABLE_NAME + " e" +
+                " JOIN " + BouquetEntry.TABLE_NAME + " b ON b." + BouquetEntry._ID + " = e."
+                + EpgEntry.COLUMN_BOUQUET_ID +
+                " JOIN " + ServiceEntry.TABLE_NAME + " s ON s." + ServiceEntry._ID + " = e."
+                + EpgEntry.COLUMN_SERVICE_ID +
+                " JOIN " + BoxEntry.TABLE_NAME + " x ON x." + BoxEntry._ID + " = s."
+                + ServiceEntry.COLUMN_BOX_ID + ";");
+    }
+
+    /**
+     * Creates the table of the time windows of the epg of every bouquet that have been
+     * downloaded, so only the windows missing or stale are downloaded again.
+     */
+    private void createEpgWindows(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + WindowEntry.TABLE_NAME + " (" +
+                WindowEntry.COLUMN_BOUQUET_ID + " INTEGER NOT NULL, " +
+                WindowEntry.COLUMN_WINDOW_START + " INTEGER NOT NULL, " +
+                WindowEntry.COLUMN_WINDOW_END + " INTEGER NOT NULL, " +
+                WindowEntry.COLUMN_FETCHED + " INTEGER NOT NULL, " +
+                WindowEntry.COLUMN_BYTES + " INTEGER DEFAULT 0, " +
+                WindowEntry.COLUMN_EVENTS + " INTEGER DEFAULT 0, " +
+                WindowEntry.COLUMN_WRITTEN + " INTEGER DEFAULT 0, " +
+                WindowEntry.COLUMN_SKIPPED + " INTEGER DEFAULT 0, " +
+                "PRIMARY KEY (" + WindowEntry.COLUMN_BOUQUET_ID + ", "
+                + WindowEntry.COLUMN_WINDOW_START + ")" +
+                " );");
+    }
+
+    /**
+     * Creates the table downloads are staged in. Staged rows keep the names and references of
+     * the download, they are resolved into services and bouquets when the download is swapped
+     * in. The resolved service and the event id key a staged row to the stored event it
+     * updates.
+     */
+    public void createEpgStaging(SQLiteDatabase db) {
+        final String createTable = "CREATE TABLE " + EpgEntry.STAGING_TABLE_NAME + " (" +
+                EpgEntry._ID + " INTEGER PRIMARY KEY," +
+                EpgEntry.COLUMN_SNAME + " TEXT, " +
+                EpgEntry.COLUMN_TITLE + " TEXT, " +
+                EpgEntry.COLUMN_BEGIN_TIMESTAMP + " INTEGER NOT NULL, " +
+                EpgEntry.COLUMN_NOW_TIMESTAMP + " INTEGER, " +
+                EpgEntry.COLUMN_SERVICE_REF + " TEXT, " +
+                EpgEntry.COLUMN_BREF + " TEXT, " +
+                EpgEntry.COLUMN_GENRE + " TEXT, " +
+                EpgEntry.COLUMN_DURATION_SEC + " INTEGER, " +
+                EpgEntry.COLUMN_SHORTDESC + " TEXT, " +
+                EpgEntry.COLUMN_GENREID + " INTEGER, " +
+                EpgEntry.COLUMN_LONGDESC + " TEXT, " +
+                EpgEntry.COLUMN_EVENT_ID + " INTEGER, " +
+                EpgEntry.COLUMN_SERVICE_ID + " INTEGER, " +
+                EpgEntry.COLUMN_SESSION + " TEXT NOT NULL" +
+                " );";
+
+        db.execSQL(createTable);
+        createEpgStagingKey(db);
+    }
+
+    private void createEpgStagingKey(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX epg_staging_key ON " + EpgEntry.STAGING_TABLE_NAME
+                + " (" + EpgEntry.COLUMN_SESSION + ", " + EpgEntry.COLUMN_SERVICE_ID + ", "
+                + EpgEntry.COLUMN_EVENT_ID + ");");
     }
 
     public void createProfile(SQLiteDatabase db) {
+        createProfileTable(db, ProfileEntry.TABLE_NAME);
+        createBoxTriggers(db);
+    }
+
+    private void createProfileTable(SQLiteDatabase db, String table) {
         // Create a table to hold videos.
-        final String createTable = "CREATE TABLE " + ProfileContract.ProfileEntry.TABLE_NAME + " (" +
-                ProfileContract.ProfileEntry._ID + " INTEGER PRIMARY KEY," +
-                ProfileContract.ProfileEntry.COLUMN_NAME + " TEXT, " +
-                ProfileContract.ProfileEntry.COLUMN_USERNAME + " TEXT, " +
-                ProfileContract.ProfileEntry.COLUMN_PASSWORD + " TEXT, " +
-                ProfileContract.ProfileEntry.COLUMN_AUTH + " TEXT, " +
-                ProfileContract.ProfileEntry.COLUMN_WEB_ADDRESS + " TEXT, " +
-                ProfileContract.ProfileEntry.COLUMN_WEB_PORT + " INTEGER NOT NULL, " +
-                ProfileContract.ProfileEntry.COLUMN_STREAM_PORT + " INTEGER NOT NULL" +
+        final String createTable = "CREATE TABLE " + table + " (" +
+                ProfileEntry._ID + " INTEGER PRIMARY KEY," +
+                ProfileEntry.COLUMN_NAME + " TEXT, " +
+                ProfileEntry.COLUMN_USERNAME + " TEXT, " +
+                ProfileEntry.COLUMN_PASSWORD + " TEXT, " +
+                ProfileEntry.COLUMN_AUTH + " TEXT, " +
+                ProfileEntry.COLUMN_WEB_ADDRESS + " TEXT, " +
+                ProfileEntry.COLUMN_WEB_PORT + " INTEGER NOT NULL, " +
+                ProfileEntry.COLUMN_STREAM_PORT + " INTEGER NOT NULL" +
                 " );";
 
         // Do the creating of the databases.
         db.execSQL(createTable);
     }
 
+    /**
+     * Keeps the box of every profile up to date with its urls and auth, the way BoxProfile
+     * builds them. A box is not removed with its profile here, a fetch of the profiles deletes
+     * and inserts them all in one batch, the provider removes the boxes left without a profile
+     * when the batch ends.
+     */
+    private void createBoxTriggers(SQLiteDatabase db) {
+        final String body = " BEGIN INSERT OR IGNORE INTO " + BoxEntry.TABLE_NAME + " ("
+                + BoxEntry.COLUMN_NAME + ") VALUES (new." + ProfileEntry.COLUMN_NAME + "); "
+                + "UPDATE " + BoxEntry.TABLE_NAME + " SET "
+                + BoxEntry.COLUMN_AUTH + " = new." + ProfileEntry.COLUMN_AUTH + ", "
+                + BoxEntry.COLUMN_WEB_URL + " = new." + ProfileEntry.COLUMN_WEB_ADDRESS
+                + " || ':' || new." + ProfileEntry.COLUMN_WEB_PORT + " || '/', "
+                + BoxEntry.COLUMN_STREAM_URL + " = new." + ProfileEntry.COLUMN_WEB_ADDRESS
+                + " || ':' || new." + ProfileEntry.COLUMN_STREAM_PORT + " || '/'"
+                + " WHERE " + BoxEntry.COLUMN_NAME + " = new." + ProfileEntry.COLUMN_NAME
+                + "; END;";
+        db.execSQL("CREATE TRIGGER profile_box_ai AFTER INSERT ON " + ProfileEntry.TABLE_NAME
+                + body);
+        db.execSQL("CREATE TRIGGER profile_box_au AFTER UPDATE ON " + ProfileEntry.TABLE_NAME
+                + body);
+    }
+
     @Override
     public void onCreate(SQLiteDatabase db) {
         createVideo(db);
         createEpg(db);
+        createEpgStaging(db);
         createProfile(db);
+        createIndexes(db);
+        SearchIndex.create(db);
+
+        forgetSyncs();
+    }
+
+    // The tables are empty, so a response must not be skipped as unchanged, nor a dataset
+    // served as fresh.
+    private void forgetSyncs() {
+        ResponseValidatorCache.getInstance(mContext).clear();
+        SyncPolicy.getInstance(mContext).clear();
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (!db.isReadOnly()) {
+            // Staged rows left behind by a download that never finished.
+            db.delete(EpgEntry.STAGING_TABLE_NAME, null, null);
+        }
+        if (mVacuumPending) {
+            // A vacuum can not run in the transaction of the upgrade, it runs once here.
+            mVacuumPending = false;
+            long start = System.currentTimeMillis();
+            db.execSQL("VACUUM");
+            Log.d(TAG, "Enabled incremental vacuum in "
+                    + (System.currentTimeMillis() - start) + " ms");
+        }
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // Simply discard all old data and start over when upgrading.
-        db.execSQL("DROP TABLE IF EXISTS " + VideoEntry.TABLE_NAME);
-        db.execSQL("DROP TABLE IF EXISTS " + EpgContract.EpgEntry.TABLE_NAME);
-        db.execSQL("DROP TABLE IF EXISTS " + ProfileContract.ProfileEntry.TABLE_NAME);
-        onCreate(db);
+        if (oldVersion < 12) {
+            // Files created before version 12 keep no free pages for incremental vacuum
+            // until a full vacuum rewrites them.
+            mVacuumPending = true;
+        }
+        // Version 7 replaces every table but the profiles, which the steps before it only
+        // altered, so it is the one step needed from any older version. It creates the
+        // tables and indexes of the current version.
+        if (oldVersion < 7) {
+            upgradeToVersion7(db);
+            return;
+        }
+        if (oldVersion < 8) {
+            upgradeToVersion8(db);
+        }
+        if (oldVersion < 9) {
+            // The index EpgRetention deletes finished events by.
+            createIndexes(db);
+        }
+        if (oldVersion < 10) {
+            upgradeToVersion10(db);
+        }
+        if (oldVersion < 11) {
+            rebuildProfile(db);
+        }
     }
 
     @Override
     public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // Do the same thing as upgrading...
-        onUpgrade(db, oldVersion, newVersion);
+        // A newer schema is unknown here, so discard all old data and start over.
+        dropLineup(db);
+        db.execSQL("DROP TABLE IF EXISTS " + ProfileEntry.TABLE_NAME);
+        onCreate(db);
+    }
+
+    private void dropLineup(SQLiteDatabase db) {
+        db.execSQL("DROP VIEW IF EXISTS " + VideoEntry.VIEW_NAME);
+        db.execSQL("DROP VIEW IF EXISTS " + EpgEntry.VIEW_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + SearchIndex.CHANNEL_FTS_TABLE);
+        db.execSQL("DROP TABLE IF EXISTS " + SearchIndex.EPG_FTS_TABLE);
+        db.execSQL("DROP TABLE IF EXISTS " + VideoEntry.TABLE_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + EpgEntry.TABLE_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + EpgEntry.STAGING_TABLE_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + WindowEntry.TABLE_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + BoxEntry.TABLE_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + BouquetEntry.TABLE_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + ServiceEntry.TABLE_NAME);
+    }
+
+    /**
+     * Channels and the epg refer to boxes, bouquets and services. The old rows are dropped
+     * rather than split, the next sync downloads them again. Profiles are kept and give the
+     * boxes their urls.
+     */
+    private void upgradeToVersion7(SQLiteDatabase db) {
+        dropLineup(db);
+        createVideo(db);
+        createEpg(db);
+        createEpgStaging(db);
+        rebuildProfile(db);
+        // Runs the trigger of every profile, which adds its box.
+        db.execSQL("UPDATE " + ProfileEntry.TABLE_NAME + " SET " + ProfileEntry.COLUMN_NAME
+                + " = " + ProfileEntry.COLUMN_NAME);
+        createIndexes(db);
+        SearchIndex.create(db);
+        forgetSyncs();
+    }
+
+    /**
+     * Epg events keep the id the box gives them, and the downloaded time windows are
+     * recorded. The stored events have no id, they are replaced as their windows are loaded.
+     */
+    private void upgradeToVersion8(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + EpgEntry.TABLE_NAME + " ADD COLUMN "
+                + EpgEntry.COLUMN_EVENT_ID + " INTEGER");
+        db.execSQL("ALTER TABLE " + EpgEntry.STAGING_TABLE_NAME + " ADD COLUMN "
+                + EpgEntry.COLUMN_EVENT_ID + " INTEGER");
+        db.execSQL("DROP VIEW IF EXISTS " + EpgEntry.VIEW_NAME);
+        createEpgKeys(db);
+        createEpgView(db);
+        createEpgWindows(db);
+    }
+
+    /**
+     * Staged rows are resolved to their services before the merge, which updates the stored
+     * events by key instead of replacing them. Windows record what their last merge wrote.
+     */
+    private void upgradeToVersion10(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + EpgEntry.STAGING_TABLE_NAME + " ADD COLUMN "
+                + EpgEntry.COLUMN_SERVICE_ID + " INTEGER");
+        db.execSQL("DROP INDEX IF EXISTS epg_staging_session");
+        createEpgStagingKey(db);
+        db.execSQL("ALTER TABLE " + WindowEntry.TABLE_NAME + " ADD COLUMN "
+                + WindowEntry.COLUMN_WRITTEN + " INTEGER DEFAULT 0");
+        db.execSQL("ALTER TABLE " + WindowEntry.TABLE_NAME + " ADD COLUMN "
+                + WindowEntry.COLUMN_SKIPPED + " INTEGER DEFAULT 0");
+    }
+
+    /**
+     * The profile table of version 1 declared its key with a non-breaking space, so its _id is
+     * an ordinary column that stays null. The table is created again with a real key and the
+     * rows are copied over, the null ids are numbered as they are inserted.
+     */
+    private void rebuildProfile(SQLiteDatabase db) {
+        final String columns = TextUtils.join(", ", new String[]{
+                ProfileEntry._ID,
+                ProfileEntry.COLUMN_NAME,
+                ProfileEntry.COLUMN_USERNAME,
+                ProfileEntry.COLUMN_PASSWORD,
+                ProfileEntry.COLUMN_AUTH,
+                ProfileEntry.COLUMN_WEB_ADDRESS,
+                ProfileEntry.COLUMN_WEB_PORT,
+                ProfileEntry.COLUMN_STREAM_PORT});
+        final String rebuilt = ProfileEntry.TABLE_NAME + "_rebuilt";
+        db.execSQL("DROP TRIGGER IF EXISTS profile_box_ai");
+        db.execSQL("DROP TRIGGER IF EXISTS profile_box_au");
+        db.execSQL("DROP TABLE IF EXISTS " + rebuilt);
+        createProfileTable(db, rebuilt);
+        db.execSQL("INSERT INTO " + rebuilt + " (" + columns + ") SELECT " + columns + " FROM "
+                + ProfileEntry.TABLE_NAME);
+        db.execSQL("DROP TABLE " + ProfileEntry.TABLE_NAME);
+        db.execSQL("ALTER TABLE " + rebuilt + " RENAME TO " + ProfileEntry.TABLE_NAME);
+        createBoxTriggers(db);
     }
 }
@@ -18,25 +18,47 @@ package fi.ese.tv.data;
 
 import android.app.SearchManager;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.provider.BaseColumns;
+import android.text.TextUtils;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
 
 /**
  * DatabaseProvider is a ContentProvider that provides videos, epgs for the rest of applications.
  */
 public class DatabaseProvider extends ContentProvider {
+    private static final String TAG = "DatabaseProvider";
+
+    // The signature permission the manifest declares as ${applicationId} followed by this.
+    private static final String ACCESS_PERMISSION_SUFFIX = ".ACCESS_VIDEO_DATA";
+
+    // Rows written per transaction by bulk inserts.
+    static final int ROWS_PER_TRANSACTION = 500;
     private static final UriMatcher sUriMatcher = buildUriMatcher();
     private DatabaseHelper mOpenHelper;
 
@@ -44,22 +66,43 @@ public class DatabaseProvider extends ContentProvider {
     private static final int VIDEO = 1;
     private static final int VIDEO_WITH_CATEGORY = 2;
     private static final int EPG = 3;
-    private static final int EPG_WITH_SREF = 4;
+    private static final int EPG_WITH_BREF = 4;
+    private static final int EPG_WITH_SREF = 14;
     private static final int PROFILE = 5;
     private static final int PROFILE_WITH_NAME = 6;
     private static final int RECORDING = 7;
     private static final int RECORDING_WITH_CATEGORY = 8;
     private static final int SEARCH_SUGGEST = 9;
     private static final int REFRESH_SHORTCUT = 10;
+    private static final int EPG_STAGING = 11;
+    private static final int VIDEO_ID = 12;
+    private static final int RECORDING_ID = 13;
+    private static final int PROFILE_ID = 15;
+
+    // The keys pages of the channel, browse row and epg uris are ordered by.
+    private static final String[] sChannelKey = ChannelContract.VideoEntry.PAGE_KEY;
+    private static final String[] sCategoryKey = ChannelContract.VideoEntry.CATEGORY_PAGE_KEY;
+    private static final String[] sEpgKey = {EpgContract.EpgEntry.COLUMN_BEGIN_TIMESTAMP,
+            EpgContract.EpgEntry._ID};
 
     private ContentResolver mContentResolver;
+    private ChangeNotifier mChangeNotifier;
 
-    private static final SQLiteQueryBuilder sVideosContainingQueryBuilder;
-    private static final String[] sVideosContainingQueryColumns;
+    // The uris changed by the batch running on this thread, notified once when it commits.
+    private final ThreadLocal<Set<Uri>> mBatchChanges = new ThreadLocal<>();
+    // The profiles deleted by the batch running on this thread. Their boxes are removed when
+    // it ends, unless the batch stored the profiles again.
+    private final ThreadLocal<Set<String>> mBatchRemovedProfiles = new ThreadLocal<>();
 
     private static final SQLiteQueryBuilder sEpgsContainingQueryBuilder;
     public static final String[] sEpgsContainingQueryColumns;
 
+    // The epg columns copied from the staging table, but the service and bouquet which are
+    // resolved from the references of the staged rows.
+    private static final String sEpgDataColumns;
+    // The data columns that tell whether a staged event changed, all but the event id key.
+    private static final String[] sEpgValueColumns;
+
     private static final SQLiteQueryBuilder sProfilesContainingQueryBuilder;
     public static final String[] sProfilesContainingQueryColumns;
 
@@ -67,31 +110,15 @@ public class DatabaseProvider extends ContentProvider {
     public boolean onCreate() {
         Context context = getContext();
         mContentResolver = context.getContentResolver();
+        mChangeNotifier = new ChangeNotifier(mContentResolver, ChangeNotifier.DEFAULT_WINDOW_MS);
         mOpenHelper = new DatabaseHelper(context);
+        EpgRetentionService.schedule(context);
         return true;
     }
 
     static {
-        sVideosContainingQueryBuilder = new SQLiteQueryBuilder();
-        sVideosContainingQueryBuilder.setTables(ChannelContract.VideoEntry.TABLE_NAME);
-        sVideosContainingQueryBuilder.setProjectionMap(buildVideoColumnMap());
-        sVideosContainingQueryColumns = new String[]{
-                ChannelContract.VideoEntry._ID,
-                ChannelContract.VideoEntry.COLUMN_NAME,
-                ChannelContract.VideoEntry.COLUMN_CATEGORY,
-                ChannelContract.VideoEntry.COLUMN_DESC,
-                ChannelContract.VideoEntry.COLUMN_STREAM_URL,
-                ChannelContract.VideoEntry.COLUMN_AUTH,
-                ChannelContract.VideoEntry.COLUMN_BG_IMAGE_URL,
-                ChannelContract.VideoEntry.COLUMN_CARD_IMG,
-                ChannelContract.VideoEntry.COLUMN_IS_LIVE,
-                ChannelContract.VideoEntry.COLUMN_IS_RECORDING,
-                ChannelContract.VideoEntry.COLUMN_FILENAME,
-                ChannelContract.VideoEntry.COLUMN_LENGTH,
-                SearchManager.SUGGEST_COLUMN_INTENT_DATA_ID
-        };
         sEpgsContainingQueryBuilder = new SQLiteQueryBuilder();
-        sEpgsContainingQueryBuilder.setTables(EpgContract.EpgEntry.TABLE_NAME);
+        sEpgsContainingQueryBuilder.setTables(EpgContract.EpgEntry.VIEW_NAME);
         sEpgsContainingQueryBuilder.setProjectionMap(buildEpgColumnMap());
         sEpgsContainingQueryColumns = new String[]{
                 EpgContract.EpgEntry._ID,
@@ -105,8 +132,23 @@ public class DatabaseProvider extends ContentProvider {
                 EpgContract.EpgEntry.COLUMN_DURATION_SEC,
                 EpgContract.EpgEntry.COLUMN_SHORTDESC,
                 EpgContract.EpgEntry.COLUMN_GENREID,
+                EpgContract.EpgEntry.COLUMN_LONGDESC,
+                EpgContract.EpgEntry.COLUMN_SERVICE_REF,
+                EpgContract.EpgEntry.COLUMN_PROFILE,
+                EpgContract.EpgEntry.COLUMN_EVENT_ID
+        };
+        sEpgValueColumns = new String[]{
+                EpgContract.EpgEntry.COLUMN_TITLE,
+                EpgContract.EpgEntry.COLUMN_BEGIN_TIMESTAMP,
+                EpgContract.EpgEntry.COLUMN_NOW_TIMESTAMP,
+                EpgContract.EpgEntry.COLUMN_GENRE,
+                EpgContract.EpgEntry.COLUMN_DURATION_SEC,
+                EpgContract.EpgEntry.COLUMN_SHORTDESC,
+                EpgContract.EpgEntry.COLUMN_GENREID,
                 EpgContract.EpgEntry.COLUMN_LONGDESC
         };
+        sEpgDataColumns = TextUtils.join(", ", sEpgValueColumns) + ", "
+                + EpgContract.EpgEntry.COLUMN_EVENT_ID;
         sProfilesContainingQueryBuilder = new SQLiteQueryBuilder();
         sProfilesContainingQueryBuilder.setTables(ProfileContract.ProfileEntry.TABLE_NAME);
         sProfilesContainingQueryBuilder.setProjectionMap(buildProfileColumnMap());
@@ -129,16 +171,26 @@ public class DatabaseProvider extends ContentProvider {
 
         // For each type of URI to add, create a corresponding code.
         matcher.addURI(authority, ChannelContract.PATH_VIDEO, VIDEO);
-        matcher.addURI(authority, ChannelContract.PATH_VIDEO + "/*", VIDEO_WITH_CATEGORY);
+        matcher.addURI(authority, ChannelContract.PATH_VIDEO + "/#", VIDEO_ID);
+        matcher.addURI(authority, ChannelContract.PATH_VIDEO + "/"
+                + ChannelContract.PATH_CATEGORY + "/*", VIDEO_WITH_CATEGORY);
 
         matcher.addURI(authority, ChannelContract.PATH_RECORDING, RECORDING);
-        matcher.addURI(authority, ChannelContract.PATH_RECORDING + "/*", RECORDING_WITH_CATEGORY);
+        matcher.addURI(authority, ChannelContract.PATH_RECORDING + "/#", RECORDING_ID);
+        matcher.addURI(authority, ChannelContract.PATH_RECORDING + "/"
+                + ChannelContract.PATH_CATEGORY + "/*", RECORDING_WITH_CATEGORY);
 
         matcher.addURI(authority, EpgContract.PATH_EPG, EPG);
-        matcher.addURI(authority, EpgContract.PATH_EPG + "/*", EPG_WITH_SREF);
+        matcher.addURI(authority, EpgContract.PATH_EPG + "/"
+                + EpgContract.PATH_BOUQUET + "/*", EPG_WITH_BREF);
+        matcher.addURI(authority, EpgContract.PATH_EPG + "/"
+                + EpgContract.PATH_SERVICE + "/*", EPG_WITH_SREF);
+        matcher.addURI(authority, EpgContract.PATH_EPG_STAGING, EPG_STAGING);
 
         matcher.addURI(authority, ProfileContract.PATH_PROFILE, PROFILE);
-        matcher.addURI(authority, ProfileContract.PATH_PROFILE + "/*", PROFILE_WITH_NAME);
+        matcher.addURI(authority, ProfileContract.PATH_PROFILE + "/#", PROFILE_ID);
+        matcher.addURI(authority, ProfileContract.PATH_PROFILE + "/"
+                + ProfileContract.PATH_NAME + "/*", PROFILE_WITH_NAME);
 
         // Search related URIs.
         matcher.addURI(authority, "search/" + SearchManager.SUGGEST_URI_PATH_QUERY, SEARCH_SUGGEST);
@@ -146,35 +198,28 @@ public class DatabaseProvider extends ContentProvider {
         return matcher;
     }
 
-    private Cursor getSuggestions(String query) {
-        query = query.toLowerCase();
-        return sVideosContainingQueryBuilder.query(
-                mOpenHelper.getReadableDatabase(),
-                sVideosContainingQueryColumns,
-                ChannelContract.VideoEntry.COLUMN_NAME + " LIKE ? OR " +
-                        ChannelContract.VideoEntry.COLUMN_DESC + " LIKE ?",
-                new String[]{"%" + query + "%", "%" + query + "%"},
-                null,
-                null,
-                null
-        );
-    }
+    private Cursor getSuggestions(Uri uri, String[] selectionArgs,
+            CancellationSignal cancellationSignal) {
+        // Global search passes the text as the selection argument, the in-app search as the
+        // last path segment.
+        String query = null;
+        if (selectionArgs != null && selectionArgs.length > 0) {
+            query = selectionArgs[0];
+        } else if (!SearchManager.SUGGEST_URI_PATH_QUERY.equals(uri.getLastPathSegment())) {
+            query = uri.getLastPathSegment();
+        }
 
-    private static HashMap<String, String> buildVideoColumnMap() {
-        HashMap<String, String> map = new HashMap<>();
-        map.put(ChannelContract.VideoEntry._ID, ChannelContract.VideoEntry._ID);
-        map.put(ChannelContract.VideoEntry.COLUMN_NAME, ChannelContract.VideoEntry.COLUMN_NAME);
-        map.put(ChannelContract.VideoEntry.COLUMN_DESC, ChannelContract.VideoEntry.COLUMN_DESC);
-        map.put(ChannelContract.VideoEntry.COLUMN_CATEGORY, ChannelContract.VideoEntry.COLUMN_CATEGORY);
-        map.put(ChannelContract.VideoEntry.COLUMN_STREAM_URL, ChannelContract.VideoEntry.COLUMN_STREAM_URL);
-        map.put(ChannelContract.VideoEntry.COLUMN_AUTH, ChannelContract.VideoEntry.COLUMN_AUTH);
-        map.put(ChannelContract.VideoEntry.COLUMN_BG_IMAGE_URL, ChannelContract.VideoEntry.COLUMN_BG_IMAGE_URL);
-        map.put(ChannelContract.VideoEntry.COLUMN_CARD_IMG, ChannelContract.VideoEntry.COLUMN_CARD_IMG);
-        map.put(ChannelContract.VideoEntry.COLUMN_IS_LIVE, ChannelContract.VideoEntry.COLUMN_IS_LIVE);
-        map.put(ChannelContract.VideoEntry.COLUMN_IS_RECORDING, ChannelContract.VideoEntry.COLUMN_IS_RECORDING);
-        map.put(ChannelContract.VideoEntry.COLUMN_FILENAME, ChannelContract.VideoEntry.COLUMN_FILENAME);
-        map.put(ChannelContract.VideoEntry.COLUMN_LENGTH, ChannelContract.VideoEntry.COLUMN_LENGTH);
-        return map;
+        int limit = SearchIndex.DEFAULT_LIMIT;
+        String limitParameter = uri.getQueryParameter(SearchManager.SUGGEST_PARAMETER_LIMIT);
+        if (limitParameter != null) {
+            try {
+                limit = Integer.parseInt(limitParameter);
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Invalid search limit: " + limitParameter);
+            }
+        }
+        return SearchIndex.query(mOpenHelper.getReadableDatabase(), query, limit,
+                cancellationSignal);
     }
 
     private static HashMap<String, String> buildEpgColumnMap() {
@@ -191,6 +236,9 @@ public class DatabaseProvider extends ContentProvider {
         map.put(EpgContract.EpgEntry.COLUMN_SHORTDESC, EpgContract.EpgEntry.COLUMN_SHORTDESC);
         map.put(EpgContract.EpgEntry.COLUMN_GENREID, EpgContract.EpgEntry.COLUMN_GENREID);
         map.put(EpgContract.EpgEntry.COLUMN_LONGDESC, EpgContract.EpgEntry.COLUMN_LONGDESC);
+        map.put(EpgContract.EpgEntry.COLUMN_SERVICE_REF, EpgContract.EpgEntry.COLUMN_SERVICE_REF);
+        map.put(EpgContract.EpgEntry.COLUMN_PROFILE, EpgContract.EpgEntry.COLUMN_PROFILE);
+        map.put(EpgContract.EpgEntry.COLUMN_EVENT_ID, EpgContract.EpgEntry.COLUMN_EVENT_ID);
         return map;
     }
 
@@ -207,54 +255,96 @@ public class DatabaseProvider extends ContentProvider {
         return map;
     }
 
+    @Override
+    public Cursor query(@NonNull Uri uri, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder, CancellationSignal cancellationSignal) {
+        if (sUriMatcher.match(uri) == SEARCH_SUGGEST) {
+            // A search that is typed over is canceled instead of running to the end.
+            Cursor retCursor = getSuggestions(uri, selectionArgs, cancellationSignal);
+            retCursor.setNotificationUri(mContentResolver, uri);
+            return retCursor;
+        }
+        return query(uri, projection, selection, selectionArgs, sortOrder);
+    }
+
     @Override
     public Cursor query(@NonNull Uri uri, String[] projection, String selection,
             String[] selectionArgs, String sortOrder) {
+        final String[] idArgs = new String[]{uri.getLastPathSegment()};
         Cursor retCursor;
         switch (sUriMatcher.match(uri)) {
             case SEARCH_SUGGEST: {
-                String rawQuery = "";
-                if (selectionArgs != null && selectionArgs.length > 0) {
-                    rawQuery = selectionArgs[0];
-                }
-                retCursor = getSuggestions(rawQuery);
+                retCursor = getSuggestions(uri, selectionArgs, null);
                 break;
             }
             case RECORDING:
             case VIDEO: {
-                retCursor = mOpenHelper.getReadableDatabase().query(
-                        ChannelContract.VideoEntry.TABLE_NAME,
-                        projection,
-                        selection,
-                        selectionArgs,
-                        null,
-                        null,
-                        sortOrder
-                );
+                // The grids, indexed by (is_recording, profile, position) of the channel table.
+                retCursor = queryTable(uri, ChannelContract.VideoEntry.VIEW_NAME, projection,
+                        selection, selectionArgs, sortOrder, sChannelKey);
+                break;
+            }
+            case RECORDING_WITH_CATEGORY:
+            case VIDEO_WITH_CATEGORY: {
+                // A browse row, found by the bouquet key and indexed by (bouquet_id, position).
+                retCursor = queryTable(uri, ChannelContract.VideoEntry.VIEW_NAME, projection,
+                        DatabaseUtils.concatenateWhere(
+                                ChannelContract.VideoEntry.COLUMN_CATEGORY + " = ?", selection),
+                        DatabaseUtils.appendSelectionArgs(idArgs, selectionArgs),
+                        sortOrder, sCategoryKey);
+                break;
+            }
+            case RECORDING_ID:
+            case VIDEO_ID: {
+                retCursor = queryTable(uri, ChannelContract.VideoEntry.VIEW_NAME, projection,
+                        DatabaseUtils.concatenateWhere(
+                                ChannelContract.VideoEntry._ID + " = ?", selection),
+                        DatabaseUtils.appendSelectionArgs(idArgs, selectionArgs),
+                        sortOrder, null);
                 break;
             }
             case EPG: {
-                retCursor = mOpenHelper.getReadableDatabase().query(
-                        EpgContract.EpgEntry.TABLE_NAME,
-                        projection,
-                        selection,
-                        selectionArgs,
-                        null,
-                        null,
-                        sortOrder
-                );
+                retCursor = queryTable(uri, EpgContract.EpgEntry.VIEW_NAME, projection,
+                        selection, selectionArgs, sortOrder, sEpgKey);
+                break;
+            }
+            case EPG_WITH_BREF: {
+                // Found by the bouquet reference and indexed by (bouquet_id, begin_timestamp).
+                retCursor = queryTable(uri, EpgContract.EpgEntry.VIEW_NAME, projection,
+                        DatabaseUtils.concatenateWhere(
+                                EpgContract.EpgEntry.COLUMN_BREF + " = ?", selection),
+                        DatabaseUtils.appendSelectionArgs(idArgs, selectionArgs),
+                        sortOrder, sEpgKey);
+                break;
+            }
+            case EPG_WITH_SREF: {
+                // Found by the service key and indexed by (service_id, begin_timestamp).
+                retCursor = queryTable(uri, EpgContract.EpgEntry.VIEW_NAME, projection,
+                        DatabaseUtils.concatenateWhere(
+                                EpgContract.EpgEntry.COLUMN_SERVICE_REF + " = ?", selection),
+                        DatabaseUtils.appendSelectionArgs(idArgs, selectionArgs),
+                        sortOrder, sEpgKey);
                 break;
             }
             case PROFILE: {
-                retCursor = mOpenHelper.getReadableDatabase().query(
-                        ProfileContract.ProfileEntry.TABLE_NAME,
-                        projection,
-                        selection,
-                        selectionArgs,
-                        null,
-                        null,
-                        sortOrder
-                );
+                retCursor = queryTable(uri, ProfileContract.ProfileEntry.TABLE_NAME, projection,
+                        selection, selectionArgs, sortOrder, null);
+                break;
+            }
+            case PROFILE_ID: {
+                retCursor = queryTable(uri, ProfileContract.ProfileEntry.TABLE_NAME, projection,
+                        DatabaseUtils.concatenateWhere(
+                                ProfileContract.ProfileEntry._ID + " = ?", selection),
+                        DatabaseUtils.appendSelectionArgs(idArgs, selectionArgs),
+                        sortOrder, null);
+                break;
+            }
+            case PROFILE_WITH_NAME: {
+                retCursor = queryTable(uri, ProfileContract.ProfileEntry.TABLE_NAME, projection,
+                        DatabaseUtils.concatenateWhere(
+                                ProfileContract.ProfileEntry.COLUMN_NAME + " = ?", selection),
+                        DatabaseUtils.appendSelectionArgs(idArgs, selectionArgs),
+                        sortOrder, null);
                 break;
             }
             default: {
@@ -266,25 +356,59 @@ public class DatabaseProvider extends ContentProvider {
         return retCursor;
     }
 
+    /**
+     * Queries a table, or one page of it if the uri has paging parameters.
+     * @param keyColumns The columns pages of the uri are ordered by, null if it is not paged
+     */
+    private Cursor queryTable(Uri uri, String table, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder, String[] keyColumns) {
+        PageQuery page = keyColumns == null ? null : PageQuery.parse(uri, keyColumns);
+        if (page == null) {
+            return mOpenHelper.getReadableDatabase().query(table, projection, selection,
+                    selectionArgs, null, null, sortOrder);
+        }
+        if (sortOrder != null) {
+            throw new IllegalArgumentException("Pages are ordered by their key: " + uri);
+        }
+        return mOpenHelper.getReadableDatabase().query(table,
+                page.getProjection(projection),
+                DatabaseUtils.concatenateWhere(selection, page.getSelection()),
+                DatabaseUtils.appendSelectionArgs(selectionArgs, page.getSelectionArgs()),
+                null,
+                null,
+                page.getSortOrder(),
+                page.getLimit());
+    }
+
     @Override
     public String getType(@NonNull Uri uri) {
         switch (sUriMatcher.match(uri)) {
             // The application is querying the db for its own contents.
             case VIDEO_WITH_CATEGORY:
                 return ChannelContract.VideoEntry.CONTENT_TYPE;
+            case VIDEO_ID:
+                return ChannelContract.VideoEntry.CONTENT_TYPE;
             case VIDEO:
                 return ChannelContract.VideoEntry.CONTENT_TYPE;
 
             case RECORDING_WITH_CATEGORY:
                 return ChannelContract.VideoEntry.CONTENT_TYPE_REC;
+            case RECORDING_ID:
+                return ChannelContract.VideoEntry.CONTENT_TYPE_REC;
             case RECORDING:
                 return ChannelContract.VideoEntry.CONTENT_TYPE_REC;
 
+            case EPG_WITH_BREF:
+                return EpgContract.EpgEntry.CONTENT_TYPE;
             case EPG_WITH_SREF:
                 return EpgContract.EpgEntry.CONTENT_TYPE;
+            case EPG_STAGING:
+                return EpgContract.EpgEntry.CONTENT_TYPE;
             case EPG:
                 return EpgContract.EpgEntry.CONTENT_TYPE;
 
+            case PROFILE_ID:
+                return ProfileContract.ProfileEntry.CONTENT_TYPE;
             case PROFILE_WITH_NAME:
                 return ProfileContract.ProfileEntry.CONTENT_TYPE;
             case PROFILE:
@@ -305,29 +429,31 @@ public class DatabaseProvider extends ContentProvider {
     @Override
     public Uri insert(@NonNull Uri uri, ContentValues values) {
         final Uri returnUri;
+        final Uri changedUri;
         final int match = sUriMatcher.match(uri);
 
         switch (match) {
 
             case RECORDING:
             case VIDEO: {
-                long _id = mOpenHelper.getWritableDatabase().insert(
-                        ChannelContract.VideoEntry.TABLE_NAME, null, values);
+                long _id = insertRow(ChannelContract.VideoEntry.TABLE_NAME, values);
                 if (_id > 0) {
                     returnUri = ChannelContract.VideoEntry.buildVideoUri(_id);
                 } else {
                     throw new SQLException("Failed to insert row into " + uri);
                 }
+                changedUri = categoryUri(uri,
+                        values.getAsString(ChannelContract.VideoEntry.COLUMN_CATEGORY));
                 break;
             }
             case EPG: {
-                long _id = mOpenHelper.getWritableDatabase().insert(
-                        EpgContract.EpgEntry.TABLE_NAME, null, values);
+                long _id = insertRow(EpgContract.EpgEntry.TABLE_NAME, values);
                 if (_id > 0) {
                     returnUri = EpgContract.EpgEntry.buildEpgUri(_id);
                 } else {
                     throw new SQLException("Failed to insert row into " + uri);
                 }
+                changedUri = bouquetUri(values.getAsString(EpgContract.EpgEntry.COLUMN_BREF));
                 break;
             }
             case PROFILE: {
@@ -338,6 +464,7 @@ public class DatabaseProvider extends ContentProvider {
                 } else {
                     throw new SQLException("Failed to insert row into " + uri);
                 }
+                changedUri = uri;
                 break;
             }
             default: {
@@ -345,7 +472,7 @@ public class DatabaseProvider extends ContentProvider {
             }
         }
 
-        mContentResolver.notifyChange(uri, null);
+        notifyChange(changedUri);
         return returnUri;
     }
 
@@ -360,18 +487,47 @@ public class DatabaseProvider extends ContentProvider {
         switch (sUriMatcher.match(uri)) {
             case RECORDING:
             case VIDEO: {
-                rowsDeleted = mOpenHelper.getWritableDatabase().delete(
-                        ChannelContract.VideoEntry.TABLE_NAME, selection, selectionArgs);
+                final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+                Set<String> boxUrls = queryBoxUrls(db, selection, selectionArgs);
+                rowsDeleted = db.delete(ChannelContract.VideoEntry.TABLE_NAME,
+                        viewSelection(ChannelContract.VideoEntry.VIEW_NAME, selection),
+                        selectionArgs);
+                if (rowsDeleted != 0) {
+                    // The next fetch has to store the rows again, even if the box sends the
+                    // same response.
+                    for (String boxUrl : boxUrls) {
+                        ResponseValidatorCache.getInstance(getContext()).forget(boxUrl);
+                    }
+                }
                 break;
             }
             case EPG: {
                 rowsDeleted = mOpenHelper.getWritableDatabase().delete(
-                        EpgContract.EpgEntry.TABLE_NAME, selection, selectionArgs);
+                        EpgContract.EpgEntry.TABLE_NAME,
+                        viewSelection(EpgContract.EpgEntry.VIEW_NAME, selection), selectionArgs);
                 break;
             }
             case PROFILE: {
-                rowsDeleted = mOpenHelper.getWritableDatabase().delete(
-                        ProfileContract.ProfileEntry.TABLE_NAME, selection, selectionArgs);
+                final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+                boolean boxesRemoved = false;
+                db.beginTransactionNonExclusive();
+                try {
+                    Set<String> profiles = queryProfileNames(db, selection, selectionArgs);
+                    rowsDeleted = db.delete(ProfileContract.ProfileEntry.TABLE_NAME, selection,
+                            selectionArgs);
+                    Set<String> removed = mBatchRemovedProfiles.get();
+                    if (removed != null) {
+                        removed.addAll(profiles);
+                    } else {
+                        boxesRemoved = removeBoxes(db, profiles);
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                if (boxesRemoved) {
+                    notifyLineupRemoved();
+                }
                 break;
             }
             default: {
@@ -380,7 +536,7 @@ public class DatabaseProvider extends ContentProvider {
         }
 
         if (rowsDeleted != 0) {
-            mContentResolver.notifyChange(uri, null);
+            notifyChange(uri);
         }
 
         return rowsDeleted;
@@ -395,12 +551,16 @@ public class DatabaseProvider extends ContentProvider {
             case RECORDING:
             case VIDEO: {
                 rowsUpdated = mOpenHelper.getWritableDatabase().update(
-                        ChannelContract.VideoEntry.TABLE_NAME, values, selection, selectionArgs);
+                        ChannelContract.VideoEntry.TABLE_NAME,
+                        LineupStore.toChannelChanges(values),
+                        viewSelection(ChannelContract.VideoEntry.VIEW_NAME, selection),
+                        selectionArgs);
                 break;
             }
             case EPG: {
                 rowsUpdated = mOpenHelper.getWritableDatabase().update(
-                        EpgContract.EpgEntry.TABLE_NAME, values, selection, selectionArgs);
+                        EpgContract.EpgEntry.TABLE_NAME, LineupStore.toEpgChanges(values),
+                        viewSelection(EpgContract.EpgEntry.VIEW_NAME, selection), selectionArgs);
                 break;
             }
             case PROFILE: {
@@ -414,7 +574,7 @@ public class DatabaseProvider extends ContentProvider {
         }
 
         if (rowsUpdated != 0) {
-            mContentResolver.notifyChange(uri, null);
+            notifyChange(uri);
         }
 
         return rowsUpdated;
@@ -426,34 +586,302 @@ public class DatabaseProvider extends ContentProvider {
             case RECORDING:
             case VIDEO: {
                 final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-                int returnCount = 0;
-
-                db.beginTransaction();
-                try {
-                    for (ContentValues value : values) {
-                        long _id = db.insertWithOnConflict(ChannelContract.VideoEntry.TABLE_NAME,
-                                null, value, SQLiteDatabase.CONFLICT_REPLACE);
-                        if (_id != -1) {
-                            returnCount++;
-                        }
+                String profile = uri.getQueryParameter(ChannelContract.VideoEntry.PARAM_SYNC_PROFILE);
+                if (profile != null) {
+                    ChannelSyncEngine.Result result = ChannelSyncEngine.sync(db, profile,
+                            sUriMatcher.match(uri) == RECORDING, values);
+                    Log.d(TAG, "Synced " + uri.getLastPathSegment() + " of " + profile + ": " + result);
+                    // Only the categories and rows the sync touched are notified.
+                    Uri contentUri = uri.buildUpon().clearQuery().build();
+                    for (String category : result.categories) {
+                        notifyChange(categoryUri(contentUri, category));
                     }
-                    db.setTransactionSuccessful();
-                } finally {
-                    db.endTransaction();
+                    for (long id : result.changedIds) {
+                        notifyChange(ContentUris.withAppendedId(contentUri, id));
+                    }
+                    if (result.removedBouquets > 0) {
+                        notifyChange(EpgContract.EpgEntry.CONTENT_URI);
+                    }
+                    return result.inserted + result.updated;
                 }
 
-                mContentResolver.notifyChange(uri, null);
+                int returnCount = insertVisible(db, ChannelContract.VideoEntry.TABLE_NAME,
+                        new LineupStore(db).toChannelRows(values));
+
+                for (String category : distinct(values,
+                        ChannelContract.VideoEntry.COLUMN_CATEGORY)) {
+                    notifyChange(categoryUri(uri, category));
+                }
                 return returnCount;
             }
             case EPG: {
                 final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-                int returnCount = 0;
+                int returnCount = insertVisible(db, EpgContract.EpgEntry.TABLE_NAME,
+                        new LineupStore(db).toEpgRows(values));
+
+                for (String bref : distinct(values, EpgContract.EpgEntry.COLUMN_BREF)) {
+                    notifyChange(bouquetUri(bref));
+                }
+                return returnCount;
+            }
+            case EPG_STAGING: {
+                String session = uri.getQueryParameter(EpgContract.EpgEntry.PARAM_SESSION);
+                if (session == null) {
+                    throw new UnsupportedOperationException("Staging without session: " + uri);
+                }
+                for (ContentValues value : values) {
+                    value.put(EpgContract.EpgEntry.COLUMN_SESSION, session);
+                }
+                final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+                int returnCount = insertInChunks(db, EpgContract.EpgEntry.STAGING_TABLE_NAME,
+                        values, SQLiteDatabase.CONFLICT_NONE);
+
+                // Staged rows are not visible to anyone, so there is nothing to notify.
+                return returnCount;
+            }
+            default: {
+                return super.bulkInsert(uri, values);
+            }
+        }
+    }
+
+    /**
+     * Applies the operations in one transaction, so either all of them or none are written.
+     * Observers are notified once per changed uri after the batch commits, instead of once per
+     * operation.
+     */
+    @NonNull
+    @Override
+    public ContentProviderResult[] applyBatch(
+            @NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        if (mBatchChanges.get() != null) {
+            // A nested batch joins the transaction and the notifications of the outer one.
+            return super.applyBatch(operations);
+        }
+
+        Set<Uri> changes = new LinkedHashSet<>();
+        Set<String> removedProfiles = new HashSet<>();
+        ContentProviderResult[] results;
+        mBatchChanges.set(changes);
+        mBatchRemovedProfiles.set(removedProfiles);
+        db.beginTransactionNonExclusive();
+        try {
+            results = super.applyBatch(operations);
+            mBatchRemovedProfiles.remove();
+            if (removeBoxes(db, removedProfiles)) {
+                notifyLineupRemoved();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            mBatchChanges.remove();
+            mBatchRemovedProfiles.remove();
+            db.endTransaction();
+        }
+
+        Log.d(TAG, "Applied " + operations.size() + " operations, notifying " + changes.size()
+                + " uris");
+        for (Uri uri : changes) {
+            publishChange(uri);
+        }
+        return results;
+    }
+
+    // The web urls of the boxes of the channel rows a selection matches.
+    private static Set<String> queryBoxUrls(SQLiteDatabase db, String selection,
+            String[] selectionArgs) {
+        Set<String> urls = new HashSet<>();
+        Cursor cursor = db.query(LineupContract.BoxEntry.TABLE_NAME,
+                new String[]{LineupContract.BoxEntry.COLUMN_WEB_URL},
+                LineupContract.BoxEntry.COLUMN_WEB_URL + " IS NOT NULL AND "
+                        + LineupContract.BoxEntry.COLUMN_NAME + " IN (SELECT "
+                        + ChannelContract.VideoEntry.COLUMN_PROFILE + " FROM "
+                        + ChannelContract.VideoEntry.VIEW_NAME
+                        + (selection == null ? "" : " WHERE " + selection) + ")",
+                selectionArgs, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                urls.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return urls;
+    }
+
+    private static Set<String> queryProfileNames(SQLiteDatabase db, String selection,
+            String[] selectionArgs) {
+        Set<String> names = new HashSet<>();
+        Cursor cursor = db.query(ProfileContract.ProfileEntry.TABLE_NAME,
+                new String[]{ProfileContract.ProfileEntry.COLUMN_NAME}, selection, selectionArgs,
+                null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                names.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return names;
+    }
+
+    /**
+     * Removes the boxes of the profiles that are no longer stored, with their lineup and epg.
+     * A box that comes back is synced again from scratch.
+     * @return whether any box was removed
+     */
+    private boolean removeBoxes(SQLiteDatabase db, Set<String> profiles) {
+        LineupStore store = new LineupStore(db);
+        boolean removed = false;
+        for (String profile : profiles) {
+            if (profile != null && store.removeBox(profile)) {
+                Log.d(TAG, "Removed the box of " + profile);
+                removed = true;
+            }
+        }
+        if (removed) {
+            ResponseValidatorCache.getInstance(getContext()).clear();
+            SyncPolicy.getInstance(getContext()).clear();
+        }
+        return removed;
+    }
+
+    private void notifyLineupRemoved() {
+        notifyChange(ChannelContract.VideoEntry.CONTENT_URI);
+        notifyChange(ChannelContract.VideoEntry.CONTENT_URI_REC);
+        notifyChange(EpgContract.EpgEntry.CONTENT_URI);
+    }
+
+    // Notifies observers of a change, or defers it to the end of the running batch.
+    private void notifyChange(Uri uri) {
+        Set<Uri> changes = mBatchChanges.get();
+        if (changes != null) {
+            changes.add(uri);
+        } else {
+            publishChange(uri);
+        }
+    }
+
+    // Passes a committed change on to the channel catalog and the observers.
+    private void publishChange(Uri uri) {
+        String table = uri.getPathSegments().isEmpty() ? null : uri.getPathSegments().get(0);
+        if (ChannelContract.PATH_VIDEO.equals(table)
+                || ChannelContract.PATH_RECORDING.equals(table)
+                || ProfileContract.PATH_PROFILE.equals(table)) {
+            // Before the observers run, so they read the new rows from the catalog. The urls
+            // and auth of the channels come from the profile of their box.
+            ChannelCatalog.invalidate(getContext());
+        }
+        if (!ProfileContract.PATH_PROFILE.equals(table)) {
+            // Cached searches may miss or still show the changed rows.
+            SearchResultCache.invalidateAll();
+        }
+        mChangeNotifier.notifyChange(uri);
+    }
+
+    // Inserts a row given with the columns of a view into its table, with the box, bouquet and
+    // service it refers to.
+    private long insertRow(String table, ContentValues values) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        LineupStore store = new LineupStore(db);
+        long _id;
+        db.beginTransactionNonExclusive();
+        try {
+            _id = db.insert(table, null, ChannelContract.VideoEntry.TABLE_NAME.equals(table)
+                    ? store.toChannelRow(values) : store.toEpgRow(values));
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return _id;
+    }
+
+    // Matches the rows of a table by a selection over the columns of its view.
+    private static String viewSelection(String view, String selection) {
+        return BaseColumns._ID + " IN (SELECT " + BaseColumns._ID + " FROM " + view
+                + (selection == null ? "" : " WHERE " + selection) + ")";
+    }
+
+    // The uri of the rows of a category, or of all rows when the category is not known.
+    private static Uri categoryUri(Uri uri, String category) {
+        Uri contentUri = sUriMatcher.match(uri) == RECORDING
+                ? ChannelContract.VideoEntry.CONTENT_URI_REC
+                : ChannelContract.VideoEntry.CONTENT_URI;
+        return category == null ? contentUri
+                : ChannelContract.VideoEntry.buildCategoryUri(contentUri, category);
+    }
 
-                db.beginTransaction();
+    // The uri of the epg of a bouquet, or of the whole epg when the bouquet is not known.
+    private static Uri bouquetUri(String bref) {
+        return bref == null ? EpgContract.EpgEntry.CONTENT_URI
+                : EpgContract.EpgEntry.buildBouquetUri(bref);
+    }
+
+    private static Set<String> distinct(ContentValues[] values, String column) {
+        Set<String> distinct = new LinkedHashSet<>();
+        for (ContentValues value : values) {
+            distinct.add(value.getAsString(column));
+        }
+        return distinct;
+    }
+
+    // Inserts rows into a table readers see in one transaction, so they never see it half
+    // replaced. The chunks of insertInChunks() join it.
+    private static int insertVisible(SQLiteDatabase db, String table, ContentValues[] values) {
+        int returnCount;
+        db.beginTransactionNonExclusive();
+        try {
+            returnCount = insertInChunks(db, table, values, SQLiteDatabase.CONFLICT_REPLACE);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return returnCount;
+    }
+
+    /**
+     * Inserts rows in transactions of at most {@link #ROWS_PER_TRANSACTION} rows, so a large
+     * insert never keeps the write-ahead log growing in one long transaction. Called inside a
+     * transaction, the chunks join it and nothing is committed before it ends.
+     * @return the number of rows inserted
+     */
+    static int insertInChunks(SQLiteDatabase db, String table, ContentValues[] values,
+            int conflictAlgorithm) {
+        if (values.length == 0) {
+            return 0;
+        }
+
+        // Rows with the columns of the first row share one compiled statement, instead of
+        // assembling and compiling the SQL of every row.
+        Set<String> columns = values[0].keySet();
+        String[] columnNames = columns.toArray(new String[columns.size()]);
+        SQLiteStatement insert = db.compileStatement(
+                (conflictAlgorithm == SQLiteDatabase.CONFLICT_REPLACE
+                        ? "INSERT OR REPLACE INTO " : "INSERT INTO ")
+                + table + " (" + TextUtils.join(", ", columnNames) + ") VALUES ("
+                + TextUtils.join(", ", Collections.nCopies(columnNames.length, "?")) + ")");
+
+        int returnCount = 0;
+        try {
+            for (int chunk = 0; chunk < values.length; chunk += ROWS_PER_TRANSACTION) {
+                db.beginTransactionNonExclusive();
                 try {
-                    for (ContentValues value : values) {
-                        long _id = db.insertWithOnConflict(EpgContract.EpgEntry.TABLE_NAME,
-                                null, value, SQLiteDatabase.CONFLICT_REPLACE);
+                    int end = Math.min(chunk + ROWS_PER_TRANSACTION, values.length);
+                    for (int i = chunk; i < end; i++) {
+                        ContentValues value = values[i];
+                        long _id;
+                        if (value.size() == columnNames.length
+                                && value.keySet().containsAll(columns)) {
+                            for (int c = 0; c < columnNames.length; c++) {
+                                DatabaseUtils.bindObjectToProgram(insert, c + 1,
+                                        value.get(columnNames[c]));
+                            }
+                            _id = insert.executeInsert();
+                            insert.clearBindings();
+                        } else {
+                            _id = db.insertWithOnConflict(table, null, value, conflictAlgorithm);
+                        }
                         if (_id != -1) {
                             returnCount++;
                         }
@@ -462,13 +890,280 @@ public class DatabaseProvider extends ContentProvider {
                 } finally {
                     db.endTransaction();
                 }
+            }
+        } finally {
+            insert.close();
+        }
+        return returnCount;
+    }
 
-                mContentResolver.notifyChange(uri, null);
-                return returnCount;
+    /**
+     * Opens a writer that binds epg fields straight into the staging table of a download
+     * session, for fetches running in this process.
+     */
+    public EpgStagingWriter openEpgStagingWriter(String session) {
+        return new EpgStagingWriter(mOpenHelper.getWritableDatabase(), session);
+    }
+
+    @Override
+    public Bundle call(@NonNull String method, String arg, Bundle extras) {
+        // The permission of the provider in the manifest does not cover call().
+        getContext().enforceCallingOrSelfPermission(
+                getContext().getPackageName() + ACCESS_PERMISSION_SUFFIX,
+                "Calling " + method + " requires the permission of the provider");
+        switch (method) {
+            case EpgContract.METHOD_SWAP_STAGING: {
+                String bref = extras.getString(EpgContract.EXTRA_BREF);
+                String profile = extras.getString(EpgContract.EXTRA_PROFILE);
+                return swapEpgStaging(arg, profile, bref,
+                        extras.getLong(EpgContract.EXTRA_WINDOW_START),
+                        extras.getLong(EpgContract.EXTRA_WINDOW_END),
+                        extras.getLong(EpgContract.EXTRA_BYTES));
+            }
+            case EpgContract.METHOD_GET_WINDOWS: {
+                return getEpgWindows(extras.getString(EpgContract.EXTRA_PROFILE), arg);
+            }
+            case EpgGuide.METHOD_GET_STATS: {
+                return getGuideStats();
+            }
+            case EpgRetention.METHOD_RUN_STEP: {
+                Bundle result = EpgRetention.getInstance(getContext())
+                        .runStep(mOpenHelper.getWritableDatabase());
+                if (result.getInt(EpgRetention.EXTRA_EVENTS) > 0) {
+                    notifyChange(EpgContract.EpgEntry.CONTENT_URI);
+                }
+                return result;
+            }
+            case EpgRetention.METHOD_GET_STATS: {
+                return EpgRetention.getInstance(getContext()).getStats();
+            }
+            case ChangeNotifier.METHOD_GET_STATS: {
+                return mChangeNotifier.getStats();
+            }
+            case SyncPolicy.METHOD_GET_STATS: {
+                return SyncPolicy.getInstance(getContext()).getStats();
+            }
+            case EpgContract.METHOD_DISCARD_STAGING: {
+                mOpenHelper.getWritableDatabase().delete(EpgContract.EpgEntry.STAGING_TABLE_NAME,
+                        EpgContract.EpgEntry.COLUMN_SESSION + " = ?", new String[]{arg});
+                return null;
             }
             default: {
-                return super.bulkInsert(uri, values);
+                return super.call(method, arg, extras);
             }
         }
     }
+
+    /**
+     * Merges the rows staged by a download session into the visible epg of a bouquet. Staged
+     * events are matched to the stored ones by service and event id: unchanged events are
+     * skipped, changed ones are updated in place and keep their row id, new ones are inserted.
+     * Stored events beginning within the window of the download that it no longer lists are
+     * removed, the rest of the epg of the bouquet is kept. The services of the staged rows are
+     * added to the box of the profile, the window is recorded as downloaded, and the merge is
+     * done in one transaction and observers are notified once, if anything changed.
+     * @param start The begin of the window in seconds since the epoch
+     * @param end The end of the window in seconds since the epoch
+     * @param bytes The bytes the download took
+     * @return the number of rows staged, written, skipped and removed by the merge, keyed by
+     * the method and the EXTRA constants of {@link EpgContract}
+     */
+    private Bundle swapEpgStaging(String session, String profile, String bref, long start,
+            long end, long bytes) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final String staging = EpgContract.EpgEntry.STAGING_TABLE_NAME;
+        final String epg = EpgContract.EpgEntry.TABLE_NAME;
+        int count;
+        int written;
+        int skipped;
+        int removed;
+
+        db.beginTransactionNonExclusive();
+        try {
+            LineupStore store = new LineupStore(db);
+            long box = store.boxId(profile);
+            String boxId = String.valueOf(box);
+            long bouquet = store.bouquetIdByRef(box, bref);
+            String bouquetId = String.valueOf(bouquet);
+            String[] keyArgs = new String[]{session, bouquetId};
+
+            // Services the channels of the box have not listed yet.
+            db.execSQL("INSERT OR IGNORE INTO " + LineupContract.ServiceEntry.TABLE_NAME
+                    + " (" + LineupContract.ServiceEntry.COLUMN_BOX_ID + ", "
+                    + LineupContract.ServiceEntry.COLUMN_SREF + ", "
+                    + LineupContract.ServiceEntry.COLUMN_NAME + ") SELECT ?, "
+                    + EpgContract.EpgEntry.COLUMN_SERVICE_REF + ", MAX("
+                    + EpgContract.EpgEntry.COLUMN_SNAME + ") FROM " + staging + " WHERE "
+                    + EpgContract.EpgEntry.COLUMN_SESSION + " = ? AND "
+                    + EpgContract.EpgEntry.COLUMN_SERVICE_REF + " IS NOT NULL GROUP BY "
+                    + EpgContract.EpgEntry.COLUMN_SERVICE_REF, new String[]{boxId, session});
+            count = executeUpdateDelete(db, "UPDATE " + staging + " SET "
+                    + EpgContract.EpgEntry.COLUMN_SERVICE_ID + " = (SELECT "
+                    + LineupContract.ServiceEntry._ID + " FROM "
+                    + LineupContract.ServiceEntry.TABLE_NAME + " WHERE "
+                    + LineupContract.ServiceEntry.COLUMN_BOX_ID + " = ?2 AND "
+                    + LineupContract.ServiceEntry.COLUMN_SREF + " = " + staging + "."
+                    + EpgContract.EpgEntry.COLUMN_SERVICE_REF + ") WHERE "
+                    + EpgContract.EpgEntry.COLUMN_SESSION + " = ?1",
+                    new String[]{session, boxId});
+
+            // The staged row with the key of a stored event, matched by the unique key of the
+            // epg. Events without an id never match, they are replaced as a whole.
+            String stagedKey = " FROM " + staging + " st WHERE st."
+                    + EpgContract.EpgEntry.COLUMN_SESSION + " = ?1 AND st."
+                    + EpgContract.EpgEntry.COLUMN_SERVICE_ID + " = " + epg + "."
+                    + EpgContract.EpgEntry.COLUMN_SERVICE_ID + " AND st."
+                    + EpgContract.EpgEntry.COLUMN_EVENT_ID + " = " + epg + "."
+                    + EpgContract.EpgEntry.COLUMN_EVENT_ID;
+            String storedKey = " FROM " + epg + " e WHERE e."
+                    + EpgContract.EpgEntry.COLUMN_BOUQUET_ID + " = ?2 AND e."
+                    + EpgContract.EpgEntry.COLUMN_SERVICE_ID + " = " + staging + "."
+                    + EpgContract.EpgEntry.COLUMN_SERVICE_ID + " AND e."
+                    + EpgContract.EpgEntry.COLUMN_EVENT_ID + " = " + staging + "."
+                    + EpgContract.EpgEntry.COLUMN_EVENT_ID;
+
+            // The events of the window the box has dropped or moved out of it.
+            removed = db.delete(epg, EpgContract.EpgEntry.COLUMN_BOUQUET_ID + " = ?2 AND "
+                    + EpgContract.EpgEntry.COLUMN_BEGIN_TIMESTAMP + " >= ?3 AND "
+                    + EpgContract.EpgEntry.COLUMN_BEGIN_TIMESTAMP + " < ?4 AND NOT EXISTS (SELECT 1"
+                    + stagedKey + ")", new String[]{session, bouquetId,
+                    String.valueOf(start), String.valueOf(end)});
+
+            // Staged events equal to the stored ones are dropped, they are not written again.
+            StringBuilder unchanged = new StringBuilder(storedKey);
+            for (String column : sEpgValueColumns) {
+                unchanged.append(" AND e.").append(column).append(" IS ").append(staging)
+                        .append('.').append(column);
+            }
+            skipped = db.delete(staging, EpgContract.EpgEntry.COLUMN_SESSION
+                    + " = ?1 AND EXISTS (SELECT 1" + unchanged + ")", keyArgs);
+
+            // The changed events keep their row, so anyone holding its id still finds it.
+            StringBuilder update = new StringBuilder("UPDATE " + epg + " SET ");
+            for (int i = 0; i < sEpgValueColumns.length; i++) {
+                String column = sEpgValueColumns[i];
+                update.append(i > 0 ? ", " : "").append(column).append(" = (SELECT st.")
+                        .append(column).append(stagedKey).append(" LIMIT 1)");
+            }
+            update.append(" WHERE ").append(EpgContract.EpgEntry.COLUMN_BOUQUET_ID)
+                    .append(" = ?2 AND EXISTS (SELECT 1").append(stagedKey).append(')');
+            written = executeUpdateDelete(db, update.toString(), keyArgs);
+            db.delete(staging, EpgContract.EpgEntry.COLUMN_SESSION
+                    + " = ?1 AND EXISTS (SELECT 1" + storedKey + ")", keyArgs);
+
+            // What is left is new. An event listed twice by the download is stored once.
+            written += executeUpdateDelete(db, "INSERT OR IGNORE INTO " + epg + " ("
+                    + EpgContract.EpgEntry.COLUMN_SERVICE_ID + ", "
+                    + EpgContract.EpgEntry.COLUMN_BOUQUET_ID + ", " + sEpgDataColumns
+                    + ") SELECT " + EpgContract.EpgEntry.COLUMN_SERVICE_ID + ", ?2, "
+                    + sEpgDataColumns + " FROM " + staging + " WHERE "
+                    + EpgContract.EpgEntry.COLUMN_SESSION + " = ?1 AND "
+                    + EpgContract.EpgEntry.COLUMN_SERVICE_ID + " IS NOT NULL", keyArgs);
+            db.delete(staging, EpgContract.EpgEntry.COLUMN_SESSION + " = ?",
+                    new String[]{session});
+
+            ContentValues window = new ContentValues();
+            window.put(EpgContract.WindowEntry.COLUMN_BOUQUET_ID, bouquet);
+            window.put(EpgContract.WindowEntry.COLUMN_WINDOW_START, start);
+            window.put(EpgContract.WindowEntry.COLUMN_WINDOW_END, end);
+            window.put(EpgContract.WindowEntry.COLUMN_FETCHED, System.currentTimeMillis());
+            window.put(EpgContract.WindowEntry.COLUMN_BYTES, bytes);
+            window.put(EpgContract.WindowEntry.COLUMN_EVENTS, count);
+            window.put(EpgContract.WindowEntry.COLUMN_WRITTEN, written);
+            window.put(EpgContract.WindowEntry.COLUMN_SKIPPED, skipped);
+            db.insertWithOnConflict(EpgContract.WindowEntry.TABLE_NAME, null, window,
+                    SQLiteDatabase.CONFLICT_REPLACE);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (written > 0 || removed > 0) {
+            notifyChange(bouquetUri(bref));
+        }
+        Bundle result = new Bundle();
+        result.putInt(EpgContract.METHOD_SWAP_STAGING, count);
+        result.putInt(EpgContract.EXTRA_WRITTEN, written);
+        result.putInt(EpgContract.EXTRA_SKIPPED, skipped);
+        result.putInt(EpgContract.EXTRA_REMOVED, removed);
+        return result;
+    }
+
+    /**
+     * Runs an update, delete or insert statement and returns the number of rows it changed.
+     */
+    private static int executeUpdateDelete(SQLiteDatabase db, String sql, String[] bindArgs) {
+        SQLiteStatement statement = db.compileStatement(sql);
+        try {
+            statement.bindAllArgsAsStrings(bindArgs);
+            return statement.executeUpdateDelete();
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Returns the start times of the downloaded windows of the epg of a bouquet, and the times
+     * they were downloaded at in the same order.
+     */
+    private Bundle getEpgWindows(String profile, String bref) {
+        Cursor cursor = mOpenHelper.getReadableDatabase().rawQuery("SELECT w."
+                + EpgContract.WindowEntry.COLUMN_WINDOW_START + ", w."
+                + EpgContract.WindowEntry.COLUMN_FETCHED + " FROM "
+                + EpgContract.WindowEntry.TABLE_NAME + " w JOIN "
+                + LineupContract.BouquetEntry.TABLE_NAME + " b ON b."
+                + LineupContract.BouquetEntry._ID + " = w."
+                + EpgContract.WindowEntry.COLUMN_BOUQUET_ID + " JOIN "
+                + LineupContract.BoxEntry.TABLE_NAME + " x ON x." + LineupContract.BoxEntry._ID
+                + " = b." + LineupContract.BouquetEntry.COLUMN_BOX_ID + " WHERE x."
+                + LineupContract.BoxEntry.COLUMN_NAME + " = ? AND b."
+                + LineupContract.BouquetEntry.COLUMN_BREF + " = ?",
+                new String[]{profile, bref});
+        try {
+            long[] starts = new long[cursor.getCount()];
+            long[] fetched = new long[starts.length];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                starts[i] = cursor.getLong(0);
+                fetched[i] = cursor.getLong(1);
+            }
+            Bundle result = new Bundle();
+            result.putLongArray(EpgContract.EXTRA_WINDOW_START, starts);
+            result.putLongArray(EpgContract.EXTRA_FETCHED, fetched);
+            return result;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns how many windows of the guide are stored, the hours and events they cover, the
+     * bytes they took to download, in total and per hour of guide, and the events their last
+     * merges wrote and skipped, keyed by the EXTRA constants of {@link EpgGuide}.
+     */
+    private Bundle getGuideStats() {
+        Cursor cursor = mOpenHelper.getReadableDatabase().rawQuery("SELECT COUNT(*), TOTAL("
+                + EpgContract.WindowEntry.COLUMN_WINDOW_END + " - "
+                + EpgContract.WindowEntry.COLUMN_WINDOW_START + "), TOTAL("
+                + EpgContract.WindowEntry.COLUMN_EVENTS + "), TOTAL("
+                + EpgContract.WindowEntry.COLUMN_BYTES + "), TOTAL("
+                + EpgContract.WindowEntry.COLUMN_WRITTEN + "), TOTAL("
+                + EpgContract.WindowEntry.COLUMN_SKIPPED + ") FROM "
+                + EpgContract.WindowEntry.TABLE_NAME, null);
+        try {
+            cursor.moveToFirst();
+            long seconds = cursor.getLong(1);
+            long bytes = cursor.getLong(3);
+            Bundle stats = new Bundle();
+            stats.putInt(EpgGuide.EXTRA_WINDOWS, cursor.getInt(0));
+            stats.putLong(EpgGuide.EXTRA_HOURS, seconds / 3600);
+            stats.putLong(EpgGuide.EXTRA_EVENTS, cursor.getLong(2));
+            stats.putLong(EpgGuide.EXTRA_BYTES, bytes);
+            stats.putLong(EpgGuide.EXTRA_BYTES_PER_HOUR, seconds > 0 ? bytes * 3600 / seconds : 0);
+            stats.putLong(EpgGuide.EXTRA_WRITTEN, cursor.getLong(4));
+            stats.putLong(EpgGuide.EXTRA_SKIPPED, cursor.getLong(5));
+            return stats;
+        } finally {
+            cursor.close();
+        }
+    }
 }
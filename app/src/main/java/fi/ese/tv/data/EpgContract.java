@@ -35,18 +35,54 @@ public final class EpgContract {
 
     // The content paths.
     public static final String PATH_EPG = "epg";
+    public static final String PATH_EPG_STAGING = "epg_staging";
+    public static final String PATH_BOUQUET = "bref";
+    public static final String PATH_SERVICE = "sref";
+
+    // Provider methods for publishing or dropping a staged epg download.
+    public static final String METHOD_SWAP_STAGING = "swap_epg_staging";
+    public static final String METHOD_DISCARD_STAGING = "discard_epg_staging";
+    public static final String EXTRA_BREF = "bref";
+    public static final String EXTRA_PROFILE = "profile";
+
+    // The time window a download covers, in seconds since the epoch, and the bytes it took.
+    public static final String EXTRA_WINDOW_START = "window_start";
+    public static final String EXTRA_WINDOW_END = "window_end";
+    public static final String EXTRA_BYTES = "bytes";
+
+    // The rows a merge wrote, found unchanged or removed, returned by METHOD_SWAP_STAGING.
+    public static final String EXTRA_WRITTEN = "written";
+    public static final String EXTRA_SKIPPED = "skipped";
+    public static final String EXTRA_REMOVED = "removed";
+
+    // Provider method returning the stored windows of a bouquet and when they were fetched.
+    public static final String METHOD_GET_WINDOWS = "get_epg_windows";
+    public static final String EXTRA_FETCHED = "fetched";
 
     public static final class EpgEntry implements BaseColumns {
 
         public static final Uri CONTENT_URI =
                 BASE_CONTENT_URI.buildUpon().appendPath(PATH_EPG).build();
 
+        public static final Uri CONTENT_URI_STAGING =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_EPG_STAGING).build();
+
         public static final String CONTENT_TYPE =
                 ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "." + PATH_EPG;
 
-        // Name of the video table.
+        // Name of the video table, one row per event of a service.
         public static final String TABLE_NAME = "epg";
 
+        // Name of the view queries read, with the service and bouquet of the event resolved.
+        public static final String VIEW_NAME = "epg_view";
+
+        // Name of the table downloads are written to before they replace the visible epg.
+        public static final String STAGING_TABLE_NAME = "epg_staging";
+
+        // Query parameter and staging column identifying one download.
+        public static final String PARAM_SESSION = "session";
+        public static final String COLUMN_SESSION = "session";
+
         // Column with the foreign key into the category table.
         public static final String COLUMN_ID = "_id";
         public static final String COLUMN_SNAME = "sname";
@@ -61,9 +97,66 @@ public final class EpgContract {
         public static final String COLUMN_GENREID = "genreid";
         public static final String COLUMN_LONGDESC = "longdesc";
 
+        // The id of the event on its service, as given by the box, or null if it gave none.
+        public static final String COLUMN_EVENT_ID = "event_id";
+
+        // The service reference of the event, which COLUMN_SREF is the stream url of. Rows are
+        // written with it and the profile they were fetched from.
+        public static final String COLUMN_SERVICE_REF = "service_ref";
+        public static final String COLUMN_PROFILE = "profile";
+
+        // Columns of the table only, with the keys into the bouquet and service tables.
+        public static final String COLUMN_BOUQUET_ID = "bouquet_id";
+        public static final String COLUMN_SERVICE_ID = "service_id";
+
         // Returns the Uri referencing a video with the specified id.
         public static Uri buildEpgUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
+
+        // Returns the Uri of the events of one bouquet, its cursors are notified only when the
+        // epg of that bouquet changes.
+        public static Uri buildBouquetUri(String bref) {
+            return CONTENT_URI.buildUpon()
+                    .appendPath(PATH_BOUQUET)
+                    .appendPath(bref)
+                    .build();
+        }
+
+        // Returns the Uri of the events of one service, in order of their begin time when paged.
+        // The service is given by its service reference, as in COLUMN_SERVICE_REF.
+        public static Uri buildServiceUri(String serviceRef) {
+            return CONTENT_URI.buildUpon()
+                    .appendPath(PATH_SERVICE)
+                    .appendPath(serviceRef)
+                    .build();
+        }
+
+        // Returns the Uri a download session writes its staged rows to.
+        public static Uri buildStagingUri(String session) {
+            return CONTENT_URI_STAGING.buildUpon()
+                    .appendQueryParameter(PARAM_SESSION, session)
+                    .build();
+        }
+    }
+
+    /**
+     * The time windows of the epg of a bouquet that have been downloaded, one row per window.
+     */
+    public static final class WindowEntry {
+
+        public static final String TABLE_NAME = "epg_window";
+
+        public static final String COLUMN_BOUQUET_ID = "bouquet_id";
+        public static final String COLUMN_WINDOW_START = "window_start";
+        public static final String COLUMN_WINDOW_END = "window_end";
+        // Wall-clock time of the download in milliseconds.
+        public static final String COLUMN_FETCHED = "fetched";
+        // Bytes received for the window and events it held.
+        public static final String COLUMN_BYTES = "bytes";
+        public static final String COLUMN_EVENTS = "events";
+        // Events the last merge wrote and the ones it found unchanged.
+        public static final String COLUMN_WRITTEN = "written";
+        public static final String COLUMN_SKIPPED = "skipped";
     }
 }
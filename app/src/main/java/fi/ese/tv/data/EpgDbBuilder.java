@@ -15,24 +15,22 @@
  */
 package fi.ese.tv.data;
 
+import android.content.ContentProvider;
+import android.content.ContentProviderClient;
+import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.media.Rating;
+import android.net.Uri;
+import android.util.JsonReader;
+import android.util.JsonToken;
 import android.util.Log;
 
-import androidx.annotation.NonNull;
-
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
+import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
 import javax.net.ssl.HttpsURLConnection;
 
@@ -56,10 +54,16 @@ public class EpgDbBuilder {
     public static final String TAG_GENREID = "genreid";
     public static final String TAG_LONGDESC = "longdesc";
 
+    // Number of events handed to the provider in one bulkInsert while streaming.
+    public static final int BATCH_SIZE = 200;
+
     private static final String TAG = "EpgDbBuilder";
 
     private Context mContext;
 
+    // Bytes received for the last response streamed by fetchInto.
+    private long mLastByteCount;
+
     /**
      * Default constructor that can be used for tests
      */
@@ -72,98 +76,225 @@ public class EpgDbBuilder {
     }
 
     /**
-     * Fetches JSON data representing epgs from a server and populates that in a database
-     * @param url The location of the epg list
+     * Streams the epg of a bouquet within a time window from a server straight into the
+     * database. The events array is parsed one event at a time and its fields are bound
+     * straight into a compiled insert when the provider runs in this process, or handed to the
+     * resolver in batches of {@link #BATCH_SIZE} otherwise, so the memory needed does not
+     * depend on the size of the response.
+     * @param resolver The resolver the rows are inserted through
+     * @param uri The content uri the rows are inserted into
+     * @param start The begin of the window in seconds since the epoch
+     * @param end The end of the window in seconds since the epoch
+     * @return the number of rows inserted, the events overlapping the window
      */
-    public @NonNull List<ContentValues> fetch(String auth, String url, String base, String bRef)
-            throws IOException, JSONException {
-
-        JSONObject videoData = fetchJSON(auth, url, bRef);
-        return buildMedia(videoData, base, bRef);
+    public int fetchInto(ContentResolver resolver, Uri uri, String auth, String url, String bRef,
+            long start, long end) throws IOException {
+        BoxHttpClient.Response response =
+                BoxHttpClient.getInstance().get(auth, buildUrl(url, bRef, start, end));
+        try {
+            return insertEvents(new JsonReader(new InputStreamReader(response.body, "utf-8")),
+                    resolver, uri, bRef);
+        } finally {
+            try {
+                response.close();
+            } catch (IOException e) {
+                Log.e(TAG, "JSON feed closed", e);
+            }
+            mLastByteCount = response.getByteCount();
+        }
     }
 
     /**
-     * Takes the contents of a JSON object and populates the database
-     * @param jsonObj The JSON object of videos
-     * @throws JSONException if the JSON object is invalid
+     * Returns the bytes received over the network for the last {@link #fetchInto}.
      */
-    public List<ContentValues> buildMedia(JSONObject jsonObj, String base, String bRef) throws JSONException {
-
-        JSONArray eventArray = jsonObj.getJSONArray(TAG_EVENTS);
-        List<ContentValues> contentValues = new ArrayList<>();
-
-        for (int i = 0; i < eventArray.length(); i++) {
-            JSONObject epg = eventArray.getJSONObject(i);
-
-            //Long id = epg.optLong(TAG_ID);
-            String sname = epg.optString(TAG_SNAME);
-            String title = epg.optString(TAG_TITLE);
-            Long begin_timestamp = epg.optLong(TAG_BEGIN_TIMESTAMP);
-            Long now_timestamp = epg.optLong(TAG_NOW_TIMESTAMP);
-            String sref = epg.optString(TAG_SREF);
-            String genre = epg.optString(TAG_GENRE);
-            Long duration_Sec = epg.optLong(TAG_DURATION_SEC);
-            String shortdesc = epg.optString(TAG_SHORTDESC);
-            Long genreid = epg.optLong(TAG_GENREID);
-            String longdesc = epg.optString(TAG_LONGDESC);
-
-            ContentValues epgValues = new ContentValues();
-            //epgValues.put(EpgContract.EpgEntry.COLUMN_ID, id);
-            epgValues.put(EpgContract.EpgEntry.COLUMN_SNAME, sname);
-            epgValues.put(EpgContract.EpgEntry.COLUMN_TITLE, title);
-            epgValues.put(EpgContract.EpgEntry.COLUMN_BEGIN_TIMESTAMP, begin_timestamp);
-            epgValues.put(EpgContract.EpgEntry.COLUMN_NOW_TIMESTAMP, now_timestamp);
-            epgValues.put(EpgContract.EpgEntry.COLUMN_SREF, base + sref);
-            epgValues.put(EpgContract.EpgEntry.COLUMN_BREF, bRef);
-            epgValues.put(EpgContract.EpgEntry.COLUMN_GENRE, genre);
-            epgValues.put(EpgContract.EpgEntry.COLUMN_DURATION_SEC, duration_Sec);
-            epgValues.put(EpgContract.EpgEntry.COLUMN_SHORTDESC, shortdesc);
-            epgValues.put(EpgContract.EpgEntry.COLUMN_GENREID, genreid);
-            epgValues.put(EpgContract.EpgEntry.COLUMN_LONGDESC, longdesc);
-
-            contentValues.add(epgValues);
+    public long getLastByteCount() {
+        return mLastByteCount;
+    }
+
+    private int insertEvents(JsonReader reader, ContentResolver resolver, Uri uri, String bRef)
+            throws IOException {
+        ContentProviderClient client = resolver.acquireContentProviderClient(uri);
+        EpgRowSink sink = openSink(client, resolver, uri);
+        StringPool pool = new StringPool();
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (!TAG_EVENTS.equals(reader.nextName())
+                        || reader.peek() != JsonToken.BEGIN_ARRAY) {
+                    reader.skipValue();
+                    continue;
+                }
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    readEvent(reader, sink, bRef, pool);
+                }
+                reader.endArray();
+            }
+            reader.endObject();
+            return sink.finish();
+        } finally {
+            sink.close();
+            if (client != null) {
+                client.close();
+            }
+        }
+    }
+
+    private static EpgRowSink openSink(ContentProviderClient client, ContentResolver resolver,
+            Uri uri) {
+        String session = uri.getQueryParameter(EpgContract.EpgEntry.PARAM_SESSION);
+        ContentProvider provider = client == null ? null : client.getLocalContentProvider();
+        if (session != null && provider instanceof DatabaseProvider) {
+            // In the provider's own process the fields are bound straight into its database.
+            return ((DatabaseProvider) provider).openEpgStagingWriter(session);
         }
-        return contentValues;
+        return new ResolverSink(resolver, uri);
     }
 
     /**
-     * Fetch JSON object from a given URL.
-     *
-     * @return the JSONObject representation of the response
-     * @throws JSONException
-     * @throws IOException
+     * Reads a single event object from the stream into database values. The service is kept
+     * as its reference, the provider resolves its stream url from the box. The service and
+     * genre repeat on every event, they are shared through the pool of the fetch.
      */
-    private JSONObject fetchJSON(String auth, String urlString, String bRef) throws JSONException, IOException {
-        BufferedReader reader = null;
-        String queryString = "";
+    private void readEvent(JsonReader reader, EpgRowSink sink, String bRef, StringPool pool)
+            throws IOException {
+        sink.bindString(EpgRowSink.BREF, bRef);
 
-        if (bRef != null)
-            queryString = URLEncoder.encode(bRef, "UTF-8");
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            switch (name) {
+                case TAG_SNAME:
+                    sink.bindString(EpgRowSink.SNAME, pool.intern(nextString(reader)));
+                    break;
+                case TAG_TITLE:
+                    sink.bindString(EpgRowSink.TITLE, nextString(reader));
+                    break;
+                case TAG_BEGIN_TIMESTAMP:
+                    sink.bindLong(EpgRowSink.BEGIN_TIMESTAMP, nextLong(reader));
+                    break;
+                case TAG_NOW_TIMESTAMP:
+                    sink.bindLong(EpgRowSink.NOW_TIMESTAMP, nextLong(reader));
+                    break;
+                case TAG_SREF:
+                    sink.bindString(EpgRowSink.SERVICE_REF, pool.intern(nextString(reader)));
+                    break;
+                case TAG_GENRE:
+                    sink.bindString(EpgRowSink.GENRE, pool.intern(nextString(reader)));
+                    break;
+                case TAG_DURATION_SEC:
+                    sink.bindLong(EpgRowSink.DURATION_SEC, nextLong(reader));
+                    break;
+                case TAG_SHORTDESC:
+                    sink.bindString(EpgRowSink.SHORTDESC, nextString(reader));
+                    break;
+                case TAG_GENREID:
+                    sink.bindLong(EpgRowSink.GENREID, nextLong(reader));
+                    break;
+                case TAG_LONGDESC:
+                    sink.bindString(EpgRowSink.LONGDESC, nextString(reader));
+                    break;
+                case TAG_ID:
+                    // An event without an id is stored unkeyed.
+                    if (reader.peek() == JsonToken.NULL) {
+                        reader.skipValue();
+                    } else {
+                        sink.bindLong(EpgRowSink.EVENT_ID, nextLong(reader));
+                    }
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        sink.endRow();
+    }
 
-        java.net.URL url = new java.net.URL(urlString + "api/epgnow?bRef=" + queryString);
-        HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
+    private static String nextString(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return "";
+        }
+        return reader.nextString();
+    }
 
-        try {
-            urlConnection.setRequestProperty("Authorization", auth);
-
-            reader = new BufferedReader(new InputStreamReader(urlConnection.getInputStream(),
-                    "utf-8"));
-            StringBuilder sb = new StringBuilder();
-            String line;
-            while ((line = reader.readLine()) != null) {
-                sb.append(line);
-            }
-            String json = sb.toString();
-            return new JSONObject(json);
-        } finally {
-            urlConnection.disconnect();
-            if (null != reader) {
+    private static long nextLong(JsonReader reader) throws IOException {
+        switch (reader.peek()) {
+            case NUMBER:
+                return reader.nextLong();
+            case STRING:
                 try {
-                    reader.close();
-                } catch (IOException e) {
-                    Log.e(TAG, "JSON feed closed", e);
+                    return Long.parseLong(reader.nextString());
+                } catch (NumberFormatException e) {
+                    return 0;
                 }
+            default:
+                reader.skipValue();
+                return 0;
+        }
+    }
+
+    // The events of the services of a bouquet overlapping a window. OpenWebif takes the length
+    // of the window in minutes.
+    private static String buildUrl(String urlString, String bRef, long start, long end)
+            throws UnsupportedEncodingException {
+        return urlString + "api/epgmulti?bRef=" + URLEncoder.encode(bRef, "UTF-8")
+                + "&time=" + start + "&endTime=" + (end - start) / 60;
+    }
+
+    /**
+     * Collects the bound fields into rows and hands them to a content resolver in batches of
+     * {@link #BATCH_SIZE}, for uris that are not served by a provider in this process.
+     */
+    private static final class ResolverSink implements EpgRowSink {
+        private final ContentResolver mResolver;
+        private final Uri mUri;
+        private final ContentValues[] mBatch = new ContentValues[BATCH_SIZE];
+        private int mBatchCount;
+        private int mInsertCount;
+        private ContentValues mRow = new ContentValues();
+
+        ResolverSink(ContentResolver resolver, Uri uri) {
+            mResolver = resolver;
+            mUri = uri;
+        }
+
+        @Override
+        public void bindString(int column, String value) {
+            mRow.put(COLUMNS[column - 1], value);
+        }
+
+        @Override
+        public void bindLong(int column, long value) {
+            mRow.put(COLUMNS[column - 1], value);
+        }
+
+        @Override
+        public void endRow() {
+            // The begin timestamp is mandatory in the table.
+            if (!mRow.containsKey(EpgContract.EpgEntry.COLUMN_BEGIN_TIMESTAMP)) {
+                mRow.put(EpgContract.EpgEntry.COLUMN_BEGIN_TIMESTAMP, 0L);
             }
+            mBatch[mBatchCount++] = mRow;
+            mRow = new ContentValues();
+            if (mBatchCount == BATCH_SIZE) {
+                mInsertCount += mResolver.bulkInsert(mUri, mBatch);
+                mBatchCount = 0;
+            }
+        }
+
+        @Override
+        public int finish() {
+            if (mBatchCount > 0) {
+                mInsertCount += mResolver.bulkInsert(mUri, Arrays.copyOf(mBatch, mBatchCount));
+                mBatchCount = 0;
+            }
+            return mInsertCount;
+        }
+
+        @Override
+        public void close() {
         }
     }
 }
@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.ese.tv.data;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.os.Bundle;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * EpgGuide loads the multi-day epg of a bouquet from its box in time windows of
+ * {@link #WINDOW_SECONDS}, aligned to the epoch, up to {@link #MAX_AHEAD_SECONDS} ahead. Only
+ * the windows a screen asks for are loaded, and of those only the ones never downloaded or
+ * stale. A downloaded window is merged into the stored epg by event id, so the other windows
+ * are kept.
+ *
+ * The window the current time falls in is stale after the epg time to live of the
+ * {@link SyncPolicy}, later windows after {@link #AHEAD_TTL_MS}. Past windows are not
+ * downloaded again.
+ */
+public class EpgGuide {
+    private static final String TAG = "EpgGuide";
+
+    public static final long WINDOW_SECONDS = 6 * 60 * 60;
+    public static final long MAX_AHEAD_SECONDS = 7 * 24 * 60 * 60;
+
+    // The schedule ahead changes rarely, only now and next all the time.
+    public static final long AHEAD_TTL_MS = 60 * 60 * 1000L;
+
+    public static final String METHOD_GET_STATS = "get_guide_stats";
+    public static final String EXTRA_WINDOWS = "windows";
+    public static final String EXTRA_HOURS = "hours";
+    public static final String EXTRA_EVENTS = "events";
+    public static final String EXTRA_BYTES = "bytes";
+    public static final String EXTRA_BYTES_PER_HOUR = "bytes_per_hour";
+    public static final String EXTRA_WRITTEN = "written";
+    public static final String EXTRA_SKIPPED = "skipped";
+
+    // The states of a window after loadWindow().
+    public static final int WINDOW_STORED = 0;
+    public static final int WINDOW_FAILED = 1;
+    // Another caller is downloading the window, it is not stored yet.
+    public static final int WINDOW_LOADING = 2;
+
+    private static EpgGuide sInstance;
+
+    private final Context mContext;
+
+    private EpgGuide(Context context) {
+        mContext = context;
+    }
+
+    public static synchronized EpgGuide getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new EpgGuide(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the start of the window a time falls in.
+     * @param seconds The time in seconds since the epoch
+     */
+    public static long windowStart(long seconds) {
+        return seconds - seconds % WINDOW_SECONDS;
+    }
+
+    /**
+     * Loads the windows of the epg of a bouquet overlapping a time range that are missing or
+     * stale. Safe to call from any background thread, it blocks until the windows are stored.
+     * @param from The begin of the range in seconds since the epoch
+     * @param until The end of the range in seconds since the epoch
+     * @return whether every window of the range is now stored, false if one failed or is
+     *         still being downloaded by another caller
+     */
+    public boolean load(BoxProfile profile, String bref, long from, long until) {
+        long now = System.currentTimeMillis();
+        long last = windowStart(now / 1000) + MAX_AHEAD_SECONDS;
+        Map<Long, Long> stored = getStoredWindows(profile, bref);
+
+        boolean succeeded = true;
+        for (long start = windowStart(from); start < Math.min(until, last);
+                start += WINDOW_SECONDS) {
+            Long fetched = stored.get(start);
+            if (fetched == null || isStale(start, fetched, now)) {
+                succeeded &= loadWindow(profile, bref, start) == WINDOW_STORED;
+            } else {
+                SyncPolicy.getInstance(mContext).servedFresh();
+            }
+        }
+        return succeeded;
+    }
+
+    /**
+     * Downloads one window of the epg of a bouquet and merges it into the stored epg, unless
+     * it is being downloaded already. The download is recorded in the {@link SyncPolicy}, the
+     * time it was fetched at is kept with the window.
+     * @param start The start of the window, as returned by {@link #windowStart}
+     * @return {@link #WINDOW_STORED}, {@link #WINDOW_FAILED} or {@link #WINDOW_LOADING}
+     */
+    public int loadWindow(BoxProfile profile, String bref, long start) {
+        SyncPolicy policy = SyncPolicy.getInstance(mContext);
+        String scope = bref + "_" + start;
+        if (!policy.beginRevalidate(profile, SyncPolicy.DATASET_EPG, scope)) {
+            return WINDOW_LOADING;
+        }
+        boolean succeeded = false;
+        try {
+            succeeded = fetchWindow(profile, bref, start, start + WINDOW_SECONDS);
+        } finally {
+            policy.revalidateDone(profile, SyncPolicy.DATASET_EPG, scope, succeeded);
+        }
+        return succeeded ? WINDOW_STORED : WINDOW_FAILED;
+    }
+
+    private boolean isStale(long start, long fetched, long now) {
+        if ((start + WINDOW_SECONDS) * 1000 <= now) {
+            return false;
+        }
+        long ttl = start * 1000 <= now
+                ? SyncPolicy.getInstance(mContext).getTtlMillis(SyncPolicy.DATASET_EPG)
+                : AHEAD_TTL_MS;
+        long age = now - fetched;
+        // A clock set back makes the stored time useless.
+        return age < 0 || age >= ttl;
+    }
+
+    private boolean fetchWindow(BoxProfile profile, String bref, long start, long end) {
+        EpgDbBuilder builder = new EpgDbBuilder(mContext);
+
+        try {
+            // The download goes to a staging area first, it is merged into the visible epg of
+            // the bouquet only once the whole download has succeeded.
+            String session = UUID.randomUUID().toString();
+            ContentResolver resolver = mContext.getContentResolver();
+            try {
+                int count = builder.fetchInto(resolver,
+                        EpgContract.EpgEntry.buildStagingUri(session), profile.auth,
+                        profile.webUrl, bref, start, end);
+                long bytes = builder.getLastByteCount();
+                Bundle extras = new Bundle();
+                extras.putString(EpgContract.EXTRA_BREF, bref);
+                extras.putString(EpgContract.EXTRA_PROFILE, profile.name);
+                extras.putLong(EpgContract.EXTRA_WINDOW_START, start);
+                extras.putLong(EpgContract.EXTRA_WINDOW_END, end);
+                extras.putLong(EpgContract.EXTRA_BYTES, bytes);
+                Bundle merged = resolver.call(EpgContract.EpgEntry.CONTENT_URI,
+                        EpgContract.METHOD_SWAP_STAGING, session, extras);
+                if (merged == null) {
+                    throw new IllegalStateException("No epg provider to merge " + session);
+                }
+                Log.d(TAG, "Merged " + count + " events of " + bref + " from " + start
+                        + ", " + merged.getInt(EpgContract.EXTRA_WRITTEN) + " written, "
+                        + merged.getInt(EpgContract.EXTRA_SKIPPED) + " unchanged, "
+                        + merged.getInt(EpgContract.EXTRA_REMOVED) + " removed, "
+                        + bytes + " bytes, " + bytes * 3600 / (end - start) + " bytes per hour");
+                return true;
+            } catch (IOException | RuntimeException e) {
+                resolver.call(EpgContract.EpgEntry.CONTENT_URI, EpgContract.METHOD_DISCARD_STAGING,
+                        session, null);
+                throw e;
+            }
+
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Error occurred in downloading epg window", e);
+            return false;
+        }
+    }
+
+    // The start times of the stored windows of a bouquet, with the times they were fetched at.
+    private Map<Long, Long> getStoredWindows(BoxProfile profile, String bref) {
+        Bundle extras = new Bundle();
+        extras.putString(EpgContract.EXTRA_PROFILE, profile.name);
+        Bundle result = mContext.getContentResolver().call(EpgContract.EpgEntry.CONTENT_URI,
+                EpgContract.METHOD_GET_WINDOWS, bref, extras);
+        Map<Long, Long> windows = new HashMap<>();
+        if (result != null) {
+            long[] starts = result.getLongArray(EpgContract.EXTRA_WINDOW_START);
+            long[] fetched = result.getLongArray(EpgContract.EXTRA_FETCHED);
+            for (int i = 0; i < starts.length; i++) {
+                windows.put(starts[i], fetched[i]);
+            }
+        }
+        return windows;
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.ese.tv.data;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Bundle;
+import android.util.Log;
+
+import fi.ese.tv.data.EpgContract.EpgEntry;
+import fi.ese.tv.data.EpgContract.WindowEntry;
+
+/**
+ * EpgRetention keeps the epg and the database file bounded. Events that ended longer than the
+ * retention horizon ago are deleted, with the guide windows that ended before it, and the pages
+ * they freed are given back to the file system by incremental vacuum.
+ *
+ * The work is done in steps of at most {@link #EVENTS_PER_STEP} events or
+ * {@link #PAGES_PER_STEP} pages, each one short write transaction, so syncs are not held up
+ * and loaders keep reading their snapshot of the write-ahead log. {@link EpgRetentionService}
+ * runs the steps while the device is idle.
+ */
+public class EpgRetention {
+    private static final String TAG = "EpgRetention";
+
+    public static final String METHOD_RUN_STEP = "run_epg_retention_step";
+    public static final String METHOD_GET_STATS = "get_epg_retention_stats";
+    public static final String EXTRA_EVENTS = "events";
+    public static final String EXTRA_WINDOWS = "windows";
+    public static final String EXTRA_PAGES = "pages";
+    public static final String EXTRA_BYTES_RECLAIMED = "bytes_reclaimed";
+    // Set on the result of a step when nothing is left to delete or reclaim.
+    public static final String EXTRA_DONE = "done";
+
+    // Finished events are kept this long, unless changed through setHorizonMillis.
+    public static final long DEFAULT_HORIZON_MS = 6 * 60 * 60 * 1000L;
+
+    public static final int EVENTS_PER_STEP = 500;
+    public static final int PAGES_PER_STEP = 64;
+
+    private static final String PREFERENCES = "epg_retention";
+    private static final String PREF_HORIZON = "horizon_ms";
+
+    private static EpgRetention sInstance;
+
+    private final SharedPreferences mPreferences;
+
+    private long mEvents;
+    private long mWindows;
+    private long mPages;
+    private long mBytesReclaimed;
+
+    private EpgRetention(Context context) {
+        mPreferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    public static synchronized EpgRetention getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new EpgRetention(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    public long getHorizonMillis() {
+        return mPreferences.getLong(PREF_HORIZON, DEFAULT_HORIZON_MS);
+    }
+
+    public void setHorizonMillis(long horizon) {
+        mPreferences.edit().putLong(PREF_HORIZON, horizon).apply();
+    }
+
+    /**
+     * Runs one step: deletes a batch of expired events, or once none are left, reclaims a
+     * batch of free pages. Must not be called inside a transaction.
+     * @return what the step deleted and reclaimed, keyed by the EXTRA constants
+     */
+    synchronized Bundle runStep(SQLiteDatabase db) {
+        Bundle result = new Bundle();
+        long cutoff = (System.currentTimeMillis() - getHorizonMillis()) / 1000;
+        String[] cutoffArgs = {String.valueOf(cutoff)};
+
+        int events;
+        int windows = 0;
+        db.beginTransactionNonExclusive();
+        try {
+            // An event ends after it begins, so the index on the begin time narrows the scan.
+            events = db.delete(EpgEntry.TABLE_NAME, EpgEntry._ID + " IN (SELECT "
+                    + EpgEntry._ID + " FROM " + EpgEntry.TABLE_NAME + " WHERE "
+                    + EpgEntry.COLUMN_BEGIN_TIMESTAMP + " < ?1 AND "
+                    + EpgEntry.COLUMN_BEGIN_TIMESTAMP + " + IFNULL("
+                    + EpgEntry.COLUMN_DURATION_SEC + ", 0) < ?1 LIMIT " + EVENTS_PER_STEP + ")",
+                    cutoffArgs);
+            if (events < EVENTS_PER_STEP) {
+                windows = db.delete(WindowEntry.TABLE_NAME,
+                        WindowEntry.COLUMN_WINDOW_END + " < ?", cutoffArgs);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        long pages = 0;
+        boolean done = false;
+        if (events == 0) {
+            pages = reclaimPages(db);
+            done = pages == 0;
+        }
+
+        long pageSize = DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
+        mEvents += events;
+        mWindows += windows;
+        mPages += pages;
+        mBytesReclaimed += pages * pageSize;
+
+        result.putInt(EXTRA_EVENTS, events);
+        result.putInt(EXTRA_WINDOWS, windows);
+        result.putLong(EXTRA_PAGES, pages);
+        result.putLong(EXTRA_BYTES_RECLAIMED, pages * pageSize);
+        result.putBoolean(EXTRA_DONE, done);
+        if (!done) {
+            Log.d(TAG, "Deleted " + events + " events and " + windows + " windows, reclaimed "
+                    + pages * pageSize + " bytes");
+        }
+        return result;
+    }
+
+    /**
+     * Returns how many events, windows and pages were deleted and reclaimed by this process,
+     * keyed by the EXTRA constants.
+     */
+    public synchronized Bundle getStats() {
+        Bundle stats = new Bundle();
+        stats.putLong(EXTRA_EVENTS, mEvents);
+        stats.putLong(EXTRA_WINDOWS, mWindows);
+        stats.putLong(EXTRA_PAGES, mPages);
+        stats.putLong(EXTRA_BYTES_RECLAIMED, mBytesReclaimed);
+        return stats;
+    }
+
+    // Gives back up to PAGES_PER_STEP free pages, returns the number given back. The
+    // database is in incremental auto vacuum mode, see DatabaseHelper.onConfigure.
+    private long reclaimPages(SQLiteDatabase db) {
+        // The deleted events leave their pages in the full-text index until its segments
+        // are merged, a little of that work is done with every step.
+        db.execSQL("INSERT INTO " + SearchIndex.EPG_FTS_TABLE + " (" + SearchIndex.EPG_FTS_TABLE
+                + ") VALUES ('merge=" + PAGES_PER_STEP + ",8')");
+
+        if (DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null) == 0) {
+            return 0;
+        }
+        long before = pageCount(db);
+        // Every page given back is a row of the pragma, the cursor steps through all of them.
+        Cursor cursor = db.rawQuery("PRAGMA incremental_vacuum(" + PAGES_PER_STEP + ")", null);
+        try {
+            cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+        return before - pageCount(db);
+    }
+
+    private static long pageCount(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "PRAGMA page_count", null);
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.ese.tv.data;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * EpgRetentionService runs the steps of {@link EpgRetention} once a day while the device is
+ * idle, until nothing is left to delete or reclaim or the system stops the job.
+ */
+public class EpgRetentionService extends JobService {
+    private static final String TAG = "EpgRetentionService";
+
+    private static final int JOB_ID = 1;
+    private static final long PERIOD_MS = 24 * 60 * 60 * 1000L;
+
+    // Pause between steps, so a sync waiting for the database gets its turn.
+    private static final long STEP_PAUSE_MS = 50;
+
+    private volatile boolean mStopped;
+
+    /**
+     * Schedules the daily job unless it is scheduled already.
+     */
+    public static void schedule(Context context) {
+        JobScheduler scheduler = context.getSystemService(JobScheduler.class);
+        if (scheduler == null || scheduler.getPendingJob(JOB_ID) != null) {
+            return;
+        }
+        JobInfo job = new JobInfo.Builder(JOB_ID,
+                new ComponentName(context, EpgRetentionService.class))
+                .setRequiresDeviceIdle(true)
+                .setPeriodic(PERIOD_MS)
+                .setPersisted(true)
+                .build();
+        scheduler.schedule(job);
+    }
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        mStopped = false;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runSteps();
+                jobFinished(params, false);
+            }
+        }, TAG);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        // The next run continues where this one stopped.
+        mStopped = true;
+        return false;
+    }
+
+    private void runSteps() {
+        ContentResolver resolver = getContentResolver();
+        long start = SystemClock.elapsedRealtime();
+        long events = 0;
+        long bytes = 0;
+        while (!mStopped) {
+            Bundle step = resolver.call(EpgContract.EpgEntry.CONTENT_URI,
+                    EpgRetention.METHOD_RUN_STEP, null, null);
+            if (step == null) {
+                break;
+            }
+            events += step.getInt(EpgRetention.EXTRA_EVENTS);
+            bytes += step.getLong(EpgRetention.EXTRA_BYTES_RECLAIMED);
+            if (step.getBoolean(EpgRetention.EXTRA_DONE)) {
+                break;
+            }
+            SystemClock.sleep(STEP_PAUSE_MS);
+        }
+        Log.d(TAG, (mStopped ? "Stopped" : "Done") + " after "
+                + (SystemClock.elapsedRealtime() - start) + " ms, deleted " + events
+                + " events and reclaimed " + bytes + " bytes");
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.ese.tv.data;
+
+import java.io.Closeable;
+
+/**
+ * EpgRowSink receives parsed epg events one field at a time, the way a compiled statement is
+ * bound, so a parser does not have to build a row object per event.
+ */
+public interface EpgRowSink extends Closeable {
+
+    // The columns a field can be bound to, by the slot numbers used below.
+    String[] COLUMNS = {
+            EpgContract.EpgEntry.COLUMN_SNAME,
+            EpgContract.EpgEntry.COLUMN_TITLE,
+            EpgContract.EpgEntry.COLUMN_BEGIN_TIMESTAMP,
+            EpgContract.EpgEntry.COLUMN_NOW_TIMESTAMP,
+            EpgContract.EpgEntry.COLUMN_SERVICE_REF,
+            EpgContract.EpgEntry.COLUMN_BREF,
+            EpgContract.EpgEntry.COLUMN_GENRE,
+            EpgContract.EpgEntry.COLUMN_DURATION_SEC,
+            EpgContract.EpgEntry.COLUMN_SHORTDESC,
+            EpgContract.EpgEntry.COLUMN_GENREID,
+            EpgContract.EpgEntry.COLUMN_LONGDESC,
+            EpgContract.EpgEntry.COLUMN_EVENT_ID
+    };
+
+    int SNAME = 1;
+    int TITLE = 2;
+    int BEGIN_TIMESTAMP = 3;
+    int NOW_TIMESTAMP = 4;
+    int SERVICE_REF = 5;
+    int BREF = 6;
+    int GENRE = 7;
+    int DURATION_SEC = 8;
+    int SHORTDESC = 9;
+    int GENREID = 10;
+    int LONGDESC = 11;
+    int EVENT_ID = 12;
+
+    void bindString(int column, String value);
+
+    void bindLong(int column, long value);
+
+    /**
+     * Writes the bound row and clears the bindings for the next one. Columns left unbound are
+     * null, except the begin timestamp which is 0.
+     */
+    void endRow();
+
+    /**
+     * Writes any rows still buffered.
+     * @return the number of rows written since the sink was opened
+     */
+    int finish();
+
+    /**
+     * Releases the sink. Rows not yet written by {@link #finish()} may be lost.
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.ese.tv.data;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.text.TextUtils;
+
+import java.util.Arrays;
+
+/**
+ * EpgStagingWriter buffers parsed epg fields for one compiled INSERT into the staging table of
+ * a download session. It is used on one thread. Every
+ * {@link DatabaseProvider#ROWS_PER_TRANSACTION} rows the buffer is written in one short
+ * transaction, so the write lock is never held while the parser waits for the network.
+ */
+public class EpgStagingWriter implements EpgRowSink {
+    private static final int SESSION = COLUMNS.length + 1;
+
+    private final SQLiteDatabase mDb;
+    private final SQLiteStatement mInsert;
+    private final String mSession;
+    // The bound rows not yet written, reused from batch to batch. A column slot holds a long
+    // when its bit in the mask of the row is set, else a string or null, so no value is boxed.
+    private final String[][] mStrings =
+            new String[DatabaseProvider.ROWS_PER_TRANSACTION][SESSION];
+    private final long[][] mLongs = new long[DatabaseProvider.ROWS_PER_TRANSACTION][SESSION];
+    private final int[] mLongMasks = new int[DatabaseProvider.ROWS_PER_TRANSACTION];
+    private int mBuffered;
+    private int mCount;
+
+    EpgStagingWriter(SQLiteDatabase db, String session) {
+        mDb = db;
+        mSession = session;
+
+        StringBuilder placeholders = new StringBuilder("?");
+        for (int i = 1; i < SESSION; i++) {
+            placeholders.append(", ?");
+        }
+        mInsert = db.compileStatement("INSERT INTO " + EpgContract.EpgEntry.STAGING_TABLE_NAME
+                + " (" + TextUtils.join(", ", COLUMNS) + ", "
+                + EpgContract.EpgEntry.COLUMN_SESSION + ") VALUES (" + placeholders + ")");
+        clearRow();
+    }
+
+    @Override
+    public void bindString(int column, String value) {
+        mStrings[mBuffered][column] = value;
+        mLongMasks[mBuffered] &= ~(1 << column);
+    }
+
+    @Override
+    public void bindLong(int column, long value) {
+        mLongs[mBuffered][column] = value;
+        mLongMasks[mBuffered] |= 1 << column;
+    }
+
+    @Override
+    public void endRow() {
+        mCount++;
+        if (++mBuffered == mLongMasks.length) {
+            commit();
+        }
+        clearRow();
+    }
+
+    @Override
+    public int finish() {
+        commit();
+        return mCount;
+    }
+
+    @Override
+    public void close() {
+        // An unfinished download, the buffered rows are dropped.
+        mBuffered = 0;
+        mInsert.close();
+    }
+
+    private void clearRow() {
+        Arrays.fill(mStrings[mBuffered], null);
+        mLongs[mBuffered][BEGIN_TIMESTAMP] = 0;
+        mLongMasks[mBuffered] = 1 << BEGIN_TIMESTAMP;
+    }
+
+    // Writes the buffered rows in one transaction.
+    private void commit() {
+        if (mBuffered == 0) {
+            return;
+        }
+        mDb.beginTransactionNonExclusive();
+        try {
+            for (int i = 0; i < mBuffered; i++) {
+                mInsert.clearBindings();
+                for (int column = 1; column < SESSION; column++) {
+                    if ((mLongMasks[i] & (1 << column)) != 0) {
+                        mInsert.bindLong(column, mLongs[i][column]);
+                    } else if (mStrings[i][column] != null) {
+                        mInsert.bindString(column, mStrings[i][column]);
+                    }
+                }
+                mInsert.bindString(SESSION, mSession);
+                mInsert.executeInsert();
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        mBuffered = 0;
+    }
+}
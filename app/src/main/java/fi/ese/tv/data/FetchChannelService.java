@@ -18,6 +18,7 @@ package fi.ese.tv.data;
 
 import android.app.IntentService;
 import android.content.ContentValues;
+import android.content.Context;
 import android.content.Intent;
 import android.util.Log;
 
@@ -44,22 +45,34 @@ public class FetchChannelService extends IntentService {
 
     @Override
     protected void onHandleIntent(Intent workIntent) {
-      ChannelDbBuilder builder = new ChannelDbBuilder(getApplicationContext());
+        sync(getApplicationContext(), BoxProfile.fromIntent(workIntent));
+    }
 
-        try {
-            String auth = workIntent.getStringExtra("auth");
-            String url = workIntent.getStringExtra("download_url");
-            String base = workIntent.getStringExtra("base");
+    /**
+     * Downloads the channel lineup of a box and syncs it into the database. Safe to call from
+     * any background thread. Returns whether the stored lineup is now up to date.
+     */
+    public static boolean sync(Context context, BoxProfile profile) {
+        ChannelDbBuilder builder = new ChannelDbBuilder(context);
 
+        try {
             List<ContentValues> contentValuesList =
-                    builder.fetch(auth, url, base);
+                    builder.fetchIfChanged(profile.auth, profile.webUrl, profile.streamUrl);
+            if (contentValuesList == null) {
+                // Nothing to write, and no reason to wake up the loaders.
+                return true;
+            }
             ContentValues[] downloadedVideoContentValues =
                     contentValuesList.toArray(new ContentValues[contentValuesList.size()]);
-            getApplicationContext().getContentResolver().bulkInsert(ChannelContract.VideoEntry.CONTENT_URI,
+            context.getContentResolver().bulkInsert(
+                    ChannelContract.VideoEntry.buildSyncUri(ChannelContract.VideoEntry.CONTENT_URI, profile.name),
                     downloadedVideoContentValues);
+            builder.commitResponse();
+            return true;
         } catch (IOException | JSONException e) {
             Log.e(TAG, "Error occurred in downloading videos");
             e.printStackTrace();
+            return false;
         }
     }
 }
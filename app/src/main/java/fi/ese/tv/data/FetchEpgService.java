@@ -17,14 +17,8 @@
 package fi.ese.tv.data;
 
 import android.app.IntentService;
-import android.content.ContentValues;
+import android.content.Context;
 import android.content.Intent;
-import android.util.Log;
-
-import org.json.JSONException;
-
-import java.io.IOException;
-import java.util.List;
 
 /**
  * FetchEpgService is responsible for fetching the epg from the Internet and inserting the
@@ -44,27 +38,17 @@ public class FetchEpgService extends IntentService {
 
     @Override
     protected void onHandleIntent(Intent workIntent) {
-      EpgDbBuilder builder = new EpgDbBuilder(getApplicationContext());
-
-        try {
-            String auth = workIntent.getStringExtra("auth");
-            String url = workIntent.getStringExtra("download_url");
-            String base = workIntent.getStringExtra("base");
-            String bref = workIntent.getStringExtra("bref");
-
-            getApplicationContext().getContentResolver().delete(EpgContract.EpgEntry.CONTENT_URI,
-                    EpgContract.EpgEntry.COLUMN_BREF + " = ?", new String[] {bref});
-
-            List<ContentValues> contentValuesList =
-                    builder.fetch(auth, url, base, bref);
-            ContentValues[] downloadedVideoContentValues =
-                    contentValuesList.toArray(new ContentValues[contentValuesList.size()]);
-            getApplicationContext().getContentResolver().bulkInsert(EpgContract.EpgEntry.CONTENT_URI,
-                    downloadedVideoContentValues);
+        sync(getApplicationContext(), BoxProfile.fromIntent(workIntent),
+                workIntent.getStringExtra("bref"));
+    }
 
-        } catch (IOException | JSONException e) {
-            Log.e(TAG, "Error occurred in downloading videos");
-            e.printStackTrace();
-        }
+    /**
+     * Loads the window of the epg of a bouquet the current time falls in through the
+     * {@link EpgGuide}, if it is missing or stale. Safe to call from any background thread.
+     * Returns whether the stored epg is now up to date.
+     */
+    public static boolean sync(Context context, BoxProfile profile, String bref) {
+        long now = System.currentTimeMillis() / 1000;
+        return EpgGuide.getInstance(context).load(profile, bref, now, now + 1);
     }
 }
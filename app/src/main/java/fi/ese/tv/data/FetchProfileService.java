@@ -17,13 +17,17 @@
 package fi.ese.tv.data;
 
 import android.app.IntentService;
+import android.content.ContentProviderOperation;
 import android.content.ContentValues;
 import android.content.Intent;
+import android.content.OperationApplicationException;
+import android.os.RemoteException;
 import android.util.Log;
 
 import org.json.JSONException;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -47,17 +51,25 @@ public class FetchProfileService extends IntentService {
       ProfileDbBuilder builder = new ProfileDbBuilder(getApplicationContext());
 
         try {
-            getApplicationContext().getContentResolver().delete(ProfileContract.ProfileEntry.CONTENT_URI,
-                    ProfileContract.ProfileEntry.COLUMN_AUTH+ " = ?", new String[] { "Basic cm9vdDowc2thcmkhMQ=="});
-
             List<ContentValues> contentValuesList =
                     builder.fetch();
-            ContentValues[] downloadedValues =
-                    contentValuesList.toArray(new ContentValues[contentValuesList.size()]);
-            getApplicationContext().getContentResolver().bulkInsert(ProfileContract.ProfileEntry.CONTENT_URI,
-                    downloadedValues);
 
-        } catch (IOException | JSONException e) {
+            // Replace the profiles in one transaction, so observers see one change.
+            ArrayList<ContentProviderOperation> operations =
+                    new ArrayList<>(contentValuesList.size() + 1);
+            operations.add(ContentProviderOperation.newDelete(ProfileContract.ProfileEntry.CONTENT_URI)
+                    .withSelection(ProfileContract.ProfileEntry.COLUMN_AUTH + " = ?",
+                            new String[] { "Basic cm9vdDowc2thcmkhMQ=="})
+                    .build());
+            for (ContentValues values : contentValuesList) {
+                operations.add(ContentProviderOperation.newInsert(ProfileContract.ProfileEntry.CONTENT_URI)
+                        .withValues(values)
+                        .build());
+            }
+            getApplicationContext().getContentResolver().applyBatch(
+                    ProfileContract.CONTENT_AUTHORITY, operations);
+
+        } catch (IOException | JSONException | RemoteException | OperationApplicationException e) {
             Log.e(TAG, "Error occurred in reading profiles");
             e.printStackTrace();
         }
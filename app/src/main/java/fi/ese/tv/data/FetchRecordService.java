@@ -18,6 +18,7 @@ package fi.ese.tv.data;
 
 import android.app.IntentService;
 import android.content.ContentValues;
+import android.content.Context;
 import android.content.Intent;
 import android.util.Log;
 
@@ -43,22 +44,34 @@ public class FetchRecordService extends IntentService {
 
     @Override
     protected void onHandleIntent(Intent workIntent) {
-      RecordingDbBuilder builder = new RecordingDbBuilder(getApplicationContext());
+        sync(getApplicationContext(), BoxProfile.fromIntent(workIntent));
+    }
 
-        try {
-            String auth = workIntent.getStringExtra("auth");
-            String url = workIntent.getStringExtra("download_url");
-            String base = workIntent.getStringExtra("base");
+    /**
+     * Downloads the recordings of a box and syncs them into the database. Safe to call from
+     * any background thread. Returns whether the stored recordings are now up to date.
+     */
+    public static boolean sync(Context context, BoxProfile profile) {
+        RecordingDbBuilder builder = new RecordingDbBuilder(context);
 
+        try {
             List<ContentValues> contentValuesList =
-                    builder.fetch(auth, url, base);
+                    builder.fetchIfChanged(profile.auth, profile.webUrl, profile.streamUrl);
+            if (contentValuesList == null) {
+                // Nothing to write, and no reason to wake up the loaders.
+                return true;
+            }
             ContentValues[] downloadedVideoContentValues =
                     contentValuesList.toArray(new ContentValues[contentValuesList.size()]);
-            getApplicationContext().getContentResolver().bulkInsert(ChannelContract.VideoEntry.CONTENT_URI_REC,
+            context.getContentResolver().bulkInsert(
+                    ChannelContract.VideoEntry.buildSyncUri(ChannelContract.VideoEntry.CONTENT_URI_REC, profile.name),
                     downloadedVideoContentValues);
+            builder.commitResponse();
+            return true;
         } catch (IOException | JSONException e) {
             Log.e(TAG, "Error occurred in downloading videos");
             e.printStackTrace();
+            return false;
         }
     }
 }
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.ese.tv.data;
+
+import android.provider.BaseColumns;
+
+/**
+ * LineupContract represents the boxes, bouquets and services the channel and epg rows refer to.
+ * The tables are internal to the provider, which resolves them into the channel and epg views.
+ */
+public final class LineupContract {
+
+    private LineupContract() {
+    }
+
+    public static final class BoxEntry implements BaseColumns {
+
+        // Name of the box table, kept up to date from the profile table by triggers.
+        public static final String TABLE_NAME = "box";
+
+        // Name of the profile of the box.
+        public static final String COLUMN_NAME = "name";
+        public static final String COLUMN_AUTH = "auth";
+
+        // Base url of the OpenWebif api and of the stream port, ending with a slash.
+        public static final String COLUMN_WEB_URL = "web_url";
+        public static final String COLUMN_STREAM_URL = "stream_url";
+    }
+
+    public static final class BouquetEntry implements BaseColumns {
+
+        // Name of the bouquet table, one row per bouquet of a box.
+        public static final String TABLE_NAME = "bouquet";
+
+        public static final String COLUMN_BOX_ID = "box_id";
+
+        // Name of the bouquet, shown as the category of its channels.
+        public static final String COLUMN_NAME = "name";
+
+        // The bouquet reference the epg of the bouquet is fetched by.
+        public static final String COLUMN_BREF = "bref";
+    }
+
+    public static final class ServiceEntry implements BaseColumns {
+
+        // Name of the service table, one row per service of a box however many bouquets list it.
+        public static final String TABLE_NAME = "service";
+
+        public static final String COLUMN_BOX_ID = "box_id";
+        public static final String COLUMN_SREF = "sref";
+        public static final String COLUMN_NAME = "name";
+    }
+}
@@ -0,0 +1,464 @@
+/*
+ * Copyright (c) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.ese.tv.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import fi.ese.tv.data.ChannelContract.VideoEntry;
+import fi.ese.tv.data.EpgContract.EpgEntry;
+import fi.ese.tv.data.EpgContract.WindowEntry;
+import fi.ese.tv.data.LineupContract.BouquetEntry;
+import fi.ese.tv.data.LineupContract.BoxEntry;
+import fi.ese.tv.data.LineupContract.ServiceEntry;
+import fi.ese.tv.data.ProfileContract.ProfileEntry;
+
+/**
+ * LineupStore turns channel and epg rows, given with the columns of the channel and epg views,
+ * into rows of the normalized tables. It finds or creates the box, bouquet and service a row
+ * refers to, and leaves out the stream url, picon and auth the views derive from the box, so
+ * those are stored only for rows where they differ. Ids are cached for the lifetime of the
+ * store, so use one per transaction. Boxes, bouquets and services are removed again with the
+ * profile or lineup that listed them.
+ */
+final class LineupStore {
+
+    // The picon url of a live channel, the way ChannelDbBuilder builds it: the service reference
+    // without its last character and with ':' replaced by '_'.
+    static final String PICON_SQL = "CASE WHEN c." + VideoEntry.COLUMN_IS_LIVE + " THEN x."
+            + BoxEntry.COLUMN_WEB_URL + " || 'picon/' || replace(substr(s."
+            + ServiceEntry.COLUMN_SREF + ", 1, length(s." + ServiceEntry.COLUMN_SREF
+            + ") - 1), ':', '_') || '.png' END";
+
+    /**
+     * The urls and auth of a box.
+     */
+    private static final class Box {
+        final long id;
+        final String auth;
+        final String webUrl;
+        final String streamUrl;
+
+        Box(long id, String auth, String webUrl, String streamUrl) {
+            this.id = id;
+            this.auth = auth;
+            this.webUrl = webUrl;
+            this.streamUrl = streamUrl;
+        }
+    }
+
+    private final SQLiteDatabase mDb;
+    private final Map<String, Box> mBoxes = new HashMap<>();
+    private final Map<String, Long> mBouquets = new HashMap<>();
+    private final Map<String, Long> mServices = new HashMap<>();
+
+    LineupStore(SQLiteDatabase db) {
+        mDb = db;
+    }
+
+    /**
+     * Returns the row of the channel table for a channel, recording or bouquet row of the
+     * channel view. The row must have a profile and a category.
+     */
+    ContentValues toChannelRow(ContentValues values) {
+        String profile = values.getAsString(VideoEntry.COLUMN_PROFILE);
+        String category = values.getAsString(VideoEntry.COLUMN_CATEGORY);
+        if (profile == null || category == null) {
+            throw new IllegalArgumentException("Channel rows need a profile and a category");
+        }
+        Box box = box(profile);
+        boolean live = isTrue(values, VideoEntry.COLUMN_IS_LIVE);
+        boolean bouquetRow = !live && !isTrue(values, VideoEntry.COLUMN_IS_RECORDING);
+        String serviceRef = values.getAsString(VideoEntry.COLUMN_SERVICE_REF);
+
+        ContentValues row = new ContentValues(values);
+        row.remove(VideoEntry.COLUMN_CATEGORY);
+        row.remove(VideoEntry.COLUMN_SERVICE_REF);
+        // A bouquet row carries the reference of its bouquet, a live channel its service.
+        row.put(VideoEntry.COLUMN_BOUQUET_ID,
+                bouquetId(box.id, category, bouquetRow ? serviceRef : null));
+        if (live && serviceRef != null) {
+            row.put(VideoEntry.COLUMN_SERVICE_ID,
+                    serviceId(box.id, serviceRef, values.getAsString(VideoEntry.COLUMN_NAME)));
+        } else {
+            row.putNull(VideoEntry.COLUMN_SERVICE_ID);
+        }
+
+        String streamUrl;
+        String picon = null;
+        if (live) {
+            streamUrl = box.streamUrl == null || serviceRef == null ? null
+                    : box.streamUrl + serviceRef;
+            picon = piconUrl(box.webUrl, serviceRef);
+        } else {
+            streamUrl = bouquetRow ? serviceRef : null;
+        }
+        putIfNotDerived(row, VideoEntry.COLUMN_STREAM_URL, streamUrl);
+        putIfNotDerived(row, VideoEntry.COLUMN_CARD_IMG, picon);
+        putIfNotDerived(row, VideoEntry.COLUMN_BG_IMAGE_URL, picon);
+        putIfNotDerived(row, VideoEntry.COLUMN_AUTH, box.auth);
+        return row;
+    }
+
+    /**
+     * Returns the changes of an update of channel rows. The profile, category and service of
+     * a row cannot be changed this way, sync the row instead.
+     */
+    static ContentValues toChannelChanges(ContentValues values) {
+        if (values.containsKey(VideoEntry.COLUMN_PROFILE)
+                || values.containsKey(VideoEntry.COLUMN_CATEGORY)
+                || values.containsKey(VideoEntry.COLUMN_SERVICE_REF)) {
+            throw new IllegalArgumentException("The profile, category and service of a channel"
+                    + " are changed by a sync");
+        }
+        return values;
+    }
+
+    /**
+     * Returns the row of the epg table for a row of the epg view. The row must have a profile,
+     * a service reference and a bouquet reference.
+     */
+    ContentValues toEpgRow(ContentValues values) {
+        String profile = values.getAsString(EpgEntry.COLUMN_PROFILE);
+        String serviceRef = values.getAsString(EpgEntry.COLUMN_SERVICE_REF);
+        String bref = values.getAsString(EpgEntry.COLUMN_BREF);
+        if (profile == null || serviceRef == null || bref == null) {
+            throw new IllegalArgumentException("Epg rows need a profile, service and bouquet");
+        }
+        Box box = box(profile);
+
+        ContentValues row = new ContentValues(values);
+        row.remove(EpgEntry.COLUMN_PROFILE);
+        row.remove(EpgEntry.COLUMN_SERVICE_REF);
+        row.remove(EpgEntry.COLUMN_SREF);
+        row.remove(EpgEntry.COLUMN_SNAME);
+        row.remove(EpgEntry.COLUMN_BREF);
+        row.put(EpgEntry.COLUMN_SERVICE_ID,
+                serviceId(box.id, serviceRef, values.getAsString(EpgEntry.COLUMN_SNAME)));
+        row.put(EpgEntry.COLUMN_BOUQUET_ID, bouquetIdByRef(box.id, bref));
+        return row;
+    }
+
+    /**
+     * Returns the changes of an update of epg rows. The service and bouquet of an event cannot
+     * be changed this way, download the epg again instead.
+     */
+    static ContentValues toEpgChanges(ContentValues values) {
+        if (values.containsKey(EpgEntry.COLUMN_PROFILE)
+                || values.containsKey(EpgEntry.COLUMN_SERVICE_REF)
+                || values.containsKey(EpgEntry.COLUMN_SREF)
+                || values.containsKey(EpgEntry.COLUMN_SNAME)
+                || values.containsKey(EpgEntry.COLUMN_BREF)) {
+            throw new IllegalArgumentException("The service and bouquet of an event are changed"
+                    + " by a download");
+        }
+        return values;
+    }
+
+    /**
+     * Converts rows of the channel view in one transaction, see {@link #toChannelRow}.
+     */
+    ContentValues[] toChannelRows(ContentValues[] values) {
+        ContentValues[] rows = new ContentValues[values.length];
+        mDb.beginTransactionNonExclusive();
+        try {
+            for (int i = 0; i < values.length; i++) {
+                rows[i] = toChannelRow(values[i]);
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        return rows;
+    }
+
+    /**
+     * Converts rows of the epg view in one transaction, see {@link #toEpgRow}.
+     */
+    ContentValues[] toEpgRows(ContentValues[] values) {
+        ContentValues[] rows = new ContentValues[values.length];
+        mDb.beginTransactionNonExclusive();
+        try {
+            for (int i = 0; i < values.length; i++) {
+                rows[i] = toEpgRow(values[i]);
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        return rows;
+    }
+
+    /**
+     * Returns the id of the box of a profile, adding a box without urls if the profile is not
+     * known yet.
+     */
+    long boxId(String profile) {
+        return box(profile).id;
+    }
+
+    /**
+     * Returns the id of a bouquet of a box by its name. A bouquet first seen by its reference
+     * in the epg takes the name.
+     * @param bref The bouquet reference, or null if the row does not know it
+     */
+    long bouquetId(long boxId, String name, String bref) {
+        String key = boxId + "\u0000" + name;
+        Long cached = mBouquets.get(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        String[] args = {name, String.valueOf(boxId)};
+        Cursor cursor = mDb.query(BouquetEntry.TABLE_NAME,
+                new String[]{BouquetEntry._ID, BouquetEntry.COLUMN_BREF},
+                BouquetEntry.COLUMN_NAME + " = ? AND " + BouquetEntry.COLUMN_BOX_ID + " = ?",
+                args, null, null, null);
+        long id = -1;
+        String storedRef = null;
+        try {
+            if (cursor.moveToFirst()) {
+                id = cursor.getLong(0);
+                storedRef = cursor.getString(1);
+            }
+        } finally {
+            cursor.close();
+        }
+        boolean renamed = false;
+        if (id == -1 && bref != null) {
+            id = findBouquetByRef(boxId, bref);
+            storedRef = bref;
+            renamed = id != -1;
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(BouquetEntry.COLUMN_NAME, name);
+        if (bref != null) {
+            values.put(BouquetEntry.COLUMN_BREF, bref);
+        }
+        if (id == -1) {
+            values.put(BouquetEntry.COLUMN_BOX_ID, boxId);
+            id = mDb.insertOrThrow(BouquetEntry.TABLE_NAME, null, values);
+        } else if (renamed || bref != null && !bref.equals(storedRef)) {
+            mDb.update(BouquetEntry.TABLE_NAME, values, BouquetEntry._ID + " = ?",
+                    new String[]{String.valueOf(id)});
+        }
+        mBouquets.put(key, id);
+        return id;
+    }
+
+    /**
+     * Returns the id of a bouquet of a box by its reference, adding a bouquet named by the
+     * reference until the channels of the box name it.
+     */
+    long bouquetIdByRef(long boxId, String bref) {
+        String key = boxId + "\u0001" + bref;
+        Long cached = mBouquets.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        long id = findBouquetByRef(boxId, bref);
+        if (id == -1) {
+            ContentValues values = new ContentValues();
+            values.put(BouquetEntry.COLUMN_BOX_ID, boxId);
+            values.put(BouquetEntry.COLUMN_NAME, bref);
+            values.put(BouquetEntry.COLUMN_BREF, bref);
+            id = mDb.insertOrThrow(BouquetEntry.TABLE_NAME, null, values);
+        }
+        mBouquets.put(key, id);
+        return id;
+    }
+
+    private long findBouquetByRef(long boxId, String bref) {
+        Cursor cursor = mDb.query(BouquetEntry.TABLE_NAME, new String[]{BouquetEntry._ID},
+                BouquetEntry.COLUMN_BREF + " = ? AND " + BouquetEntry.COLUMN_BOX_ID + " = ?",
+                new String[]{bref, String.valueOf(boxId)}, null, null, null, "1");
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns the id of a service of a box, adding it if it is new.
+     * @param name The name of the service, it replaces the stored name if not null
+     */
+    long serviceId(long boxId, String serviceRef, String name) {
+        String key = boxId + "\u0000" + serviceRef;
+        Long cached = mServices.get(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        Cursor cursor = mDb.query(ServiceEntry.TABLE_NAME,
+                new String[]{ServiceEntry._ID, ServiceEntry.COLUMN_NAME},
+                ServiceEntry.COLUMN_SREF + " = ? AND " + ServiceEntry.COLUMN_BOX_ID + " = ?",
+                new String[]{serviceRef, String.valueOf(boxId)}, null, null, null);
+        long id = -1;
+        String storedName = null;
+        try {
+            if (cursor.moveToFirst()) {
+                id = cursor.getLong(0);
+                storedName = cursor.getString(1);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(ServiceEntry.COLUMN_NAME, name);
+        if (id == -1) {
+            values.put(ServiceEntry.COLUMN_BOX_ID, boxId);
+            values.put(ServiceEntry.COLUMN_SREF, serviceRef);
+            id = mDb.insertOrThrow(ServiceEntry.TABLE_NAME, null, values);
+        } else if (name != null && !name.equals(storedName)) {
+            mDb.update(ServiceEntry.TABLE_NAME, values, ServiceEntry._ID + " = ?",
+                    new String[]{String.valueOf(id)});
+        }
+        mServices.put(key, id);
+        return id;
+    }
+
+    private Box box(String profile) {
+        Box box = mBoxes.get(profile);
+        if (box != null) {
+            return box;
+        }
+
+        Cursor cursor = mDb.query(BoxEntry.TABLE_NAME, new String[]{BoxEntry._ID,
+                        BoxEntry.COLUMN_AUTH, BoxEntry.COLUMN_WEB_URL, BoxEntry.COLUMN_STREAM_URL},
+                BoxEntry.COLUMN_NAME + " = ?", new String[]{profile}, null, null, null);
+        try {
+            if (cursor.moveToFirst()) {
+                box = new Box(cursor.getLong(0), cursor.getString(1), cursor.getString(2),
+                        cursor.getString(3));
+            }
+        } finally {
+            cursor.close();
+        }
+        if (box == null) {
+            // Rows of a profile that was never stored keep all of their urls.
+            ContentValues values = new ContentValues();
+            values.put(BoxEntry.COLUMN_NAME, profile);
+            box = new Box(mDb.insertOrThrow(BoxEntry.TABLE_NAME, null, values), null, null, null);
+        }
+        mBoxes.put(profile, box);
+        return box;
+    }
+
+    /**
+     * Removes the box of a profile that is no longer stored, with its bouquets, services,
+     * channels and epg.
+     * @return whether there was a box to remove
+     */
+    boolean removeBox(String profile) {
+        if (DatabaseUtils.queryNumEntries(mDb, ProfileEntry.TABLE_NAME,
+                ProfileEntry.COLUMN_NAME + " = ?", new String[]{profile}) > 0) {
+            return false;
+        }
+        Cursor cursor = mDb.query(BoxEntry.TABLE_NAME, new String[]{BoxEntry._ID},
+                BoxEntry.COLUMN_NAME + " = ?", new String[]{profile}, null, null, null);
+        String[] args;
+        try {
+            if (!cursor.moveToFirst()) {
+                return false;
+            }
+            args = new String[]{cursor.getString(0)};
+        } finally {
+            cursor.close();
+        }
+
+        String ofBox = " IN (SELECT " + BouquetEntry._ID + " FROM " + BouquetEntry.TABLE_NAME
+                + " WHERE " + BouquetEntry.COLUMN_BOX_ID + " = ?)";
+        mDb.delete(VideoEntry.TABLE_NAME, VideoEntry.COLUMN_BOUQUET_ID + ofBox, args);
+        mDb.delete(EpgEntry.TABLE_NAME, EpgEntry.COLUMN_BOUQUET_ID + ofBox, args);
+        mDb.delete(WindowEntry.TABLE_NAME, WindowEntry.COLUMN_BOUQUET_ID + ofBox, args);
+        mDb.delete(ServiceEntry.TABLE_NAME, ServiceEntry.COLUMN_BOX_ID + " = ?", args);
+        mDb.delete(BouquetEntry.TABLE_NAME, BouquetEntry.COLUMN_BOX_ID + " = ?", args);
+        mDb.delete(BoxEntry.TABLE_NAME, BoxEntry._ID + " = ?", args);
+        forgetIds();
+        return true;
+    }
+
+    /**
+     * Removes the bouquets of a box that no channel, recording or bouquet row lists anymore,
+     * with their epg, and the services of the box no channel or event refers to.
+     * @return the number of bouquets removed
+     */
+    int removeUnlisted(long boxId) {
+        String[] args = {String.valueOf(boxId)};
+        String unlisted = " IN (SELECT b." + BouquetEntry._ID + " FROM "
+                + BouquetEntry.TABLE_NAME + " b WHERE b." + BouquetEntry.COLUMN_BOX_ID
+                + " = ? AND NOT EXISTS (SELECT 1 FROM " + VideoEntry.TABLE_NAME + " c WHERE c."
+                + VideoEntry.COLUMN_BOUQUET_ID + " = b." + BouquetEntry._ID + "))";
+        mDb.delete(EpgEntry.TABLE_NAME, EpgEntry.COLUMN_BOUQUET_ID + unlisted, args);
+        mDb.delete(WindowEntry.TABLE_NAME, WindowEntry.COLUMN_BOUQUET_ID + unlisted, args);
+        int bouquets = mDb.delete(BouquetEntry.TABLE_NAME, BouquetEntry._ID + unlisted, args);
+        mDb.delete(ServiceEntry.TABLE_NAME, ServiceEntry.COLUMN_BOX_ID + " = ? AND NOT EXISTS"
+                + " (SELECT 1 FROM " + VideoEntry.TABLE_NAME + " WHERE "
+                + VideoEntry.COLUMN_SERVICE_ID + " = " + ServiceEntry.TABLE_NAME + "."
+                + ServiceEntry._ID + ") AND NOT EXISTS (SELECT 1 FROM " + EpgEntry.TABLE_NAME
+                + " WHERE " + EpgEntry.COLUMN_SERVICE_ID + " = " + ServiceEntry.TABLE_NAME + "."
+                + ServiceEntry._ID + ")", args);
+        forgetIds();
+        return bouquets;
+    }
+
+    // The cached ids may name removed rows.
+    private void forgetIds() {
+        mBoxes.clear();
+        mBouquets.clear();
+        mServices.clear();
+    }
+
+    /**
+     * Returns the picon url of a service, as {@link #PICON_SQL} derives it.
+     */
+    static String piconUrl(String webUrl, String serviceRef) {
+        if (webUrl == null || serviceRef == null) {
+            return null;
+        }
+        String trimmed = serviceRef.isEmpty() ? serviceRef
+                : serviceRef.substring(0, serviceRef.length() - 1);
+        return webUrl + "picon/" + trimmed.replace(':', '_') + ".png";
+    }
+
+    // Stores a column only if the view would not derive the same value.
+    private static void putIfNotDerived(ContentValues row, String column, String derived) {
+        if (!row.containsKey(column)) {
+            return;
+        }
+        String value = row.getAsString(column);
+        if (value == null || value.equals(derived)) {
+            row.putNull(column);
+        }
+    }
+
+    private static boolean isTrue(ContentValues values, String column) {
+        Object value = values.get(column);
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        }
+        return value != null && !"0".equals(value.toString()) && !"false".equals(value.toString());
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.ese.tv.data;
+
+import android.net.Uri;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * PageQuery reads the keyset paging parameters of a query uri. A page holds at most
+ * {@link #PARAM_LIMIT} rows following the row whose key is given by the {@link #PARAM_AFTER}
+ * values, in the order of the key columns of the path. The key ends with the row id, so it is
+ * unique and a page never repeats or skips a row, and the query seeks to the first row of the
+ * page through an index instead of skipping over the rows before it. A null key value is
+ * listed by its position in {@link #PARAM_AFTER_NULL}, nulls sort first as in SQLite.
+ */
+public final class PageQuery {
+
+    // Query parameters of a paged query.
+    public static final String PARAM_LIMIT = "limit";
+    public static final String PARAM_AFTER = "after";
+    public static final String PARAM_AFTER_NULL = "after_null";
+    public static final String PARAM_OFFSET = "offset";
+
+    private final String[] mKeyColumns;
+    private final int mLimit;
+    private final int mOffset;
+    private final List<String> mAfter;
+
+    private PageQuery(String[] keyColumns, int limit, int offset, List<String> after) {
+        mKeyColumns = keyColumns;
+        mLimit = limit;
+        mOffset = offset;
+        mAfter = after;
+    }
+
+    /**
+     * Returns the uri of a page of the rows of the given uri.
+     * @param limit The maximum number of rows of the page
+     * @param afterKey The key values of the last row of the previous page, none for the first
+     *                 page
+     */
+    public static Uri buildPageUri(Uri uri, int limit, String... afterKey) {
+        return buildPageUri(uri, limit, 0, afterKey);
+    }
+
+    /**
+     * Returns the uri of the rows of the given uri that follow the key, skipping the first
+     * ones. The skipped rows are stepped over in the index the key seeks, so this finds a row
+     * far ahead with one query.
+     * @param offset The number of rows to skip after the key
+     */
+    public static Uri buildPageUri(Uri uri, int limit, int offset, String... afterKey) {
+        Uri.Builder builder = uri.buildUpon()
+                .appendQueryParameter(PARAM_LIMIT, String.valueOf(limit));
+        if (offset > 0) {
+            builder.appendQueryParameter(PARAM_OFFSET, String.valueOf(offset));
+        }
+        for (int i = 0; i < afterKey.length; i++) {
+            if (afterKey[i] == null) {
+                builder.appendQueryParameter(PARAM_AFTER, "");
+                builder.appendQueryParameter(PARAM_AFTER_NULL, String.valueOf(i));
+            } else {
+                builder.appendQueryParameter(PARAM_AFTER, afterKey[i]);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Returns the page asked for by the uri, or null if the uri asks for all rows.
+     * @param keyColumns The columns the rows of the uri are ordered by, ending with the row id
+     */
+    static PageQuery parse(Uri uri, String... keyColumns) {
+        String limit = uri.getQueryParameter(PARAM_LIMIT);
+        if (limit == null) {
+            return null;
+        }
+        List<String> after = new ArrayList<>(uri.getQueryParameters(PARAM_AFTER));
+        if (!after.isEmpty() && after.size() != keyColumns.length) {
+            throw new IllegalArgumentException("Expected " + keyColumns.length
+                    + " key values in " + uri);
+        }
+        try {
+            for (String index : uri.getQueryParameters(PARAM_AFTER_NULL)) {
+                after.set(Integer.parseInt(index), null);
+            }
+            String offset = uri.getQueryParameter(PARAM_OFFSET);
+            return new PageQuery(keyColumns, Integer.parseInt(limit),
+                    offset == null ? 0 : Integer.parseInt(offset), after);
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Invalid limit or key in " + uri);
+        }
+    }
+
+    /**
+     * Returns the condition selecting the rows after the key, or null for the first page.
+     * Written out column by column, since row value comparisons need a newer SQLite. The
+     * bound on the first column comes first, so the query can seek an index to it instead of
+     * testing every row of the index against the alternatives.
+     */
+    String getSelection() {
+        if (mAfter.isEmpty()) {
+            return null;
+        }
+        StringBuilder selection = new StringBuilder();
+        if (mAfter.get(0) != null) {
+            selection.append(mKeyColumns[0]).append(" >= ? AND ");
+        }
+        selection.append('(');
+        for (int i = 0; i < mKeyColumns.length; i++) {
+            if (i > 0) {
+                selection.append(" OR ");
+            }
+            selection.append('(');
+            for (int j = 0; j < i; j++) {
+                selection.append(mKeyColumns[j])
+                        .append(mAfter.get(j) == null ? " IS NULL AND " : " = ? AND ");
+            }
+            // Every value is greater than null.
+            selection.append(mKeyColumns[i])
+                    .append(mAfter.get(i) == null ? " IS NOT NULL)" : " > ?)");
+        }
+        return selection.append(')').toString();
+    }
+
+    String[] getSelectionArgs() {
+        List<String> args = new ArrayList<>();
+        if (!mAfter.isEmpty() && mAfter.get(0) != null) {
+            args.add(mAfter.get(0));
+        }
+        for (int i = 0; i < mAfter.size(); i++) {
+            for (String value : mAfter.subList(0, i + 1)) {
+                if (value != null) {
+                    args.add(value);
+                }
+            }
+        }
+        return args.toArray(new String[args.size()]);
+    }
+
+    String getSortOrder() {
+        return TextUtils.join(", ", mKeyColumns);
+    }
+
+    String getLimit() {
+        return mOffset > 0 ? mOffset + "," + mLimit : String.valueOf(mLimit);
+    }
+
+    /**
+     * Returns the projection with the key columns added, the caller needs them to ask for the
+     * next page.
+     */
+    String[] getProjection(String[] projection) {
+        if (projection == null) {
+            return null;
+        }
+        List<String> columns = new ArrayList<>(Arrays.asList(projection));
+        for (String column : mKeyColumns) {
+            if (!columns.contains(column)) {
+                columns.add(column);
+            }
+        }
+        return columns.toArray(new String[columns.size()]);
+    }
+}
@@ -34,6 +34,7 @@ public final class ProfileContract {
 
     // The content paths.
     public static final String PATH_PROFILE = "profile";
+    public static final String PATH_NAME = "name";
 
     public static final class ProfileEntry implements BaseColumns {
 
@@ -60,5 +61,13 @@ public final class ProfileContract {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
 
+        // Returns the Uri of the profile with the given name.
+        public static Uri buildProfileNameUri(String name) {
+            return CONTENT_URI.buildUpon()
+                    .appendPath(PATH_NAME)
+                    .appendPath(name)
+                    .build();
+        }
+
     }
 }
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.ese.tv.data;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * ProfileRepository keeps the profiles of the boxes in memory for the screens. The profile
+ * table is read once on a background thread and again whenever it changes, and listeners get
+ * the immutable profiles on the main thread, so no screen queries the database for them.
+ */
+public class ProfileRepository {
+    private static final String TAG = "ProfileRepository";
+
+    /**
+     * Gets the profiles on the main thread when they are loaded and whenever they change.
+     */
+    public interface Listener {
+        void onProfilesChanged(List<BoxProfile> profiles);
+    }
+
+    private static ProfileRepository sInstance;
+
+    private final Context mContext;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    // Touched on the main thread only.
+    private final List<Listener> mListeners = new ArrayList<>();
+    private volatile List<BoxProfile> mProfiles;
+
+    private ProfileRepository(Context context) {
+        mContext = context;
+        mContext.getContentResolver().registerContentObserver(
+                ProfileContract.ProfileEntry.CONTENT_URI, true,
+                new ContentObserver(mMainHandler) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        load();
+                    }
+                });
+        load();
+    }
+
+    public static synchronized ProfileRepository getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ProfileRepository(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the profiles, or null if they have not been loaded yet.
+     */
+    public List<BoxProfile> getProfiles() {
+        return mProfiles;
+    }
+
+    /**
+     * Adds a listener, which gets the profiles right away if they are loaded. Called on the
+     * main thread.
+     */
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+        List<BoxProfile> profiles = mProfiles;
+        if (profiles != null) {
+            listener.onProfilesChanged(profiles);
+        }
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    private void load() {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<BoxProfile> profiles = query();
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mProfiles = profiles;
+                        for (Listener listener : new ArrayList<>(mListeners)) {
+                            listener.onProfilesChanged(profiles);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private List<BoxProfile> query() {
+        long start = SystemClock.elapsedRealtime();
+        Cursor cursor = mContext.getContentResolver().query(
+                ProfileContract.ProfileEntry.CONTENT_URI,
+                DatabaseProvider.sProfilesContainingQueryColumns,
+                null,
+                null,
+                null);
+        if (cursor == null) {
+            Log.d(TAG, "Null cursor");
+            return Collections.emptyList();
+        }
+        try {
+            List<BoxProfile> profiles = BoxProfile.readAll(cursor);
+            Log.d(TAG, "Loaded " + profiles.size() + " profiles in "
+                    + (SystemClock.elapsedRealtime() - start) + " ms");
+            return Collections.unmodifiableList(profiles);
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -28,7 +28,6 @@ import org.json.JSONObject;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
 import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.List;
@@ -45,6 +44,9 @@ public class RecordingDbBuilder {
 
     private Context mContext;
 
+    // Validators of the last response returned by fetchIfChanged.
+    private ResponseValidatorCache.Entry mPendingResponse;
+
     /**
      * Default constructor that can be used for tests
      */
@@ -63,10 +65,33 @@ public class RecordingDbBuilder {
     public @NonNull List<ContentValues> fetch(String auth, String url, String base)
             throws IOException, JSONException {
 
-        JSONObject videoData = fetchJSON(auth, url);
+        JSONObject videoData = fetchJSON(auth, url, null);
         return buildMedia(videoData, auth, url, base);
     }
 
+    /**
+     * Like {@link #fetch}, but returns null without parsing anything if the box returns the
+     * same response as at the last committed fetch. Call {@link #commitResponse()} once the
+     * returned rows have been stored.
+     */
+    public List<ContentValues> fetchIfChanged(String auth, String url, String base)
+            throws IOException, JSONException {
+
+        ResponseValidatorCache validators = ResponseValidatorCache.getInstance(mContext);
+        JSONObject videoData = fetchJSON(auth, url, validators);
+        return videoData == null ? null : buildMedia(videoData, auth, url, base);
+    }
+
+    /**
+     * Remembers the response of the last {@link #fetchIfChanged} as stored.
+     */
+    public void commitResponse() {
+        if (mPendingResponse != null) {
+            mPendingResponse.commit();
+            mPendingResponse = null;
+        }
+    }
+
     /**
      * Takes the contents of a JSON object and populates the database
      * @param jsonObj The JSON object of videos
@@ -104,6 +129,7 @@ public class RecordingDbBuilder {
             contentValue.put(ChannelContract.VideoEntry.COLUMN_AUTH, auth);
             contentValue.put(ChannelContract.VideoEntry.COLUMN_IS_LIVE, false);
             contentValue.put(ChannelContract.VideoEntry.COLUMN_IS_RECORDING, true);
+            contentValue.put(ChannelContract.VideoEntry.COLUMN_POSITION, i);
             contentValues.add(contentValue);
 
         }
@@ -113,36 +139,44 @@ public class RecordingDbBuilder {
     /**
      * Fetch JSON object from a given URL.
      *
-     * @return the JSONObject representation of the response
+     * @param validators The cache to make the request conditional on, or null
+     * @return the JSONObject representation of the response, or null if it is unchanged
      * @throws JSONException
      * @throws IOException
      */
-    private JSONObject fetchJSON(String auth, String urlString) throws JSONException, IOException {
+    private JSONObject fetchJSON(String auth, String urlString,
+            ResponseValidatorCache validators) throws JSONException, IOException {
         BufferedReader reader = null;
-        java.net.URL url = new java.net.URL(urlString + "api/movielist");
-        HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
-
+        String url = urlString + "api/movielist";
+        BoxHttpClient.Response response =
+                BoxHttpClient.getInstance().get(auth, url, validators);
+        String json;
         try {
-            urlConnection.setRequestProperty("Authorization", auth);
-
-            reader = new BufferedReader(new InputStreamReader(urlConnection.getInputStream(),
-                    "utf-8"));
+            if (response.isNotModified()) {
+                Log.d(TAG, "Not modified: " + url);
+                return null;
+            }
+            reader = new BufferedReader(new InputStreamReader(response.body, "utf-8"));
             StringBuilder sb = new StringBuilder();
             String line;
             while ((line = reader.readLine()) != null) {
                 sb.append(line);
             }
-            String json = sb.toString();
-            return new JSONObject(json);
+            json = sb.toString();
         } finally {
-            urlConnection.disconnect();
-            if (null != reader) {
-                try {
-                    reader.close();
-                } catch (IOException e) {
-                    Log.e(TAG, "JSON feed closed", e);
-                }
+            try {
+                response.close();
+            } catch (IOException e) {
+                Log.e(TAG, "JSON feed closed", e);
+            }
+        }
+
+        if (validators != null) {
+            if (validators.hasSameContent(url, response.getContentHash())) {
+                return null;
             }
+            mPendingResponse = validators.pending(url, response);
         }
+        return new JSONObject(json);
     }
 }
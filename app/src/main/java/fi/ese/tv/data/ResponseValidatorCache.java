@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.ese.tv.data;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.net.HttpURLConnection;
+
+/**
+ * ResponseValidatorCache remembers, per box api url, how the last response that made it into
+ * the database can be recognized again: its ETag and Last-Modified headers when OpenWebif sends
+ * them, and a hash of its content otherwise. An unchanged response can then be skipped without
+ * parsing it or writing to the database.
+ */
+public class ResponseValidatorCache {
+    private static final String TAG = "ResponseValidatorCache";
+
+    private static final String PREFS_NAME = "box_api_validators";
+    private static final String SUFFIX_ETAG = "|etag";
+    private static final String SUFFIX_LAST_MODIFIED = "|last_modified";
+    private static final String SUFFIX_HASH = "|hash";
+
+    private static ResponseValidatorCache sInstance;
+
+    private final SharedPreferences mPrefs;
+
+    private ResponseValidatorCache(Context context) {
+        mPrefs = context.getApplicationContext().getSharedPreferences(PREFS_NAME,
+                Context.MODE_PRIVATE);
+    }
+
+    public static synchronized ResponseValidatorCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ResponseValidatorCache(context);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Makes the request conditional on the validators of the last committed response.
+     */
+    void addConditionalHeaders(HttpURLConnection urlConnection, String url) {
+        String etag = mPrefs.getString(url + SUFFIX_ETAG, null);
+        String lastModified = mPrefs.getString(url + SUFFIX_LAST_MODIFIED, null);
+        if (etag != null) {
+            urlConnection.setRequestProperty("If-None-Match", etag);
+        }
+        if (lastModified != null) {
+            urlConnection.setRequestProperty("If-Modified-Since", lastModified);
+        }
+    }
+
+    /**
+     * Returns true if the content hash equals the hash of the last committed response.
+     */
+    public boolean hasSameContent(String url, String contentHash) {
+        boolean same = contentHash != null
+                && contentHash.equals(mPrefs.getString(url + SUFFIX_HASH, null));
+        if (same) {
+            Log.d(TAG, "Content unchanged: " + url);
+        }
+        return same;
+    }
+
+    /**
+     * Returns the validators of a completely read response, to be committed once its content
+     * has been stored.
+     */
+    public Entry pending(String url, BoxHttpClient.Response response) {
+        return new Entry(url, response.getHeader("ETag"), response.getHeader("Last-Modified"),
+                response.getContentHash());
+    }
+
+    /**
+     * Forgets the responses of every api call of a box, used when rows fetched from it are
+     * deleted.
+     * @param baseUrl The web url of the box the api urls start with
+     */
+    public void forget(String baseUrl) {
+        SharedPreferences.Editor editor = mPrefs.edit();
+        for (String key : mPrefs.getAll().keySet()) {
+            if (key.startsWith(baseUrl)) {
+                editor.remove(key);
+            }
+        }
+        editor.apply();
+    }
+
+    /**
+     * Forgets every response, used when the stored content is thrown away.
+     */
+    public void clear() {
+        mPrefs.edit().clear().apply();
+    }
+
+    /**
+     * Validators of a response that are not yet known to be in the database.
+     */
+    public final class Entry {
+        private final String mUrl;
+        private final String mEtag;
+        private final String mLastModified;
+        private final String mContentHash;
+
+        private Entry(String url, String etag, String lastModified, String contentHash) {
+            mUrl = url;
+            mEtag = etag;
+            mLastModified = lastModified;
+            mContentHash = contentHash;
+        }
+
+        public void commit() {
+            mPrefs.edit()
+                    .putString(mUrl + SUFFIX_ETAG, mEtag)
+                    .putString(mUrl + SUFFIX_LAST_MODIFIED, mLastModified)
+                    .putString(mUrl + SUFFIX_HASH, mContentHash)
+                    .apply();
+        }
+    }
+}
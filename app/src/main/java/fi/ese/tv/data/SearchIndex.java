@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.ese.tv.data;
+
+import android.app.SearchManager;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import fi.ese.tv.data.ChannelContract.VideoEntry;
+import fi.ese.tv.data.EpgContract.EpgEntry;
+
+/**
+ * SearchIndex keeps FTS4 indexes over the names and descriptions of channels and recordings
+ * and over the titles and short descriptions of the epg. The indexes are external content
+ * tables kept in sync by triggers, so they cost no extra copy of the text.
+ *
+ * A search returns channel rows, ranked channels whose name starts with the query first, then
+ * other channel and recording matches, then channels showing a matching epg event. For those
+ * the description is replaced by the event title.
+ */
+public class SearchIndex {
+    private static final String TAG = "SearchIndex";
+
+    public static final String CHANNEL_FTS_TABLE = "channel_fts";
+    public static final String EPG_FTS_TABLE = "epg_fts";
+
+    // The texts of every row a result was matched on, each led by the rank of its source and
+    // separated by TEXT_SEPARATOR, so results can be narrowed without another query.
+    public static final String COLUMN_SEARCH_TEXT = "search_text";
+    public static final String COLUMN_RANK = "search_rank";
+    public static final char TEXT_SEPARATOR = '\u001f';
+
+    // Cursor extra telling that a source had more index hits than were considered, so the
+    // result may lack rows even if it is shorter than its limit.
+    public static final String EXTRA_TRUNCATED = "search_truncated";
+
+    public static final int DEFAULT_LIMIT = 50;
+
+    // Index hits considered per source, which bounds the work of very short prefixes.
+    private static final int CANDIDATE_LIMIT = 500;
+
+    // The columns of a search result.
+    public static final String[] COLUMNS = {
+            VideoEntry._ID,
+            VideoEntry.COLUMN_NAME,
+            VideoEntry.COLUMN_CATEGORY,
+            VideoEntry.COLUMN_DESC,
+            VideoEntry.COLUMN_STREAM_URL,
+            VideoEntry.COLUMN_AUTH,
+            VideoEntry.COLUMN_BG_IMAGE_URL,
+            VideoEntry.COLUMN_CARD_IMG,
+            VideoEntry.COLUMN_IS_LIVE,
+            VideoEntry.COLUMN_IS_RECORDING,
+            VideoEntry.COLUMN_FILENAME,
+            VideoEntry.COLUMN_LENGTH,
+            SearchManager.SUGGEST_COLUMN_INTENT_DATA_ID,
+            COLUMN_SEARCH_TEXT,
+            COLUMN_RANK
+    };
+
+    private static final String SEARCH_SQL;
+
+    static {
+        // Channel columns of the result, but the last three which are computed.
+        StringBuilder channelColumns = new StringBuilder();
+        StringBuilder epgColumns = new StringBuilder();
+        StringBuilder outerColumns = new StringBuilder();
+        for (int i = 0; i < COLUMNS.length - 3; i++) {
+            String column = COLUMNS[i];
+            channelColumns.append("c.").append(column).append(", ");
+            if (VideoEntry.COLUMN_DESC.equals(column)) {
+                epgColumns.append("e.").append(EpgEntry.COLUMN_TITLE).append(" AS ")
+                        .append(column).append(", ");
+            } else {
+                epgColumns.append("c.").append(column).append(", ");
+            }
+            outerColumns.append(column).append(", ");
+        }
+        String intentDataId = "c." + VideoEntry._ID + " AS "
+                + SearchManager.SUGGEST_COLUMN_INTENT_DATA_ID + ", ";
+
+        SEARCH_SQL = "SELECT " + outerColumns + SearchManager.SUGGEST_COLUMN_INTENT_DATA_ID
+                + ", GROUP_CONCAT(" + COLUMN_RANK + " || ' ' || " + COLUMN_SEARCH_TEXT
+                + ", char(" + (int) TEXT_SEPARATOR + ")) AS " + COLUMN_SEARCH_TEXT
+                + ", MIN(" + COLUMN_RANK + ") AS " + COLUMN_RANK
+                + " FROM ("
+                + "SELECT " + channelColumns + intentDataId
+                + searchText("c", VideoEntry.COLUMN_NAME, VideoEntry.COLUMN_DESC)
+                + "CASE WHEN c." + VideoEntry.COLUMN_NAME + " LIKE ? THEN 0 ELSE 1 END AS "
+                + COLUMN_RANK
+                + " FROM " + VideoEntry.VIEW_NAME + " c WHERE c." + VideoEntry._ID
+                + " IN (SELECT docid FROM " + CHANNEL_FTS_TABLE + " WHERE " + CHANNEL_FTS_TABLE
+                + " MATCH ? LIMIT " + CANDIDATE_LIMIT + ")"
+                + " UNION ALL "
+                + "SELECT " + epgColumns + intentDataId
+                + searchText("e", EpgEntry.COLUMN_TITLE, EpgEntry.COLUMN_SHORTDESC)
+                + "2 AS " + COLUMN_RANK
+                + " FROM " + EpgEntry.TABLE_NAME + " e JOIN " + VideoEntry.VIEW_NAME
+                + " c ON c." + VideoEntry.COLUMN_SERVICE_ID + " = e." + EpgEntry.COLUMN_SERVICE_ID
+                + " WHERE e." + EpgEntry._ID
+                + " IN (SELECT docid FROM " + EPG_FTS_TABLE + " WHERE " + EPG_FTS_TABLE
+                + " MATCH ? LIMIT " + CANDIDATE_LIMIT + ")"
+                + ") GROUP BY " + VideoEntry.COLUMN_STREAM_URL
+                + " ORDER BY " + COLUMN_RANK + ", " + VideoEntry.COLUMN_NAME
+                + " LIMIT ?";
+    }
+
+    private SearchIndex() {
+    }
+
+    private static String searchText(String table, String firstColumn, String secondColumn) {
+        return "IFNULL(" + table + "." + firstColumn + ", '') || ' ' || IFNULL(" + table + "."
+                + secondColumn + ", '') AS " + COLUMN_SEARCH_TEXT + ", ";
+    }
+
+    /**
+     * Creates the indexes and their triggers, and fills the indexes from the rows already
+     * stored. Epg hits are joined to their channels through the service key of the channel
+     * table.
+     */
+    public static void create(SQLiteDatabase db) {
+        createFts(db, CHANNEL_FTS_TABLE, VideoEntry.TABLE_NAME,
+                VideoEntry.COLUMN_NAME, VideoEntry.COLUMN_DESC);
+        createFts(db, EPG_FTS_TABLE, EpgEntry.TABLE_NAME,
+                EpgEntry.COLUMN_TITLE, EpgEntry.COLUMN_SHORTDESC);
+    }
+
+    private static void createFts(SQLiteDatabase db, String ftsTable, String contentTable,
+            String firstColumn, String secondColumn) {
+        String columns = firstColumn + ", " + secondColumn;
+        db.execSQL("CREATE VIRTUAL TABLE " + ftsTable + " USING fts4(content=\"" + contentTable
+                + "\", " + columns + ", tokenize=unicode61, prefix=\"2,3\");");
+
+        // The old text must still be in the content table when its tokens are removed.
+        db.execSQL("CREATE TRIGGER " + ftsTable + "_bu BEFORE UPDATE ON " + contentTable
+                + " BEGIN DELETE FROM " + ftsTable + " WHERE docid = old.rowid; END;");
+        db.execSQL("CREATE TRIGGER " + ftsTable + "_bd BEFORE DELETE ON " + contentTable
+                + " BEGIN DELETE FROM " + ftsTable + " WHERE docid = old.rowid; END;");
+        db.execSQL("CREATE TRIGGER " + ftsTable + "_au AFTER UPDATE ON " + contentTable
+                + " BEGIN INSERT INTO " + ftsTable + " (docid, " + columns + ") VALUES (new.rowid, new."
+                + firstColumn + ", new." + secondColumn + "); END;");
+        db.execSQL("CREATE TRIGGER " + ftsTable + "_ai AFTER INSERT ON " + contentTable
+                + " BEGIN INSERT INTO " + ftsTable + " (docid, " + columns + ") VALUES (new.rowid, new."
+                + firstColumn + ", new." + secondColumn + "); END;");
+
+        db.execSQL("INSERT INTO " + ftsTable + " (" + ftsTable + ") VALUES ('rebuild');");
+    }
+
+    /**
+     * Searches channels, recordings and the epg.
+     * @param query The text typed by the user, every word of it is matched as a prefix
+     * @param limit The maximum number of rows returned
+     */
+    public static Cursor query(SQLiteDatabase db, String query, int limit) {
+        return query(db, query, limit, null);
+    }
+
+    /**
+     * Searches channels, recordings and the epg. The search stops with an
+     * {@link android.os.OperationCanceledException} when the signal is canceled.
+     */
+    public static Cursor query(SQLiteDatabase db, String query, int limit,
+            CancellationSignal cancellationSignal) {
+        String match = toMatchQuery(query);
+        if (match == null) {
+            return new MatrixCursor(COLUMNS);
+        }
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        String namePrefix = match.substring(0, match.indexOf('*')) + "%";
+        Cursor cursor = db.rawQuery(SEARCH_SQL,
+                new String[]{namePrefix, match, match, String.valueOf(limit)}, cancellationSignal);
+        // Run the query here rather than on the first access of the caller.
+        int count = cursor.getCount();
+        if (count < limit) {
+            Bundle extras = new Bundle();
+            extras.putBoolean(EXTRA_TRUNCATED, isTruncated(db, match, cancellationSignal));
+            cursor.setExtras(extras);
+        }
+        Log.d(TAG, "Search '" + match + "' found " + count + " rows in "
+                + (SystemClock.elapsedRealtimeNanos() - start) / 1000 + " us");
+        return cursor;
+    }
+
+    // Whether either index had more hits for the query than a search considers.
+    private static boolean isTruncated(SQLiteDatabase db, String match,
+            CancellationSignal cancellationSignal) {
+        for (String table : new String[]{CHANNEL_FTS_TABLE, EPG_FTS_TABLE}) {
+            Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM (SELECT docid FROM " + table
+                    + " WHERE " + table + " MATCH ? LIMIT " + CANDIDATE_LIMIT + ")",
+                    new String[]{match}, cancellationSignal);
+            try {
+                if (cursor.moveToFirst() && cursor.getInt(0) >= CANDIDATE_LIMIT) {
+                    return true;
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Turns the text typed by the user into an FTS query matching every word as a prefix.
+     * Returns null if the text contains no words.
+     */
+    static String toMatchQuery(String query) {
+        StringBuilder match = new StringBuilder();
+        for (String term : terms(query)) {
+            if (match.length() > 0) {
+                match.append(' ');
+            }
+            match.append(term).append('*');
+        }
+        return match.length() == 0 ? null : match.toString();
+    }
+
+    /**
+     * Splits text into lower case words the way the unicode61 tokenizer does, without
+     * diacritics when they are stripped as well.
+     */
+    public static List<String> terms(String text, boolean stripDiacritics) {
+        List<String> terms = new ArrayList<>();
+        if (text == null) {
+            return terms;
+        }
+        // Lower case keeps words like "or" from being read as operators.
+        String normalized = text.toLowerCase(Locale.ROOT);
+        if (stripDiacritics) {
+            normalized = Normalizer.normalize(normalized, Normalizer.Form.NFD)
+                    .replaceAll("\\p{M}+", "");
+        }
+        for (String term : normalized.split("[^\\p{L}\\p{N}]+")) {
+            if (!term.isEmpty()) {
+                terms.add(term);
+            }
+        }
+        return terms;
+    }
+
+    private static List<String> terms(String query) {
+        return terms(query, false);
+    }
+}
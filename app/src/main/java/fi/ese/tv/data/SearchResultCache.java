@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.ese.tv.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.Bundle;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * SearchResultCache keeps the rows of the last complete search. Every word of a search is
+ * matched as a prefix, so the results of a longer text that starts with the cached text are a
+ * subset of the cached rows and can be filtered from them without querying the database. A
+ * result is matched again against the text of each row it was found through.
+ *
+ * Every cache is dropped when the channels or the epg change, see {@link #invalidateAll()}.
+ */
+public class SearchResultCache {
+
+    // Bumped by every change of the searched rows, a cache filled before is not used.
+    private static final AtomicInteger sVersion = new AtomicInteger();
+
+    private int mVersion;
+    private String mQuery;
+    private String[] mColumns;
+    private List<Object[]> mRows;
+
+    /**
+     * Drops the rows cached by every instance, used when the searched rows change.
+     */
+    public static void invalidateAll() {
+        sVersion.incrementAndGet();
+    }
+
+    /**
+     * Remembers the rows of a search if the search returned all of its matches.
+     * @param limit The limit the search ran with, fewer rows mean nothing was cut off unless
+     *              the search says its index hits were
+     */
+    public synchronized void put(String query, Cursor cursor, int limit) {
+        int version = sVersion.get();
+        int count = cursor.getCount();
+        Bundle extras = cursor.getExtras();
+        if (count >= limit
+                || extras == null || extras.getBoolean(SearchIndex.EXTRA_TRUNCATED, true)) {
+            clear();
+            return;
+        }
+
+        List<Object[]> rows = new ArrayList<>(count);
+        int position = cursor.getPosition();
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            Object[] row = new Object[cursor.getColumnCount()];
+            for (int i = 0; i < row.length; i++) {
+                switch (cursor.getType(i)) {
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        row[i] = cursor.getLong(i);
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        row[i] = cursor.getDouble(i);
+                        break;
+                    case Cursor.FIELD_TYPE_STRING:
+                        row[i] = cursor.getString(i);
+                        break;
+                    case Cursor.FIELD_TYPE_BLOB:
+                        row[i] = cursor.getBlob(i);
+                        break;
+                    default:
+                        row[i] = null;
+                }
+            }
+            rows.add(row);
+        }
+        cursor.moveToPosition(position);
+
+        mVersion = version;
+        mQuery = normalize(query);
+        mColumns = cursor.getColumnNames();
+        mRows = rows;
+    }
+
+    /**
+     * Returns the results of a search narrowing the cached one, or null if the database has to
+     * be queried.
+     */
+    public synchronized Cursor filter(String query) {
+        String normalized = normalize(query);
+        if (mQuery == null || mVersion != sVersion.get()) {
+            clear();
+            return null;
+        }
+        if (normalized.equals(mQuery) || !normalized.startsWith(mQuery)) {
+            return null;
+        }
+
+        final int nameIndex = indexOf(ChannelContract.VideoEntry.COLUMN_NAME);
+        final int textIndex = indexOf(SearchIndex.COLUMN_SEARCH_TEXT);
+        final int rankIndex = indexOf(SearchIndex.COLUMN_RANK);
+        if (nameIndex < 0 || textIndex < 0 || rankIndex < 0) {
+            return null;
+        }
+
+        List<String> terms = SearchIndex.terms(query, true);
+        List<Object[]> rows = new ArrayList<>();
+        for (Object[] row : mRows) {
+            String name = (String) row[nameIndex];
+            long rank = Long.MAX_VALUE;
+            for (String text : TextUtils.split(String.valueOf(row[textIndex]),
+                    Pattern.quote(String.valueOf(SearchIndex.TEXT_SEPARATOR)))) {
+                // Each text is led by the rank of the row it came from.
+                int space = text.indexOf(' ');
+                if (space < 0 || !matches(SearchIndex.terms(text.substring(space + 1), true),
+                        terms)) {
+                    continue;
+                }
+                long textRank = Long.parseLong(text.substring(0, space));
+                if (textRank < 2) {
+                    // Channel hits rank by whether the name starts with the first word.
+                    textRank = name != null && !terms.isEmpty()
+                            && name.toLowerCase(Locale.ROOT).startsWith(terms.get(0)) ? 0L : 1L;
+                }
+                rank = Math.min(rank, textRank);
+            }
+            if (rank != Long.MAX_VALUE) {
+                Object[] copy = row.clone();
+                copy[rankIndex] = rank;
+                rows.add(copy);
+            }
+        }
+        Collections.sort(rows, new Comparator<Object[]>() {
+            @Override
+            public int compare(Object[] a, Object[] b) {
+                int byRank = Long.compare((Long) a[rankIndex], (Long) b[rankIndex]);
+                if (byRank != 0) {
+                    return byRank;
+                }
+                return String.valueOf(a[nameIndex]).compareTo(String.valueOf(b[nameIndex]));
+            }
+        });
+
+        // The narrowed rows are complete as well, so the next keystroke can narrow them.
+        mQuery = normalized;
+        mRows = rows;
+
+        MatrixCursor cursor = new MatrixCursor(mColumns, rows.size());
+        for (Object[] row : rows) {
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
+    public synchronized void clear() {
+        mQuery = null;
+        mColumns = null;
+        mRows = null;
+    }
+
+    private int indexOf(String column) {
+        for (int i = 0; i < mColumns.length; i++) {
+            if (mColumns[i].equals(column)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Every term has to be a prefix of some word of the row.
+    private static boolean matches(List<String> words, List<String> terms) {
+        for (String term : terms) {
+            boolean found = false;
+            for (String word : words) {
+                if (word.startsWith(term)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String normalize(String query) {
+        return query == null ? "" : query.toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.ese.tv.data;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * StringPool hands out one instance for equal strings, so the values repeated on every row of
+ * a parse or a cursor, like bouquet names, service names and genres, are held once. Unlike
+ * {@link String#intern()} a pool is scoped: it is dropped with the parser or mapper holding
+ * it, and it stops taking new values once full.
+ *
+ * A pool is not thread safe, each parse or cursor uses its own.
+ */
+public final class StringPool {
+
+    // The values pooled before new ones are handed back as they are.
+    public static final int DEFAULT_CAPACITY = 16384;
+
+    private final Map<String, String> mStrings = new HashMap<>();
+    private final int mCapacity;
+
+    private int mLookups;
+    private int mHits;
+
+    public StringPool() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public StringPool(int capacity) {
+        mCapacity = capacity;
+    }
+
+    /**
+     * Returns the pooled instance equal to the value, pooling the value if there is none.
+     */
+    public String intern(String value) {
+        if (value == null) {
+            return null;
+        }
+        mLookups++;
+        String pooled = mStrings.get(value);
+        if (pooled != null) {
+            mHits++;
+            return pooled;
+        }
+        if (mStrings.size() < mCapacity) {
+            mStrings.put(value, value);
+        }
+        return value;
+    }
+
+    public int size() {
+        return mStrings.size();
+    }
+
+    public int getLookups() {
+        return mLookups;
+    }
+
+    public int getHits() {
+        return mHits;
+    }
+
+    public void clear() {
+        mStrings.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "StringPool{size=" + mStrings.size() + ", lookups=" + mLookups
+                + ", hits=" + mHits + "}";
+    }
+}
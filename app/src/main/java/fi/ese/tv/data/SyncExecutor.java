@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.ese.tv.data;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * SyncExecutor runs the fetch, parse and write work of several boxes in parallel. The work for
+ * one box is limited to {@link #MAX_REQUESTS_PER_HOST} concurrent tasks so that a slow
+ * OpenWebif is not flooded, while the other boxes keep progressing.
+ */
+public class SyncExecutor {
+    private static final String TAG = "SyncExecutor";
+
+    // Number of threads shared by all boxes.
+    private static final int POOL_SIZE = 4;
+
+    // Number of tasks that may talk to the same box at once.
+    public static final int MAX_REQUESTS_PER_HOST = 2;
+
+    /**
+     * Told on a sync thread, once every box has been tried, whether a guide range is stored.
+     */
+    public interface GuideCallback {
+        void onGuideLoaded(boolean stored);
+    }
+
+    private static SyncExecutor sInstance;
+
+    private final ExecutorService mExecutor;
+    private final Map<String, HostLane> mLanes = new HashMap<>();
+
+    private volatile long mLastSyncDurationMillis = -1;
+
+    private SyncExecutor() {
+        mExecutor = Executors.newFixedThreadPool(POOL_SIZE, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, TAG + "-" + mCount.incrementAndGet());
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    public static synchronized SyncExecutor getInstance() {
+        if (sInstance == null) {
+            sInstance = new SyncExecutor();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Syncs the channels and recordings of every given box that are due by the
+     * {@link SyncPolicy}.
+     */
+    public void syncProfiles(Context context, List<BoxProfile> profiles) {
+        final Context appContext = context.getApplicationContext();
+        final SyncPolicy policy = SyncPolicy.getInstance(appContext);
+        List<Runnable> tasks = new ArrayList<>();
+        List<BoxProfile> owners = new ArrayList<>();
+        for (final BoxProfile profile : profiles) {
+            if (policy.beginSync(profile, SyncPolicy.DATASET_CHANNELS, null)) {
+                owners.add(profile);
+                tasks.add(new Runnable() {
+                    @Override
+                    public void run() {
+                        boolean succeeded = false;
+                        try {
+                            succeeded = FetchChannelService.sync(appContext, profile);
+                        } finally {
+                            policy.syncDone(profile, SyncPolicy.DATASET_CHANNELS, null,
+                                    succeeded);
+                        }
+                    }
+                });
+            }
+            if (policy.beginSync(profile, SyncPolicy.DATASET_RECORDINGS, null)) {
+                owners.add(profile);
+                tasks.add(new Runnable() {
+                    @Override
+                    public void run() {
+                        boolean succeeded = false;
+                        try {
+                            succeeded = FetchRecordService.sync(appContext, profile);
+                        } finally {
+                            policy.syncDone(profile, SyncPolicy.DATASET_RECORDINGS, null,
+                                    succeeded);
+                        }
+                    }
+                });
+            }
+        }
+        submitRound("channels and recordings", owners, tasks);
+    }
+
+    /**
+     * Loads the guide of a bouquet between two times from every given box. The
+     * {@link EpgGuide} decides which of its windows are due, a window being loaded is not
+     * loaded twice.
+     * @param from The begin of the range in seconds since the epoch
+     * @param until The end of the range in seconds since the epoch
+     * @param callback Told whether the range is stored from at least one box, or null
+     */
+    public void syncGuide(Context context, List<BoxProfile> profiles, final String bref,
+            final long from, final long until, final GuideCallback callback) {
+        final EpgGuide guide = EpgGuide.getInstance(context);
+        final AtomicInteger remaining = new AtomicInteger(profiles.size());
+        final AtomicBoolean stored = new AtomicBoolean();
+        List<Runnable> tasks = new ArrayList<>();
+        for (final BoxProfile profile : profiles) {
+            tasks.add(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (guide.load(profile, bref, from, until)) {
+                            stored.set(true);
+                        }
+                    } finally {
+                        if (remaining.decrementAndGet() == 0 && callback != null) {
+                            callback.onGuideLoaded(stored.get());
+                        }
+                    }
+                }
+            });
+        }
+        submitRound("guide", profiles, tasks);
+    }
+
+    // Submits the tasks of a round, each run for the box at the same index.
+    private void submitRound(String name, List<BoxProfile> profiles, List<Runnable> tasks) {
+        if (tasks.isEmpty()) {
+            Log.d(TAG, "No " + name + " due");
+            return;
+        }
+        SyncRound round = new SyncRound(name, tasks.size());
+        for (int i = 0; i < tasks.size(); i++) {
+            submit(round, profiles.get(i), tasks.get(i));
+        }
+    }
+
+    /**
+     * Returns how long the last completed sync round took from its start until its last task
+     * finished, in milliseconds, or -1 if none completed.
+     */
+    public long getLastSyncDurationMillis() {
+        return mLastSyncDurationMillis;
+    }
+
+    private void submit(final SyncRound round, final BoxProfile profile, final Runnable work) {
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                long start = SystemClock.elapsedRealtime();
+                try {
+                    work.run();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Sync of " + profile.name + " failed", e);
+                } finally {
+                    round.taskDone(profile, start, SystemClock.elapsedRealtime());
+                    onTaskDone(profile.host);
+                }
+            }
+        };
+
+        synchronized (mLanes) {
+            HostLane lane = mLanes.get(profile.host);
+            if (lane == null) {
+                lane = new HostLane();
+                mLanes.put(profile.host, lane);
+            }
+            if (lane.running < MAX_REQUESTS_PER_HOST) {
+                lane.running++;
+                mExecutor.execute(task);
+            } else {
+                lane.pending.add(task);
+            }
+        }
+    }
+
+    private void onTaskDone(String host) {
+        synchronized (mLanes) {
+            HostLane lane = mLanes.get(host);
+            Runnable next = lane.pending.poll();
+            if (next != null) {
+                mExecutor.execute(next);
+            } else if (--lane.running == 0) {
+                mLanes.remove(host);
+            }
+        }
+    }
+
+    /**
+     * Tasks of one box that are running or waiting for a free slot.
+     */
+    private static final class HostLane {
+        int running;
+        final ArrayDeque<Runnable> pending = new ArrayDeque<>();
+    }
+
+    /**
+     * Tracks one batch of submitted tasks and reports its timing once all of them are done.
+     */
+    private final class SyncRound {
+        private final String mName;
+        private final long mStart = SystemClock.elapsedRealtime();
+        // First start and last end of the tasks of each box.
+        private final Map<String, long[]> mBoxSpans = new HashMap<>();
+        private int mRemaining;
+
+        SyncRound(String name, int taskCount) {
+            mName = name;
+            mRemaining = taskCount;
+        }
+
+        synchronized void taskDone(BoxProfile profile, long start, long end) {
+            long[] span = mBoxSpans.get(profile.name);
+            if (span == null) {
+                mBoxSpans.put(profile.name, new long[]{start, end});
+            } else {
+                span[0] = Math.min(span[0], start);
+                span[1] = Math.max(span[1], end);
+            }
+
+            if (--mRemaining == 0) {
+                long total = SystemClock.elapsedRealtime() - mStart;
+                String slowest = null;
+                long slowestMillis = 0;
+                for (Map.Entry<String, long[]> entry : mBoxSpans.entrySet()) {
+                    long boxMillis = entry.getValue()[1] - entry.getValue()[0];
+                    if (boxMillis >= slowestMillis) {
+                        slowest = entry.getKey();
+                        slowestMillis = boxMillis;
+                    }
+                }
+                mLastSyncDurationMillis = total;
+                Log.d(TAG, "Synced " + mName + " of " + mBoxSpans.size() + " boxes in " + total
+                        + " ms, slowest box " + slowest + " took " + slowestMillis + " ms");
+            }
+        }
+    }
+}
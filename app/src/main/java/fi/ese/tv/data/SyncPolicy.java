@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.ese.tv.data;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Bundle;
+import android.util.Log;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * SyncPolicy decides whether a dataset of a box is synced again. The stored rows are always
+ * shown, and a sync only runs once the last successful sync of the dataset is older than its
+ * time to live, so coming back to a screen does not cost a round trip to every box.
+ *
+ * The time of the last successful sync is kept per box and dataset in shared preferences so
+ * it survives the process. A box is told apart by its name, url and credentials, so an edited
+ * profile is synced again. The epg keeps the times of its windows itself, see
+ * {@link EpgGuide}, and only reports its downloads here. The time to live of a dataset can be
+ * changed through the preference {@link #TTL_PREFIX} followed by the dataset name.
+ */
+public class SyncPolicy {
+    private static final String TAG = "SyncPolicy";
+
+    public static final String DATASET_CHANNELS = "channels";
+    public static final String DATASET_RECORDINGS = "recordings";
+    public static final String DATASET_EPG = "epg";
+
+    public static final String METHOD_GET_STATS = "get_sync_stats";
+    public static final String EXTRA_FRESH = "fresh";
+    public static final String EXTRA_STALE = "stale";
+    public static final String EXTRA_IN_FLIGHT = "in_flight";
+    public static final String EXTRA_SUCCEEDED = "succeeded";
+    public static final String EXTRA_FAILED = "failed";
+
+    // Lineups rarely change, recordings now and then, now and next all the time.
+    public static final long CHANNELS_TTL_MS = 6 * 60 * 60 * 1000L;
+    public static final long RECORDINGS_TTL_MS = 15 * 60 * 1000L;
+    public static final long EPG_TTL_MS = 5 * 60 * 1000L;
+
+    public static final String TTL_PREFIX = "sync_ttl_";
+
+    private static final String PREFERENCES = "sync_policy";
+    private static final String SYNCED_PREFIX = "synced_";
+
+    private static SyncPolicy sInstance;
+
+    private final SharedPreferences mPreferences;
+    // Datasets with a sync running, which are not started again.
+    private final Set<String> mInFlight = new HashSet<>();
+
+    private int mFresh;
+    private int mStale;
+    private int mSkippedInFlight;
+    private int mSucceeded;
+    private int mFailed;
+
+    private SyncPolicy(Context context) {
+        mPreferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    public static synchronized SyncPolicy getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SyncPolicy(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns whether a dataset of a box is due to sync, and if it is marks it in flight until
+     * {@link #syncDone} is called.
+     * @param scope The bouquet of an epg sync, or null
+     */
+    public synchronized boolean beginSync(BoxProfile profile, String dataset, String scope) {
+        String key = keyOf(profile, dataset, scope);
+        if (mInFlight.contains(key)) {
+            mSkippedInFlight++;
+            Log.d(TAG, "Skip " + key + ", already syncing");
+            return false;
+        }
+
+        long now = System.currentTimeMillis();
+        long synced = mPreferences.getLong(SYNCED_PREFIX + key, 0);
+        long age = now - synced;
+        // A clock set back makes the stored time useless.
+        if (synced > 0 && age >= 0 && age < getTtlMillis(dataset)) {
+            mFresh++;
+            Log.d(TAG, "Serve " + key + " from cache, synced " + age / 1000 + " s ago");
+            return false;
+        }
+
+        mStale++;
+        mInFlight.add(key);
+        Log.d(TAG, "Revalidate " + key + (synced > 0 ? ", synced " + age / 1000 + " s ago"
+                : ", never synced"));
+        return true;
+    }
+
+    /**
+     * Records the end of a sync started by {@link #beginSync}. Only a successful sync renews
+     * the dataset, a failed one is retried the next time it is asked for.
+     */
+    public synchronized void syncDone(BoxProfile profile, String dataset, String scope,
+            boolean succeeded) {
+        String key = keyOf(profile, dataset, scope);
+        mInFlight.remove(key);
+        if (succeeded) {
+            mSucceeded++;
+            mPreferences.edit().putLong(SYNCED_PREFIX + key, System.currentTimeMillis()).apply();
+        } else {
+            mFailed++;
+        }
+    }
+
+    /**
+     * Marks a dataset of a box in flight for a caller that keeps the sync times itself, like
+     * {@link EpgGuide} does for its windows, and has found the dataset due.
+     * @return false if the dataset is being synced already
+     */
+    public synchronized boolean beginRevalidate(BoxProfile profile, String dataset,
+            String scope) {
+        String key = keyOf(profile, dataset, scope);
+        if (mInFlight.contains(key)) {
+            mSkippedInFlight++;
+            Log.d(TAG, "Skip " + key + ", already syncing");
+            return false;
+        }
+        mStale++;
+        mInFlight.add(key);
+        Log.d(TAG, "Revalidate " + key);
+        return true;
+    }
+
+    /**
+     * Records the end of a sync started by {@link #beginRevalidate}. Nothing is stored, the
+     * caller keeps the time of the sync.
+     */
+    public synchronized void revalidateDone(BoxProfile profile, String dataset, String scope,
+            boolean succeeded) {
+        mInFlight.remove(keyOf(profile, dataset, scope));
+        if (succeeded) {
+            mSucceeded++;
+        } else {
+            mFailed++;
+        }
+    }
+
+    /**
+     * Counts a dataset a caller keeping the sync times itself has found fresh.
+     */
+    public synchronized void servedFresh() {
+        mFresh++;
+    }
+
+    /**
+     * Forgets every sync, used when the stored rows are thrown away. The time to live of the
+     * datasets is kept.
+     */
+    public synchronized void clear() {
+        SharedPreferences.Editor editor = mPreferences.edit();
+        for (String key : mPreferences.getAll().keySet()) {
+            if (key.startsWith(SYNCED_PREFIX)) {
+                editor.remove(key);
+            }
+        }
+        editor.apply();
+    }
+
+    public long getTtlMillis(String dataset) {
+        long ttl;
+        switch (dataset) {
+            case DATASET_CHANNELS:
+                ttl = CHANNELS_TTL_MS;
+                break;
+            case DATASET_RECORDINGS:
+                ttl = RECORDINGS_TTL_MS;
+                break;
+            default:
+                ttl = EPG_TTL_MS;
+                break;
+        }
+        return mPreferences.getLong(TTL_PREFIX + dataset, ttl);
+    }
+
+    public void setTtlMillis(String dataset, long ttl) {
+        mPreferences.edit().putLong(TTL_PREFIX + dataset, ttl).apply();
+    }
+
+    /**
+     * Returns how many syncs were skipped as fresh or in flight, started as stale, and how
+     * many of those succeeded or failed, keyed by the EXTRA constants.
+     */
+    public synchronized Bundle getStats() {
+        Bundle stats = new Bundle();
+        stats.putInt(EXTRA_FRESH, mFresh);
+        stats.putInt(EXTRA_STALE, mStale);
+        stats.putInt(EXTRA_IN_FLIGHT, mSkippedInFlight);
+        stats.putInt(EXTRA_SUCCEEDED, mSucceeded);
+        stats.putInt(EXTRA_FAILED, mFailed);
+        return stats;
+    }
+
+    private static String keyOf(BoxProfile profile, String dataset, String scope) {
+        // The credentials are hashed, they are not stored in the key.
+        String auth = profile.auth == null ? "" : Integer.toHexString(profile.auth.hashCode());
+        return dataset + "_" + profile.name + "_" + profile.webUrl + "_" + auth
+                + (scope != null ? "_" + scope : "");
+    }
+}
@@ -21,12 +21,16 @@ import android.database.Cursor;
 import androidx.leanback.database.CursorMapper;
 
 import fi.ese.tv.data.EpgContract;
+import fi.ese.tv.data.StringPool;
 
 /**
- * EpgCursorMapper maps a database Cursor to an Epg object.
+ * EpgCursorMapper maps a database Cursor to an Epg object. The service and genre repeat on
+ * every event of a service, the events of a mapper share them through its pool.
  */
 public final class EpgCursorMapper extends CursorMapper {
 
+    private final StringPool mPool;
+
     private static int idIndex;
     private static int snameIndex;
     private static int titleIndex;
@@ -39,6 +43,17 @@ public final class EpgCursorMapper extends CursorMapper {
     private static int genreidIndex;
     private static int longdescIndex;
 
+    public EpgCursorMapper() {
+        this(new StringPool());
+    }
+
+    /**
+     * @param pool The pool shared by the mapped events, or null to not share values
+     */
+    public EpgCursorMapper(StringPool pool) {
+        mPool = pool;
+    }
+
     @Override
     protected void bindColumns(Cursor cursor) {
         idIndex = cursor.getColumnIndex(EpgContract.EpgEntry._ID);
@@ -59,12 +74,12 @@ public final class EpgCursorMapper extends CursorMapper {
 
         // Get the values of the video.
         long id = cursor.getLong(idIndex);
-        String sname = cursor.getString(snameIndex);
+        String sname = intern(cursor.getString(snameIndex));
         String title = cursor.getString(titleIndex);
         long begin_timestamp = cursor.getLong(beginTimestampIndex);
         long now_timestamp = cursor.getLong(nowTimestampIndex);
-        String sref = cursor.getString(srefIndex);
-        String genre = cursor.getString(genreidIndex);
+        String sref = intern(cursor.getString(srefIndex));
+        String genre = intern(cursor.getString(genreidIndex));
         long duration_sec = cursor.getLong(durationIndex);
         String shortdesc = cursor.getString(shortdescIndex);
         long genreid = cursor.getLong(genreidIndex);
@@ -85,4 +100,8 @@ public final class EpgCursorMapper extends CursorMapper {
                 .longdesc(longdesc)
                 .build();
     }
+
+    private String intern(String value) {
+        return mPool == null ? value : mPool.intern(value);
+    }
 }
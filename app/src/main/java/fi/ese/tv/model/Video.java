@@ -20,6 +20,8 @@ import android.media.MediaDescription;
 import android.os.Parcel;
 import android.os.Parcelable;
 
+import java.util.Objects;
+
 /**
  * Video is an immutable object that holds the various metadata associated with a single video.
  */
@@ -96,6 +98,24 @@ public final class Video implements Parcelable {
         return m instanceof Video && id == ((Video) m).id;
     }
 
+    /**
+     * Returns whether every field of the other video is the same, equals only compares ids.
+     */
+    public boolean hasSameContent(Video other) {
+        return id == other.id
+                && Objects.equals(category, other.category)
+                && Objects.equals(title, other.title)
+                && Objects.equals(description, other.description)
+                && Objects.equals(bgImageUrl, other.bgImageUrl)
+                && Objects.equals(cardImageUrl, other.cardImageUrl)
+                && Objects.equals(videoUrl, other.videoUrl)
+                && Objects.equals(authorization, other.authorization)
+                && isLive == other.isLive
+                && isRecording == other.isRecording
+                && Objects.equals(filename, other.filename)
+                && Objects.equals(length, other.length);
+    }
+
     public int describeContents() {
         return 0;
     }
@@ -20,24 +20,39 @@ import android.database.Cursor;
 import androidx.leanback.database.CursorMapper;
 
 import fi.ese.tv.data.ChannelContract;
+import fi.ese.tv.data.StringPool;
 
 /**
- * VideoCursorMapper maps a database Cursor to a Video object.
+ * VideoCursorMapper maps a database Cursor to a Video object. The bouquet, authorization,
+ * names and urls repeat across rows, and the videos of a mapper share them through its pool.
  */
 public final class VideoCursorMapper extends CursorMapper {
 
-    private static int idIndex;
-    private static int nameIndex;
-    private static int descIndex;
-    private static int authIndex;
-    private static int videoUrlIndex;
-    private static int bgImageUrlIndex;
-    private static int cardImageUrlIndex;
-    private static int categoryIndex;
-    private static int isLiveIndex;
-    private static int isRecordingIndex;
-    private static int filenameIndex;
-    private static int lengthIndex;
+    private final StringPool mPool;
+
+    private int idIndex;
+    private int nameIndex;
+    private int descIndex;
+    private int authIndex;
+    private int videoUrlIndex;
+    private int bgImageUrlIndex;
+    private int cardImageUrlIndex;
+    private int categoryIndex;
+    private int isLiveIndex;
+    private int isRecordingIndex;
+    private int filenameIndex;
+    private int lengthIndex;
+
+    public VideoCursorMapper() {
+        this(new StringPool());
+    }
+
+    /**
+     * @param pool The pool shared by the mapped videos, or null to not share values
+     */
+    public VideoCursorMapper(StringPool pool) {
+        mPool = pool;
+    }
 
     @Override
     protected void bindColumns(Cursor cursor) {
@@ -58,19 +73,19 @@ public final class VideoCursorMapper extends CursorMapper {
     @Override
     protected Object bind(Cursor cursor) {
 
-        // Get the values of the video.
+        // Get the values of the video. Columns left out of the projection are null.
         long id = cursor.getLong(idIndex);
-        String category = cursor.getString(categoryIndex);
-        String title = cursor.getString(nameIndex);
-        String desc = cursor.getString(descIndex);
-        String auth = cursor.getString(authIndex);
-        String videoUrl = cursor.getString(videoUrlIndex);
-        String bgImageUrl = cursor.getString(bgImageUrlIndex);
-        String cardImageUrl = cursor.getString(cardImageUrlIndex);
-        Boolean isLive = cursor.getInt(isLiveIndex) == 1 ? true : false;
-        Boolean isRecording = cursor.getInt(isRecordingIndex) == 1 ? true : false;
-        String filename = cursor.getString(filenameIndex);
-        String length = cursor.getString(lengthIndex);
+        String category = intern(getString(cursor, categoryIndex));
+        String title = intern(getString(cursor, nameIndex));
+        String desc = intern(getString(cursor, descIndex));
+        String auth = intern(getString(cursor, authIndex));
+        String videoUrl = intern(getString(cursor, videoUrlIndex));
+        String bgImageUrl = intern(getString(cursor, bgImageUrlIndex));
+        String cardImageUrl = intern(getString(cursor, cardImageUrlIndex));
+        Boolean isLive = isLiveIndex >= 0 && cursor.getInt(isLiveIndex) == 1;
+        Boolean isRecording = isRecordingIndex >= 0 && cursor.getInt(isRecordingIndex) == 1;
+        String filename = getString(cursor, filenameIndex);
+        String length = getString(cursor, lengthIndex);
 
         // Build a Video object to be processed.
         return new Video.VideoBuilder()
@@ -88,4 +103,12 @@ public final class VideoCursorMapper extends CursorMapper {
                 .length(length)
                 .build();
     }
+
+    private String intern(String value) {
+        return mPool == null ? value : mPool.intern(value);
+    }
+
+    private static String getString(Cursor cursor, int index) {
+        return index < 0 ? null : cursor.getString(index);
+    }
 }
@@ -112,6 +112,18 @@ public class CardPresenter extends Presenter {
 
             return;
         }
+        if (item == null) {
+            // A paged item that is still loading, it is bound again when it arrives.
+            ImageCardView cardView = (ImageCardView) viewHolder.view;
+            cardView.setTitleText(null);
+            cardView.setContentText(null);
+            Resources res = cardView.getResources();
+            cardView.setMainImageDimensions(res.getDimensionPixelSize(R.dimen.card_width),
+                    res.getDimensionPixelSize(R.dimen.card_height));
+            Glide.with(cardView.getContext()).clear(cardView.getMainImageView());
+            cardView.setMainImage(mDefaultCardImage);
+            return;
+        }
         Video video = (Video) item;
 
         ImageCardView cardView = (ImageCardView) viewHolder.view;
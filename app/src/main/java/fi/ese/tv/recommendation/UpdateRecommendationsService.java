@@ -23,7 +23,6 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.res.Resources;
-import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.preference.PreferenceManager;
 import androidx.recommendation.app.ContentRecommendation;
@@ -35,11 +34,13 @@ import com.bumptech.glide.load.model.LazyHeaders;
 
 import fi.ese.tv.BuildConfig;
 import fi.ese.tv.R;
-import fi.ese.tv.data.ChannelContract;
+import fi.ese.tv.data.ChannelCatalog;
 import fi.ese.tv.model.Video;
-import fi.ese.tv.model.VideoCursorMapper;
 import fi.ese.tv.ui.TVChannelDetailsActivity;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
 
 /*
@@ -49,7 +50,6 @@ import java.util.concurrent.ExecutionException;
 public class UpdateRecommendationsService extends IntentService {
     private static final String TAG = "RecommendationService";
     private static final int MAX_RECOMMENDATIONS = 3;
-    private static final VideoCursorMapper mVideoCursorMapper = new VideoCursorMapper();
 
     private NotificationManager mNotifManager;
 
@@ -81,54 +81,50 @@ public class UpdateRecommendationsService extends IntentService {
         ContentRecommendation.Builder builder = new ContentRecommendation.Builder()
                 .setBadgeIcon(R.drawable.videos_by_google_icon);
 
-        Cursor cursor = getContentResolver().query(
-                ChannelContract.VideoEntry.CONTENT_URI,
-                null, // projection
-                null, // selection
-                null, // selection clause
-                "RANDOM() LIMIT " + MAX_RECOMMENDATIONS // sort order
-        );
-
-        if (cursor != null && cursor.moveToNext()) {
+        for (Video video : pickVideos(ChannelCatalog.get(this))) {
             try {
-                do {
-                    Video video = (Video) mVideoCursorMapper.convert(cursor);
-                    int id = Long.valueOf(video.id).hashCode();
-
-                    builder.setIdTag("Video" + id)
-                            .setTitle(video.title)
-                            .setText(getString(R.string.popular_header))
-                            .setContentIntentData(ContentRecommendation.INTENT_TYPE_ACTIVITY,
-                                    buildPendingIntent(video, id), 0, null);
-                    GlideUrl glideUrl = new GlideUrl(video.cardImageUrl,
-                            new LazyHeaders.Builder()
-                                    .addHeader("Authorization", video.authorization)
-                                    .build());
-
-                    Bitmap bitmap = Glide.with(getApplication())
-                            .asBitmap()
-                            .load(glideUrl)
-                            .submit(cardWidth, cardHeight) // Only use for synchronous .get()
-                            .get();
-                    builder.setContentImage(bitmap);
-
-                    // Create an object holding all the information used to recommend the content.
-                    ContentRecommendation rec = builder.build();
-                    Notification notification = rec.getNotificationObject(getApplicationContext());
-
-                    if (BuildConfig.DEBUG) Log.d(TAG, "Recommending video " + video.title);
-
-                    // Recommend the content by publishing the notification.
-                    mNotifManager.notify(id, notification);
-                } while (cursor.moveToNext());
+                int id = Long.valueOf(video.id).hashCode();
+
+                builder.setIdTag("Video" + id)
+                        .setTitle(video.title)
+                        .setText(getString(R.string.popular_header))
+                        .setContentIntentData(ContentRecommendation.INTENT_TYPE_ACTIVITY,
+                                buildPendingIntent(video, id), 0, null);
+                GlideUrl glideUrl = new GlideUrl(video.cardImageUrl,
+                        new LazyHeaders.Builder()
+                                .addHeader("Authorization", video.authorization)
+                                .build());
+
+                Bitmap bitmap = Glide.with(getApplication())
+                        .asBitmap()
+                        .load(glideUrl)
+                        .submit(cardWidth, cardHeight) // Only use for synchronous .get()
+                        .get();
+                builder.setContentImage(bitmap);
+
+                // Create an object holding all the information used to recommend the content.
+                ContentRecommendation rec = builder.build();
+                Notification notification = rec.getNotificationObject(getApplicationContext());
+
+                if (BuildConfig.DEBUG) Log.d(TAG, "Recommending video " + video.title);
+
+                // Recommend the content by publishing the notification.
+                mNotifManager.notify(id, notification);
             } catch (InterruptedException | ExecutionException e) {
                 Log.e(TAG, "Could not create recommendation: " + e.getLocalizedMessage());
-            } finally {
-                cursor.close();
+                break;
             }
         }
     }
 
+    // Up to MAX_RECOMMENDATIONS random channels and recordings of the catalog.
+    private static List<Video> pickVideos(ChannelCatalog catalog) {
+        List<Video> videos = new ArrayList<>(catalog.getChannels());
+        videos.addAll(catalog.getRecordings());
+        Collections.shuffle(videos);
+        return videos.subList(0, Math.min(MAX_RECOMMENDATIONS, videos.size()));
+    }
+
     private Intent buildPendingIntent(Video video, int id) {
         Intent detailsIntent = new Intent(this, TVChannelDetailsActivity.class);
         detailsIntent.putExtra(TVChannelDetailsActivity.TVCHANNEL, video);
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.ese.tv.ui;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.loader.content.AsyncTaskLoader;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import fi.ese.tv.data.ChannelCatalog;
+import fi.ese.tv.data.ChannelContract;
+import fi.ese.tv.model.Video;
+
+/**
+ * BrowseLoader reads the rows of the browse screen from the channel catalog, one list per
+ * category in lineup order. The rows are read again when the lineup changes, by which time the
+ * catalog has been invalidated.
+ *
+ * On cold start the first rows come from the catalog snapshot of the last sync without opening
+ * the database, and are reconciled with the database right after they are delivered.
+ */
+class BrowseLoader extends AsyncTaskLoader<Map<String, List<Video>>> {
+    private static final String TAG = "BrowseLoader";
+
+    private final ForceLoadContentObserver mObserver = new ForceLoadContentObserver();
+    private Map<String, List<Video>> mCategories;
+    private boolean mObserving;
+    private boolean mRestoreTried;
+    private volatile boolean mFromSnapshot;
+    private volatile boolean mReconcile;
+
+    BrowseLoader(Context context) {
+        super(context);
+    }
+
+    @Override
+    public Map<String, List<Video>> loadInBackground() {
+        long start = SystemClock.elapsedRealtime();
+        ChannelCatalog catalog = null;
+        if (!mRestoreTried) {
+            // The first rows may come from the snapshot of the last sync.
+            mRestoreTried = true;
+            catalog = ChannelCatalog.restore(getContext());
+        }
+        if (catalog == null || catalog.getBouquets().isEmpty()) {
+            catalog = ChannelCatalog.get(getContext());
+        }
+        mFromSnapshot = catalog.isRestored();
+        mReconcile = !catalog.isCurrent();
+
+        Map<String, List<Video>> categories = new LinkedHashMap<>();
+        for (String bouquet : catalog.getBouquets()) {
+            categories.put(bouquet, catalog.getBouquet(bouquet));
+        }
+        Log.d(TAG, "Read " + categories.size() + " categories from " + catalog + " in "
+                + (SystemClock.elapsedRealtime() - start) + " ms");
+        return categories;
+    }
+
+    /**
+     * Returns whether the last rows delivered came from the snapshot file.
+     */
+    boolean isFromSnapshot() {
+        return mFromSnapshot;
+    }
+
+    @Override
+    public void deliverResult(Map<String, List<Video>> categories) {
+        mCategories = categories;
+        if (isStarted()) {
+            super.deliverResult(categories);
+        }
+        if (mReconcile) {
+            // Rows from an out of date catalog are followed by the current ones.
+            mReconcile = false;
+            onContentChanged();
+        }
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (!mObserving) {
+            getContext().getContentResolver().registerContentObserver(
+                    ChannelContract.VideoEntry.CONTENT_URI, true, mObserver);
+            getContext().getContentResolver().registerContentObserver(
+                    ChannelContract.VideoEntry.CONTENT_URI_REC, true, mObserver);
+            mObserving = true;
+        }
+        if (mCategories != null) {
+            deliverResult(mCategories);
+        }
+        if (takeContentChanged() || mCategories == null) {
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+    }
+
+    @Override
+    protected void onReset() {
+        onStopLoading();
+        mCategories = null;
+        if (mObserving) {
+            getContext().getContentResolver().unregisterContentObserver(mObserver);
+            mObserving = false;
+        }
+    }
+}
@@ -21,15 +21,19 @@ import android.os.Handler;
 import android.util.Base64;
 import android.util.Log;
 import fi.ese.tv.R;
-import fi.ese.tv.data.DatabaseProvider;
+import fi.ese.tv.data.BoxProfile;
 import fi.ese.tv.data.EpgContract;
-import fi.ese.tv.data.FetchEpgService;
-import fi.ese.tv.data.ProfileContract;
+import fi.ese.tv.data.EpgGuide;
+import fi.ese.tv.data.ProfileRepository;
+import fi.ese.tv.data.SyncExecutor;
 import fi.ese.tv.model.Epg;
 import fi.ese.tv.model.EpgCursorMapper;
 import fi.ese.tv.model.Video;
 import fi.ese.tv.presenter.EpgItemPresenter;
 
+import java.util.Collections;
+import java.util.List;
+
 /**
  * A placeholder fragment containing a simple view.
  */
@@ -37,11 +41,35 @@ public class EpgFragment extends VerticalGridSupportFragment
         implements LoaderManager.LoaderCallbacks<Cursor> {
 
     private static final int NUM_COLUMNS = 1;
+
+    // Selecting an event this close to the end of the loaded guide loads the next window.
+    private static final long PREFETCH_SECONDS = 60 * 60;
     private final CursorObjectAdapter mEpgCursorAdapter =
             new CursorObjectAdapter(new EpgItemPresenter());
 
     Video mVideo;
 
+    // The guide is shown from now until the end of the last window scrolled into, in seconds
+    // since the epoch.
+    private long mNow;
+    private long mUntil;
+    // Whether the window after mUntil is being loaded, mUntil moves past it once it is stored.
+    private boolean mLoadingNext;
+    private final Handler mHandler = new Handler();
+    private List<BoxProfile> mProfiles = Collections.emptyList();
+
+    // The stored epg is shown, and its windows are loaded only when missing or stale.
+    private final ProfileRepository.Listener mProfileListener = new ProfileRepository.Listener() {
+        @Override
+        public void onProfilesChanged(List<BoxProfile> profiles) {
+            mProfiles = profiles;
+            if (!profiles.isEmpty()) {
+                SyncExecutor.getInstance().syncGuide(getContext(), profiles, mVideo.videoUrl,
+                        mNow, mUntil, null);
+            }
+        }
+    };
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -49,6 +77,9 @@ public class EpgFragment extends VerticalGridSupportFragment
         mVideo = getActivity().getIntent().getParcelableExtra(TVChannelDetailsActivity.TVCHANNEL);
         Log.d("ESETV", "Channel:" + mVideo.title);
 
+        mNow = System.currentTimeMillis() / 1000;
+        mUntil = EpgGuide.windowStart(mNow) + EpgGuide.WINDOW_SECONDS;
+
         mEpgCursorAdapter.setMapper(new EpgCursorMapper());
         setAdapter(mEpgCursorAdapter);
 
@@ -59,41 +90,13 @@ public class EpgFragment extends VerticalGridSupportFragment
         }
         setupFragment();
 
-        loadProfiles();
+        ProfileRepository.getInstance(getContext()).addListener(mProfileListener);
     }
 
-    private  void loadProfiles() {
-        Cursor cursor = getContext().getContentResolver().query(
-                ProfileContract.ProfileEntry.CONTENT_URI,  // The content URI of the words table
-                DatabaseProvider.sProfilesContainingQueryColumns,                       // The columns to return for each row
-                null,
-                null,
-                null);
-
-        if (null == cursor) {
-            Log.d("ESETV", "Null cursor");
-        } else if (cursor.getCount() < 1) {
-            Log.d("ESETV", "Empty cursor");
-        } else {
-            Intent epgIntent = new Intent(getActivity(), FetchEpgService.class);
-
-            while (cursor.moveToNext()) {
-
-                String name = cursor.getString(cursor.getColumnIndex(ProfileContract.ProfileEntry.COLUMN_NAME));
-                String auth = cursor.getString(cursor.getColumnIndex(ProfileContract.ProfileEntry.COLUMN_AUTH));
-                String web_address = cursor.getString(cursor.getColumnIndex(ProfileContract.ProfileEntry.COLUMN_WEB_ADDRESS));
-                int web_port = cursor.getInt(cursor.getColumnIndex(ProfileContract.ProfileEntry.COLUMN_WEB_PORT));
-                int stream_port = cursor.getInt(cursor.getColumnIndex(ProfileContract.ProfileEntry.COLUMN_STREAM_PORT));
-
-                Log.d("ESETV", "Profile: " + name);
-
-                epgIntent.putExtra("auth", auth);
-                epgIntent.putExtra("download_url", web_address + ":" + web_port + "/");
-                epgIntent.putExtra("base", web_address + ":" + stream_port + "/");
-                epgIntent.putExtra("bref", mVideo.videoUrl);
-                getActivity().startService(epgIntent);
-            }
-        }
+    @Override
+    public void onDestroy() {
+        ProfileRepository.getInstance(getContext()).removeListener(mProfileListener);
+        super.onDestroy();
     }
 
     private void setupFragment() {
@@ -141,7 +144,50 @@ public class EpgFragment extends VerticalGridSupportFragment
         @Override
         public void onItemSelected(Presenter.ViewHolder itemViewHolder, Object item,
                                    RowPresenter.ViewHolder rowViewHolder, Row row) {
+            if (item instanceof Epg
+                    && ((Epg) item).begin_timestamp + PREFETCH_SECONDS >= mUntil) {
+                loadNextWindow();
+            }
+        }
+    }
+
+    /**
+     * Extends the guide shown by one window, loading it from the boxes first if it is not
+     * stored. A window that fails to load, or is still being loaded by another screen, leaves
+     * the guide as it is, so selecting near its end again retries.
+     */
+    private void loadNextWindow() {
+        if (mLoadingNext || mUntil >= EpgGuide.windowStart(mNow) + EpgGuide.MAX_AHEAD_SECONDS) {
+            return;
+        }
+        final long until = mUntil + EpgGuide.WINDOW_SECONDS;
+        if (mProfiles.isEmpty()) {
+            showUntil(until);
+            return;
         }
+        mLoadingNext = true;
+        SyncExecutor.getInstance().syncGuide(getContext(), mProfiles, mVideo.videoUrl,
+                mUntil, until, new SyncExecutor.GuideCallback() {
+                    @Override
+                    public void onGuideLoaded(final boolean stored) {
+                        mHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                mLoadingNext = false;
+                                if (stored && isAdded()) {
+                                    showUntil(until);
+                                }
+                            }
+                        });
+                    }
+                });
+    }
+
+    private void showUntil(long until) {
+        mUntil = until;
+        Bundle args = new Bundle();
+        args.putParcelable("video", mVideo);
+        LoaderManager.getInstance(this).restartLoader(1, args, this);
     }
 
     @Override
@@ -150,11 +196,14 @@ public class EpgFragment extends VerticalGridSupportFragment
         String category = video.videoUrl;
         return new CursorLoader(
                 getActivity(),
-                EpgContract.EpgEntry.CONTENT_URI, // Table to query
+                EpgContract.EpgEntry.buildBouquetUri(category), // Events of the bouquet
                 null, // Projection to return - null means return all fields
-                EpgContract.EpgEntry.COLUMN_BREF + " = ?", // Selection clause
-                new String[]{category},  // Select based on the category id.
-                null // Default sort order
+                // Events not over yet, up to the end of the loaded guide
+                EpgContract.EpgEntry.COLUMN_BEGIN_TIMESTAMP + " + "
+                        + EpgContract.EpgEntry.COLUMN_DURATION_SEC + " > ? AND "
+                        + EpgContract.EpgEntry.COLUMN_BEGIN_TIMESTAMP + " < ?",
+                new String[]{String.valueOf(mNow), String.valueOf(mUntil)},
+                EpgContract.EpgEntry.COLUMN_BEGIN_TIMESTAMP // In order of begin time
         );
     }
 
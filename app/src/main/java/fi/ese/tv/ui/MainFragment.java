@@ -19,7 +19,6 @@ package fi.ese.tv.ui;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.database.Cursor;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.Bundle;
@@ -28,7 +27,6 @@ import android.os.Handler;
 import androidx.leanback.app.BackgroundManager;
 import androidx.leanback.app.BrowseSupportFragment;
 import androidx.leanback.widget.ArrayObjectAdapter;
-import androidx.leanback.widget.CursorObjectAdapter;
 import androidx.leanback.widget.HeaderItem;
 import androidx.leanback.widget.ListRow;
 import androidx.leanback.widget.ListRowPresenter;
@@ -42,41 +40,41 @@ import androidx.core.app.ActivityOptionsCompat;
 import androidx.lifecycle.ViewModelProviders;
 import androidx.loader.app.LoaderManager;
 import androidx.core.content.ContextCompat;
-import androidx.loader.content.CursorLoader;
 import androidx.loader.content.Loader;
 import androidx.preference.PreferenceManager;
 
+import android.os.SystemClock;
 import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.View;
 import android.widget.Toast;
 
 import fi.ese.tv.R;
-import fi.ese.tv.data.ChannelContract;
-import fi.ese.tv.data.DatabaseProvider;
-import fi.ese.tv.data.FetchChannelService;
+import fi.ese.tv.data.BoxProfile;
 import fi.ese.tv.data.FetchProfileService;
-import fi.ese.tv.data.FetchRecordService;
-import fi.ese.tv.data.ProfileContract;
+import fi.ese.tv.data.ProfileRepository;
+import fi.ese.tv.data.SyncExecutor;
 import fi.ese.tv.model.GridItem;
 import fi.ese.tv.model.MainHeaderItem;
 import fi.ese.tv.model.PreviousChannelsViewModel;
 import fi.ese.tv.model.SingletonNameViewModelFactory;
 import fi.ese.tv.model.Video;
-import fi.ese.tv.model.VideoCursorMapper;
 import fi.ese.tv.presenter.CardPresenter;
 import fi.ese.tv.presenter.GridItemPresenter;
 import fi.ese.tv.presenter.IconHeaderItemPresenter;
 import fi.ese.tv.recommendation.UpdateRecommendationsService;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 /*
  * Main class to show BrowseFragment with header and rows of videos
  */
 public class MainFragment extends BrowseSupportFragment
-        implements LoaderManager.LoaderCallbacks<Cursor> {
+        implements LoaderManager.LoaderCallbacks<Map<String, List<Video>>> {
 
     private static final int RSS_JOB_ID = 1000;
 
@@ -90,31 +88,49 @@ public class MainFragment extends BrowseSupportFragment
     private String mBackgroundAuth;
     private BackgroundManager mBackgroundManager;
     private LoaderManager mLoaderManager;
-    private static final int CATEGORY_LOADER = 123; // Unique ID for Category Loader.
+    private static final int BROWSE_LOADER = 123; // Unique ID for the browse rows Loader.
     private String mSelectedHeaderName = null;
     private long mSelectedRowId = -1;
 
-    // Maps a Loader Id to its CursorObjectAdapter.
-    private Map<Integer, CursorObjectAdapter> mVideoCursorAdapters;
+    // The row of every category, in the order they are shown.
+    private final Map<String, ListRow> mCategoryRows = new LinkedHashMap<>();
+    private ListRow mChannelListsRow;
+    private ListRow mSettingsRow;
+    private long mLoadStart;
+
+    // Syncs the boxes when their data is stale, see SyncPolicy.
+    private final ProfileRepository.Listener mProfileListener = new ProfileRepository.Listener() {
+        @Override
+        public void onProfilesChanged(List<BoxProfile> profiles) {
+            if (!profiles.isEmpty()) {
+                // Boxes are synced in parallel, see SyncExecutor.
+                SyncExecutor.getInstance().syncProfiles(getContext(), profiles);
+            }
+        }
+    };
 
     @Override
     public void onAttach(Context context) {
         super.onAttach(context);
         Log.d("ESETV", "MainFragment.onAttach called");
-        // Create a list to contain all the CursorObjectAdapters.
-        // Each adapter is used to render a specific row of videos in the MainFragment.
-        mVideoCursorAdapters = new HashMap<>();
 
-        // Start loading the categories from the database.
+        // Start loading the rows of all categories from the database.
+        mLoadStart = SystemClock.elapsedRealtime();
         mLoaderManager = LoaderManager.getInstance(this);
-        mLoaderManager.initLoader(CATEGORY_LOADER, null, this);
+        mLoaderManager.initLoader(BROWSE_LOADER, null, this);
     }
 
     @Override
     public void onResume() {
         super.onResume();
         Log.d("ESETV", "onResume called.");
-        loadProfiles();
+        ProfileRepository.getInstance(getContext()).addListener(mProfileListener);
+    }
+
+    @Override
+    public void onPause() {
+        ProfileRepository.getInstance(getContext()).removeListener(mProfileListener);
+        super.onPause();
     }
 
     @Override
@@ -134,6 +150,19 @@ public class MainFragment extends BrowseSupportFragment
         mCategoryRowAdapter = new ArrayObjectAdapter(new ListRowPresenter());
         setAdapter(mCategoryRowAdapter);
 
+        HeaderItem channelListsHeader = new HeaderItem(getString(R.string.channel_lists));
+        ArrayObjectAdapter channelListsAdapter =
+                new ArrayObjectAdapter(new GridItemPresenter(this));
+        channelListsAdapter.add(new GridItem(getString(R.string.all_channels), R.drawable.android_header));
+        channelListsAdapter.add(new GridItem(getString(R.string.previous_channels)));
+        channelListsAdapter.add(new GridItem(getString(R.string.recordings)));
+        mChannelListsRow = new ListRow(channelListsHeader, channelListsAdapter);
+
+        MainHeaderItem settingsHeader = new MainHeaderItem(getString(R.string.settings), R.drawable.ic_settings_settings);
+        ArrayObjectAdapter settingsAdapter = new ArrayObjectAdapter(new GridItemPresenter(this));
+        settingsAdapter.add(new GridItem(getString(R.string.personal_settings), R.drawable.ic_settings_settings));
+        mSettingsRow = new ListRow(settingsHeader, settingsAdapter);
+
         //loadProfiles();
         //updateRecommendations();
     }
@@ -247,179 +276,98 @@ public class MainFragment extends BrowseSupportFragment
     }
 
     @Override
-    public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-        if (id == CATEGORY_LOADER) {
-            Log.d("ESETV", "Loader onCreateLoader get ALL Categories");
-            return new CursorLoader(
-                    getContext(),
-                    ChannelContract.VideoEntry.CONTENT_URI, // Table to query
-                    new String[]{"DISTINCT " + ChannelContract.VideoEntry.COLUMN_CATEGORY},
-                    // Only categories
-                    null, // No selection clause
-                    null, // No selection arguments
-                    null  // Default sort order
-            );
-        } else {
-            // Assume it is for a video.
-            String category = args.getString(ChannelContract.VideoEntry.COLUMN_CATEGORY);
-            Log.d("ESETV", "Loader onCreateLoader get category:" + category);
-
-            // This just creates a CursorLoader that gets all videos.
-            return new CursorLoader(
-                    getContext(),
-                    ChannelContract.VideoEntry.CONTENT_URI, // Table to query
-                    null, // Projection to return - null means return all fields
-                    ChannelContract.VideoEntry.COLUMN_CATEGORY + " = ?", // Selection clause
-                    new String[]{category},  // Select based on the category id.
-                    null // Default sort order
-            );
-        }
+    public Loader<Map<String, List<Video>>> onCreateLoader(int id, Bundle args) {
+        return new BrowseLoader(getContext());
     }
 
     @Override
-    public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
-        //Log.d("ESETV", "onLoadFinished called.");
-        if (data != null && data.moveToFirst()) {
-            final int loaderId = loader.getId();
-
-            if (loaderId == CATEGORY_LOADER) {
-                Log.d("ESETV", "onLoadFinished CATEGORY_LOADER. id:" + loaderId);
-
-                // Every time we have to re-get the category loader, we must re-create the sidebar.
-                //mCategoryRowAdapter.clear();
-                // Create a row for this special case with more samples.
-                HeaderItem gridHeader1 = new HeaderItem(getString(R.string.channel_lists));
-                GridItemPresenter gridPresenter1 = new GridItemPresenter(this);
-                ArrayObjectAdapter gridRowAdapter1 = new ArrayObjectAdapter(gridPresenter1);
-                gridRowAdapter1.add(new GridItem(getString(R.string.all_channels), R.drawable.android_header));
-                gridRowAdapter1.add(new GridItem(getString(R.string.previous_channels)));
-                gridRowAdapter1.add(new GridItem(getString(R.string.recordings)));
-                ListRow row1 = new ListRow(gridHeader1, gridRowAdapter1);
-                mCategoryRowAdapter.add(row1);
-
-                // Iterate through each category entry and add it to the ArrayAdapter.
-
-                while (!data.isAfterLast()) {
-
-                    int categoryIndex =
-                            data.getColumnIndex(ChannelContract.VideoEntry.COLUMN_CATEGORY);
-                    String category = data.getString(categoryIndex);
-
-                    // Create header for this category.
-                    Log.d("ESETV", "onLoadFinished Create header for category:" + category);
-                    HeaderItem header = new HeaderItem(category);
-
-                    int videoLoaderId = category.hashCode(); // Create unique int from category.
-                    CursorObjectAdapter existingAdapter = mVideoCursorAdapters.get(videoLoaderId);
-                    if (existingAdapter == null) {
-
-                        // Map video results from the database to Video objects.
-                        CursorObjectAdapter videoCursorAdapter =
-                                new CursorObjectAdapter(new CardPresenter());
-                        videoCursorAdapter.setMapper(new VideoCursorMapper());
-                        mVideoCursorAdapters.put(videoLoaderId, videoCursorAdapter);
-
-                        ListRow row = new ListRow(header, videoCursorAdapter);
-                        mCategoryRowAdapter.add(row);
-
-                        // Start loading the videos from the database for a particular category.
-                        Log.d("ESETV", "onLoadFinished. Start loading the videos from the database for a particular category.");
-                        Bundle args = new Bundle();
-                        args.putString(ChannelContract.VideoEntry.COLUMN_CATEGORY, category);
-                        mLoaderManager.initLoader(videoLoaderId, args, this);
-                    } else {
-                        Log.d("ESETV", "onLoadFinished. existing adapter exists, add row to adapter.");
-                        ListRow row = new ListRow(header, existingAdapter);
-                        mCategoryRowAdapter.add(row);
-                    }
+    public void onLoadFinished(Loader<Map<String, List<Video>>> loader,
+            Map<String, List<Video>> categories) {
+        List<ListRow> rows = new ArrayList<>();
+        if (categories.isEmpty()) {
+            Log.d("ESETV", "onLoadFinished no channels, fetch profiles.");
+            mCategoryRows.clear();
+            rows.add(mSettingsRow);
+            updateItems(mCategoryRowAdapter, rows);
 
-                    data.moveToNext();
-                }
+            Intent profileIntent = new Intent(getActivity(), FetchProfileService.class);
+            getActivity().startService(profileIntent);
+            return;
+        }
 
-                // Create a row for this special case with more samples.
-                MainHeaderItem gridHeader = new MainHeaderItem(getString(R.string.settings), R.drawable.ic_settings_settings);
-                GridItemPresenter gridPresenter = new GridItemPresenter(this);
-                ArrayObjectAdapter gridRowAdapter = new ArrayObjectAdapter(gridPresenter);
-                gridRowAdapter.add(new GridItem(getString(R.string.personal_settings), R.drawable.ic_settings_settings));
-                ListRow row = new ListRow(gridHeader, gridRowAdapter);
-                mCategoryRowAdapter.add(row);
-                //this.setSelectedPosition(2);
-                startEntranceTransition(); // TODO: Move startEntranceTransition to after all
-                // cursors have loaded.
-                mLoaderManager.destroyLoader(CATEGORY_LOADER);
-            } else {
-                // The CursorAdapter contains a Cursor pointing to all videos.
-                //Log.d("ESETV", "onLoadFinished CursorAdapter contains a Cursor pointing to all videos");
-
-                mVideoCursorAdapters.get(loaderId).changeCursor(data);
+        // Rows of categories that are gone are dropped, the others are updated in place.
+        for (Iterator<String> it = mCategoryRows.keySet().iterator(); it.hasNext(); ) {
+            if (!categories.containsKey(it.next())) {
+                it.remove();
             }
-        } else {
-            // Every time we have to re-get the category loader, we must re-create the sidebar.
-            Log.d("ESETV", "onLoadFinished clear rowAdapter.");
-
-            mCategoryRowAdapter.clear();
+        }
+        rows.add(mChannelListsRow);
+        for (Map.Entry<String, List<Video>> category : categories.entrySet()) {
+            ListRow row = mCategoryRows.get(category.getKey());
+            if (row == null) {
+                row = new ListRow(new HeaderItem(category.getKey()),
+                        new ArrayObjectAdapter(new CardPresenter()));
+                mCategoryRows.put(category.getKey(), row);
+            }
+            updateItems((ArrayObjectAdapter) row.getAdapter(), category.getValue());
+            rows.add(row);
+        }
+        rows.add(mSettingsRow);
+        updateItems(mCategoryRowAdapter, rows);
+
+        if (mLoadStart != 0) {
+            Log.d("ESETV", "First rows of " + categories.size() + " categories shown after "
+                    + (SystemClock.elapsedRealtime() - mLoadStart) + " ms from the "
+                    + (((BrowseLoader) loader).isFromSnapshot() ? "snapshot" : "database"));
+            mLoadStart = 0;
+            startEntranceTransition();
+        }
+    }
 
-            // Create a row for this special case with more samples.
-            HeaderItem gridHeader = new HeaderItem(getString(R.string.settings));
-            GridItemPresenter gridPresenter = new GridItemPresenter(this);
-            ArrayObjectAdapter gridRowAdapter = new ArrayObjectAdapter(gridPresenter);
-            gridRowAdapter.add(new GridItem(getString(R.string.personal_settings), R.drawable.ic_settings_settings));
-            ListRow row = new ListRow(gridHeader, gridRowAdapter);
-            mCategoryRowAdapter.add(row);
+    /**
+     * Updates the items of an adapter in place. Items kept at the start and the end are only
+     * bound again if their content changed, the items between them are replaced.
+     */
+    private static void updateItems(ArrayObjectAdapter adapter, List<?> items) {
+        int oldSize = adapter.size();
+        int newSize = items.size();
+        int start = 0;
+        while (start < oldSize && start < newSize && adapter.get(start).equals(items.get(start))) {
+            start++;
+        }
+        int oldEnd = oldSize;
+        int newEnd = newSize;
+        while (oldEnd > start && newEnd > start
+                && adapter.get(oldEnd - 1).equals(items.get(newEnd - 1))) {
+            oldEnd--;
+            newEnd--;
+        }
 
-            Intent profileIntent = new Intent(getActivity(), FetchProfileService.class);
-            getActivity().startService(profileIntent);
+        for (int i = 0; i < start; i++) {
+            replaceIfChanged(adapter, i, items.get(i));
+        }
+        for (int i = 0; i < oldSize - oldEnd; i++) {
+            replaceIfChanged(adapter, oldEnd + i, items.get(newEnd + i));
+        }
+        if (oldEnd > start) {
+            adapter.removeItems(start, oldEnd - start);
+        }
+        if (newEnd > start) {
+            adapter.addAll(start, items.subList(start, newEnd));
         }
     }
 
-    private  void loadProfiles() {
-        Cursor cursor = getContext().getContentResolver().query(
-                ProfileContract.ProfileEntry.CONTENT_URI,  // The content URI of the words table
-                DatabaseProvider.sProfilesContainingQueryColumns,                       // The columns to return for each row
-                null,
-                null,
-                null);
-
-        if (null == cursor) {
-            Log.d("ESETV", "loadProfiles. Null cursor");
-        } else if (cursor.getCount() < 1) {
-            Log.d("ESETV", "loadProfiles. Empty cursor");
-        } else {
-            Intent channelIntent = new Intent(getActivity(), FetchChannelService.class);
-            Intent recordingIntent = new Intent(getActivity(), FetchRecordService.class);
-            while (cursor.moveToNext()) {
-
-                String name = cursor.getString(cursor.getColumnIndex(ProfileContract.ProfileEntry.COLUMN_NAME));
-                String auth = cursor.getString(cursor.getColumnIndex(ProfileContract.ProfileEntry.COLUMN_AUTH));
-                String web_address = cursor.getString(cursor.getColumnIndex(ProfileContract.ProfileEntry.COLUMN_WEB_ADDRESS));
-                int web_port = cursor.getInt(cursor.getColumnIndex(ProfileContract.ProfileEntry.COLUMN_WEB_PORT));
-                int stream_port = cursor.getInt(cursor.getColumnIndex(ProfileContract.ProfileEntry.COLUMN_STREAM_PORT));
-
-                Log.d("ESETV", "Profile: " + name);
-
-                channelIntent.putExtra("auth", auth);
-                channelIntent.putExtra("download_url", web_address + ":" + web_port + "/");
-                channelIntent.putExtra("base", web_address + ":" + stream_port + "/");
-                getActivity().startService(channelIntent);
-
-                recordingIntent.putExtra("auth", auth);
-                recordingIntent.putExtra("download_url", web_address + ":" + web_port + "/");
-                recordingIntent.putExtra("base", web_address + ":" + stream_port + "/");
-                getActivity().startService(recordingIntent);
-
-            }
+    private static void replaceIfChanged(ArrayObjectAdapter adapter, int position, Object item) {
+        Object old = adapter.get(position);
+        if (item instanceof Video && !((Video) item).hasSameContent((Video) old)) {
+            adapter.replace(position, item);
         }
     }
 
     @Override
-    public void onLoaderReset(Loader<Cursor> loader) {
-        int loaderId = loader.getId();
-        //Log.d("ESETV", "onLoaderReset called id: " + loaderId);
-        if (loaderId != CATEGORY_LOADER) {
-            mVideoCursorAdapters.get(loaderId).changeCursor(null);
-        } else {
-            mCategoryRowAdapter.clear();
-        }
+    public void onLoaderReset(Loader<Map<String, List<Video>>> loader) {
+        mCategoryRows.clear();
+        mCategoryRowAdapter.clear();
     }
 
     private class UpdateBackgroundTask implements Runnable {
@@ -0,0 +1,336 @@
+/*
+ * Copyright (c) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.ese.tv.ui;
+
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.SparseArray;
+
+import androidx.leanback.widget.ObjectAdapter;
+import androidx.leanback.widget.Presenter;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import fi.ese.tv.data.PageQuery;
+import fi.ese.tv.model.Video;
+import fi.ese.tv.model.VideoCursorMapper;
+
+/**
+ * PagedVideoAdapter shows the rows of a channel or recording uri a page at a time. The number of
+ * rows is counted first, so the grid can be laid out, and pages are loaded in the background as
+ * the grid binds them, one page ahead of the bound position. Only the last {@link #MAX_PAGES}
+ * pages are kept, an item of a page that is not loaded is null until its page arrives.
+ *
+ * Pages are read with keyset paging, see {@link PageQuery}. A page is found from the key of the
+ * last row of the page before it. Jumping far ahead finds that key with one query, which steps
+ * over the skipped rows from the nearest known key and reads the key columns only.
+ */
+public class PagedVideoAdapter extends ObjectAdapter {
+    private static final String TAG = "PagedVideoAdapter";
+
+    /**
+     * Receives a row read by {@link #loadRow}, on the main thread.
+     */
+    public interface RowCallback {
+        void onRowLoaded(Video video);
+    }
+
+    public static final int PAGE_SIZE = 50;
+    private static final int MAX_PAGES = 6;
+
+    private final Context mContext;
+    private final Uri mContentUri;
+    private final String[] mProjection;
+    private final String mSelection;
+    private final String[] mSelectionArgs;
+    private final String[] mKeyColumns;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final VideoCursorMapper mMapper = new VideoCursorMapper();
+
+    // The loaded pages by page number, least recently used first. Used on the main thread.
+    private final Map<Integer, List<Video>> mPages =
+            new LinkedHashMap<Integer, List<Video>>(MAX_PAGES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, List<Video>> eldest) {
+                    return size() > MAX_PAGES;
+                }
+            };
+    private final Set<Integer> mLoading = new HashSet<>();
+    private int mSize;
+
+    // Bumped when the rows change, pages loaded before are dropped.
+    private int mGeneration;
+
+    // The key of the last row before each page. Used on the executor thread only.
+    private final SparseArray<String[]> mPageKeys = new SparseArray<>();
+
+    private long mStartTime;
+    private boolean mFirstRowLogged;
+
+    private final ContentObserver mObserver = new ContentObserver(mHandler) {
+        @Override
+        public void onChange(boolean selfChange) {
+            reload();
+        }
+    };
+
+    /**
+     * @param keyColumns The key columns pages of the uri are ordered by
+     */
+    public PagedVideoAdapter(Presenter presenter, Context context, Uri contentUri,
+            String[] projection, String selection, String[] selectionArgs, String[] keyColumns) {
+        super(presenter);
+        mContext = context.getApplicationContext();
+        mContentUri = contentUri;
+        mProjection = projection;
+        mSelection = selection;
+        mSelectionArgs = selectionArgs;
+        mKeyColumns = keyColumns;
+    }
+
+    /**
+     * Counts the rows and loads the first page, and follows changes of the rows until
+     * {@link #close()}.
+     */
+    public void start() {
+        mStartTime = SystemClock.elapsedRealtime();
+        mContext.getContentResolver().registerContentObserver(mContentUri, true, mObserver);
+        reload();
+    }
+
+    public void close() {
+        mContext.getContentResolver().unregisterContentObserver(mObserver);
+        mExecutor.shutdownNow();
+    }
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    @Override
+    public Object get(int position) {
+        int page = position / PAGE_SIZE;
+        // Stay a page ahead of the rows the grid binds.
+        if (position % PAGE_SIZE >= PAGE_SIZE / 2 && (page + 1) * PAGE_SIZE < mSize) {
+            load(page + 1);
+        }
+
+        List<Video> rows = mPages.get(page);
+        if (rows == null) {
+            load(page);
+            return null;
+        }
+        int index = position % PAGE_SIZE;
+        return index < rows.size() ? rows.get(index) : null;
+    }
+
+    private void reload() {
+        if (mExecutor.isShutdown()) {
+            return;
+        }
+        final int generation = ++mGeneration;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mPageKeys.clear();
+                final int size = count();
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mGeneration) {
+                            return;
+                        }
+                        mPages.clear();
+                        mLoading.clear();
+                        mSize = size;
+                        notifyChanged();
+                        if (size > 0) {
+                            load(0);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void load(final int page) {
+        if (mExecutor.isShutdown() || mPages.containsKey(page) || !mLoading.add(page)) {
+            return;
+        }
+        final int generation = mGeneration;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<Video> rows = readPage(page);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mGeneration) {
+                            return;
+                        }
+                        mLoading.remove(page);
+                        mPages.put(page, rows);
+                        notifyItemRangeChanged(page * PAGE_SIZE, rows.size());
+                        if (!mFirstRowLogged && !rows.isEmpty()) {
+                            mFirstRowLogged = true;
+                            Log.d(TAG, "First row of " + mSize + " shown after "
+                                    + (SystemClock.elapsedRealtime() - mStartTime) + " ms");
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private int count() {
+        Cursor cursor = mContext.getContentResolver().query(mContentUri,
+                new String[]{"COUNT(*)"}, mSelection, mSelectionArgs, null);
+        if (cursor == null) {
+            return 0;
+        }
+        try {
+            return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Runs on the executor thread.
+    private List<Video> readPage(int page) {
+        List<Video> rows = new ArrayList<>(PAGE_SIZE);
+        String[] after = findPageKey(page);
+        if (after == null) {
+            return rows;
+        }
+
+        Cursor cursor = query(mProjection, after);
+        if (cursor == null) {
+            return rows;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                rows.add((Video) mMapper.convert(cursor));
+            }
+            if (cursor.moveToLast()) {
+                mPageKeys.put(page + 1, readKey(cursor));
+            }
+        } finally {
+            cursor.close();
+        }
+        return rows;
+    }
+
+    /**
+     * Returns the key of the row before the page, found from the nearest page before it with a
+     * known key. Returns null if the page is past the last row.
+     */
+    private String[] findPageKey(int page) {
+        if (page == 0) {
+            return new String[0];
+        }
+        int known = page;
+        while (known > 0 && mPageKeys.get(known) == null) {
+            known--;
+        }
+        if (known == page) {
+            return mPageKeys.get(page);
+        }
+        String[] after = known == 0 ? new String[0] : mPageKeys.get(known);
+        Cursor cursor = mContext.getContentResolver().query(
+                PageQuery.buildPageUri(mContentUri, 1, (page - known) * PAGE_SIZE - 1, after),
+                mKeyColumns, mSelection, mSelectionArgs, null);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            String[] key = readKey(cursor);
+            mPageKeys.put(page, key);
+            return key;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Reads all columns of a row of the uri in the background.
+     * @param fallback Passed to the callback if the row cannot be read
+     */
+    public void loadRow(final Video fallback, final RowCallback callback) {
+        if (mExecutor.isShutdown()) {
+            return;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Video video = fallback;
+                Cursor cursor = mContext.getContentResolver().query(
+                        ContentUris.withAppendedId(mContentUri, fallback.id),
+                        null, null, null, null);
+                if (cursor != null) {
+                    try {
+                        if (cursor.moveToFirst()) {
+                            video = (Video) new VideoCursorMapper().convert(cursor);
+                        }
+                    } finally {
+                        cursor.close();
+                    }
+                }
+                final Video row = video;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onRowLoaded(row);
+                    }
+                });
+            }
+        });
+    }
+
+    private Cursor query(String[] projection, String[] after) {
+        return mContext.getContentResolver().query(
+                PageQuery.buildPageUri(mContentUri, PAGE_SIZE, after),
+                projection, mSelection, mSelectionArgs, null);
+    }
+
+    private String[] readKey(Cursor cursor) {
+        String[] key = new String[mKeyColumns.length];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = cursor.getString(cursor.getColumnIndexOrThrow(mKeyColumns[i]));
+        }
+        return key;
+    }
+}
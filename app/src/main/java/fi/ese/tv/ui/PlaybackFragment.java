@@ -434,7 +434,12 @@ public class PlaybackFragment extends VideoSupportFragment {
         mPlayerGlue.fastForward();
     }
 
-    /** Loads a playlist with videos from a cursor and also updates the related videos cursor. */
+    /**
+     * Loads a playlist with videos from a cursor and also updates the related videos cursor.
+     * No loader is started with these callbacks, so they are left on the provider rather than
+     * the channel catalog; a playlist started later should come from
+     * {@link fi.ese.tv.data.ChannelCatalog#getBouquet(String)}.
+     */
     protected class VideoLoaderCallbacks implements LoaderManager.LoaderCallbacks<Cursor> {
 
         static final int RELATED_VIDEOS_LOADER = 1;
@@ -454,10 +459,11 @@ public class PlaybackFragment extends VideoSupportFragment {
             String category = args.getString(ChannelContract.VideoEntry.COLUMN_CATEGORY);
             return new CursorLoader(
                     getActivity(),
-                    ChannelContract.VideoEntry.CONTENT_URI,
+                    ChannelContract.VideoEntry.buildCategoryUri(
+                            ChannelContract.VideoEntry.CONTENT_URI, category),
+                    null,
+                    null,
                     null,
-                    ChannelContract.VideoEntry.COLUMN_CATEGORY + " = ?",
-                    new String[] {category},
                     null);
         }
 
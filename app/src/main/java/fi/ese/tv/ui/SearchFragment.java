@@ -49,12 +49,17 @@ import android.widget.Toast;
 import fi.ese.tv.BuildConfig;
 import fi.ese.tv.R;
 import fi.ese.tv.data.ChannelContract;
+import fi.ese.tv.data.SearchIndex;
+import fi.ese.tv.data.SearchResultCache;
 import fi.ese.tv.model.Video;
 import fi.ese.tv.model.VideoCursorMapper;
 import fi.ese.tv.presenter.CardPresenter;
 
 /*
  * This class demonstrates how to do in-app search
+ *
+ * Searches go to the provider rather than the channel catalog: the full text index also
+ * matches epg titles, which the catalog does not hold, and ranks the matches.
  */
 public class SearchFragment extends SearchSupportFragment
         implements SearchSupportFragment.SearchResultProvider,
@@ -64,14 +69,27 @@ public class SearchFragment extends SearchSupportFragment
     private static final boolean FINISH_ON_RECOGNIZER_CANCELED = true;
     private static final int REQUEST_SPEECH = 0x00000010;
 
+    // Every search runs in this one loader, restarting it cancels the search before.
+    private static final int SEARCH_LOADER_ID = 1;
+    private static final String ARG_QUERY = "query";
+
+    // Time to wait after a keystroke before searching.
+    private static final long SEARCH_DELAY_MS = 300;
+
     private final Handler mHandler = new Handler();
     private ArrayObjectAdapter mRowsAdapter;
     private String mQuery;
     private final CursorObjectAdapter mVideoCursorAdapter =
             new CursorObjectAdapter(new CardPresenter());
 
-    private int mSearchLoaderId = 1;
     private boolean mResultsFound = false;
+    private final SearchResultCache mResultCache = new SearchResultCache();
+    private final Runnable mDelayedLoad = new Runnable() {
+        @Override
+        public void run() {
+            startQuery();
+        }
+    };
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -144,14 +162,14 @@ public class SearchFragment extends SearchSupportFragment
     @Override
     public boolean onQueryTextChange(String newQuery) {
         if (DEBUG) Log.i(TAG, String.format("Search text changed: %s", newQuery));
-        loadQuery(newQuery);
+        loadQuery(newQuery, SEARCH_DELAY_MS);
         return true;
     }
 
     @Override
     public boolean onQueryTextSubmit(String query) {
         if (DEBUG) Log.i(TAG, String.format("Search text submitted: %s", query));
-        loadQuery(query);
+        loadQuery(query, 0);
         return true;
     }
 
@@ -165,29 +183,27 @@ public class SearchFragment extends SearchSupportFragment
                 permission, context.getPackageName());
     }
 
-    private void loadQuery(String query) {
+    private void loadQuery(String query, long delayMillis) {
+        mHandler.removeCallbacks(mDelayedLoad);
         if (!TextUtils.isEmpty(query) && !query.equals("nil")) {
             mQuery = query;
-            getLoaderManager().initLoader(mSearchLoaderId++, null, this);
+            mHandler.postDelayed(mDelayedLoad, delayMillis);
         }
     }
 
+    private void startQuery() {
+        Bundle args = new Bundle();
+        args.putString(ARG_QUERY, mQuery);
+        LoaderManager.getInstance(this).restartLoader(SEARCH_LOADER_ID, args, this);
+    }
+
     public void focusOnSearch() {
         getView().findViewById(R.id.lb_search_bar).requestFocus();
     }
 
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-        String query = mQuery;
-        return new CursorLoader(
-                getActivity(),
-                ChannelContract.VideoEntry.CONTENT_URI,
-                null, // Return all fields.
-                ChannelContract.VideoEntry.COLUMN_NAME + " LIKE ? OR " +
-                        ChannelContract.VideoEntry.COLUMN_DESC + " LIKE ?",
-                new String[]{"%" + query + "%", "%" + query + "%"},
-                null // Default sort order
-        );
+        return new SearchLoader(getActivity(), args.getString(ARG_QUERY), mResultCache);
     }
 
     @Override
@@ -201,7 +217,7 @@ public class SearchFragment extends SearchSupportFragment
             titleRes = R.string.no_search_results;
         }
         mVideoCursorAdapter.changeCursor(cursor);
-        HeaderItem header = new HeaderItem(getString(titleRes, mQuery));
+        HeaderItem header = new HeaderItem(getString(titleRes, ((SearchLoader) loader).mQuery));
         mRowsAdapter.clear();
         ListRow row = new ListRow(header, mVideoCursorAdapter);
         mRowsAdapter.add(row);
@@ -212,6 +228,40 @@ public class SearchFragment extends SearchSupportFragment
         mVideoCursorAdapter.changeCursor(null);
     }
 
+    /**
+     * Loads the results of one search text, narrowing the cached results of a shorter text
+     * when possible.
+     */
+    private static final class SearchLoader extends CursorLoader {
+        final String mQuery;
+        private final SearchResultCache mCache;
+
+        SearchLoader(Context context, String query, SearchResultCache cache) {
+            super(context,
+                    ChannelContract.VideoEntry.buildSearchUri(query, SearchIndex.DEFAULT_LIMIT),
+                    null, // Return all fields.
+                    null, // The search text is part of the uri.
+                    null,
+                    null); // Ranked by the search index
+            mQuery = query;
+            mCache = cache;
+        }
+
+        @Override
+        public Cursor loadInBackground() {
+            Cursor cursor = mCache.filter(mQuery);
+            if (cursor != null) {
+                if (DEBUG) Log.d(TAG, "Narrowed cached results for " + mQuery);
+                return cursor;
+            }
+            cursor = super.loadInBackground();
+            if (cursor != null) {
+                mCache.put(mQuery, cursor, SearchIndex.DEFAULT_LIMIT);
+            }
+            return cursor;
+        }
+    }
+
     private final class ItemViewClickedListener implements OnItemViewClickedListener {
         @Override
         public void onItemClicked(Presenter.ViewHolder itemViewHolder, Object item,
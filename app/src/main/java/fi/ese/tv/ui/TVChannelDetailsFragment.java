@@ -25,6 +25,7 @@ import android.graphics.Bitmap;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.Bundle;
+import android.util.Log;
 import androidx.leanback.app.BackgroundManager;
 import androidx.leanback.app.DetailsSupportFragment;
 import androidx.leanback.widget.Action;
@@ -64,6 +65,7 @@ import com.bumptech.glide.request.RequestOptions;
 import com.bumptech.glide.request.target.SimpleTarget;
 import com.bumptech.glide.request.transition.Transition;
 import fi.ese.tv.R;
+import fi.ese.tv.data.ChannelCatalog;
 import fi.ese.tv.data.ChannelContract;
 import fi.ese.tv.model.PreviousChannelsViewModel;
 import fi.ese.tv.model.SingletonNameViewModelFactory;
@@ -78,6 +80,7 @@ import fi.ese.tv.presenter.DetailsDescriptionPresenter;
  */
 public class TVChannelDetailsFragment extends DetailsSupportFragment
         implements LoaderManager.LoaderCallbacks<Cursor> {
+    private static final String TAG = "TVChannelDetails";
 
     private static final int NO_NOTIFICATION = -1;
     private static final int ACTION_WATCH_CHANNEL = 1;
@@ -130,7 +133,8 @@ public class TVChannelDetailsFragment extends DetailsSupportFragment
     }
 
     /**
-     * Check if there is a global search intent. If there is, load that video.
+     * Check if there is a global search intent. If there is, load that video unless the channel
+     * catalog has it.
      */
     private boolean hasGlobalSearchIntent() {
         Intent intent = getActivity().getIntent();
@@ -139,10 +143,27 @@ public class TVChannelDetailsFragment extends DetailsSupportFragment
 
         if (globalSearch.equalsIgnoreCase(intentAction)) {
             Uri intentData = intent.getData();
-            String videoId = intentData.getLastPathSegment();
+            long videoId;
+            try {
+                videoId = Long.parseLong(intentData.getLastPathSegment());
+            } catch (NumberFormatException | NullPointerException e) {
+                // A suggestion of a row that no longer parses, nothing to show.
+                Log.w(TAG, "No video id in " + intentData);
+                getActivity().finish();
+                return true;
+            }
+
+            // The channel catalog has the row when the app has been browsed.
+            ChannelCatalog catalog = ChannelCatalog.peek();
+            if (catalog != null) {
+                mSelectedVideo = catalog.findById(videoId);
+                if (mSelectedVideo != null) {
+                    return false;
+                }
+            }
 
             Bundle args = new Bundle();
-            args.putString(ChannelContract.VideoEntry._ID, videoId);
+            args.putLong(ChannelContract.VideoEntry._ID, videoId);
             LoaderManager.getInstance(this).initLoader(mGlobalSearchVideoId++, args, this);
             return true;
         }
@@ -230,13 +251,13 @@ public class TVChannelDetailsFragment extends DetailsSupportFragment
         switch (id) {
             default: {
                 // Loading video from global search.
-                String videoId = args.getString(ChannelContract.VideoEntry._ID);
+                long videoId = args.getLong(ChannelContract.VideoEntry._ID);
                 return new CursorLoader(
                         getActivity(),
-                        ChannelContract.VideoEntry.CONTENT_URI,
+                        ChannelContract.VideoEntry.buildVideoUri(videoId),
+                        null,
+                        null,
                         null,
-                        ChannelContract.VideoEntry._ID + " = ?",
-                        new String[]{videoId},
                         null
                 );
             }
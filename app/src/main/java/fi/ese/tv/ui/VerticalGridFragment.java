@@ -17,11 +17,9 @@
 package fi.ese.tv.ui;
 
 import android.content.Intent;
-import android.database.Cursor;
 import android.os.Bundle;
 import android.os.Handler;
 import androidx.leanback.app.VerticalGridSupportFragment;
-import androidx.leanback.widget.CursorObjectAdapter;
 import androidx.leanback.widget.OnItemViewClickedListener;
 import androidx.leanback.widget.OnItemViewSelectedListener;
 import androidx.leanback.widget.Presenter;
@@ -29,29 +27,23 @@ import androidx.leanback.widget.Row;
 import androidx.leanback.widget.RowPresenter;
 import androidx.leanback.widget.VerticalGridPresenter;
 import androidx.lifecycle.ViewModelProviders;
-import androidx.loader.app.LoaderManager;
-import androidx.loader.content.CursorLoader;
-import androidx.loader.content.Loader;
 import android.view.View;
 
 import fi.ese.tv.R;
+import fi.ese.tv.data.ChannelCatalog;
 import fi.ese.tv.data.ChannelContract;
 import fi.ese.tv.model.PreviousChannelsViewModel;
 import fi.ese.tv.model.SingletonNameViewModelFactory;
 import fi.ese.tv.model.Video;
-import fi.ese.tv.model.VideoCursorMapper;
 import fi.ese.tv.presenter.CardPresenter;
 
 /*
  * VerticalGridFragment shows a grid of videos that can be scrolled vertically.
  */
-public class VerticalGridFragment extends VerticalGridSupportFragment
-        implements LoaderManager.LoaderCallbacks<Cursor> {
+public class VerticalGridFragment extends VerticalGridSupportFragment {
 
     private static final int NUM_COLUMNS = 5;
-    private final CursorObjectAdapter mVideoCursorAdapter =
-            new CursorObjectAdapter(new CardPresenter());
-    private static final int ALL_VIDEOS_LOADER = 1;
+    private PagedVideoAdapter mVideoAdapter;
     private SingletonNameViewModelFactory singletonNameViewModelFactory;
     PreviousChannelsViewModel viewModel;
     private boolean isRecordings = false;
@@ -66,8 +58,16 @@ public class VerticalGridFragment extends VerticalGridSupportFragment
             isRecordings = b.getBoolean("recordings");
         }
 
-        mVideoCursorAdapter.setMapper(new VideoCursorMapper());
-        setAdapter(mVideoCursorAdapter);
+        // Cards are loaded a page at a time with the columns they show, the whole row is read
+        // when one is opened.
+        mVideoAdapter = new PagedVideoAdapter(new CardPresenter(), getActivity(),
+                isRecordings ? ChannelContract.VideoEntry.CONTENT_URI_REC
+                        : ChannelContract.VideoEntry.CONTENT_URI,
+                ChannelContract.VideoEntry.CARD_PROJECTION,
+                ChannelContract.VideoEntry.COLUMN_IS_RECORDING + " = ?",
+                new String[]{isRecordings ? "1" : "0"},
+                ChannelContract.VideoEntry.PAGE_KEY);
+        setAdapter(mVideoAdapter);
 
         setTitle(getString(R.string.vertical_grid_title));
 
@@ -82,7 +82,7 @@ public class VerticalGridFragment extends VerticalGridSupportFragment
         gridPresenter.setNumberOfColumns(NUM_COLUMNS);
         setGridPresenter(gridPresenter);
 
-        LoaderManager.getInstance(this).initLoader(ALL_VIDEOS_LOADER, null, this);
+        mVideoAdapter.start();
 
         singletonNameViewModelFactory =
                 new SingletonNameViewModelFactory(PreviousChannelsViewModel.getInstance());
@@ -109,39 +109,36 @@ public class VerticalGridFragment extends VerticalGridSupportFragment
     }
 
     @Override
-    public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-        if (isRecordings) {
-            return new CursorLoader(
-                    getActivity(),
-                    ChannelContract.VideoEntry.CONTENT_URI_REC,
-                    null, // projection
-                    ChannelContract.VideoEntry.COLUMN_IS_RECORDING + " = ?",
-                    new String[]{"1"},
-                    null  // sort order
-            );
-        }
-        else {
-            return new CursorLoader(
-                    getActivity(),
-                    ChannelContract.VideoEntry.CONTENT_URI,
-                    null, // projection
-                    ChannelContract.VideoEntry.COLUMN_IS_RECORDING + " = ?",
-                    new String[]{"0"},
-                    null  // sort order
-            );
-        }
+    public void onDestroy() {
+        mVideoAdapter.close();
+        super.onDestroy();
     }
 
-    @Override
-    public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
-        if (loader.getId() == ALL_VIDEOS_LOADER && cursor != null && cursor.moveToFirst()) {
-            mVideoCursorAdapter.changeCursor(cursor);
+    // Opens the details of a card with all columns of its row, from the channel catalog when
+    // it has been built, otherwise read in the background.
+    private void openVideo(Video card) {
+        ChannelCatalog catalog = ChannelCatalog.peek();
+        Video video = catalog != null ? catalog.findById(card.id) : null;
+        if (video != null) {
+            showDetails(video);
+            return;
         }
+        mVideoAdapter.loadRow(card, new PagedVideoAdapter.RowCallback() {
+            @Override
+            public void onRowLoaded(Video video) {
+                if (isAdded()) {
+                    showDetails(video);
+                }
+            }
+        });
     }
 
-    @Override
-    public void onLoaderReset(Loader<Cursor> loader) {
-        mVideoCursorAdapter.changeCursor(null);
+    private void showDetails(Video video) {
+        //if (!isRecordings)
+        viewModel.addChannel(video);
+        Intent intent = new Intent(getActivity(), TVChannelDetailsActivity.class);
+        intent.putExtra(TVChannelDetailsActivity.TVCHANNEL, video);
+        startActivity(intent);
     }
 
     private final class ItemViewClickedListener implements OnItemViewClickedListener {
@@ -150,12 +147,7 @@ public class VerticalGridFragment extends VerticalGridSupportFragment
                 RowPresenter.ViewHolder rowViewHolder, Row row) {
 
             if (item instanceof Video) {
-                Video video = (Video) item;
-                //if (!isRecordings)
-                viewModel.addChannel(video);
-                Intent intent = new Intent(getActivity(), TVChannelDetailsActivity.class);
-                intent.putExtra(TVChannelDetailsActivity.TVCHANNEL, video);
-                startActivity(intent);
+                openVideo((Video) item);
             }
         }
     }